@@ -1,20 +1,27 @@
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * BeaconReceiver is a class used for reading in beacons for remote file browsers in a separate thread.
+ * BeaconReceiver is a class used for keeping track of remote file browsers through the beacons they send.
+ *
+ * Beacons are recorded in a PeerDirectory, which expires silent peers on its own timing wheel, so no periodic scan of
+ * the beacons is needed. The catalogs peers send (BloomFilters of their file names, a block per catalog message) are
+ * kept alongside, so a search for a name can skip the peers that certainly do not have it.
  *
  * @author 170004680, Nov 2020.
  */
-public class BeaconReceiver implements Runnable {
+public class BeaconReceiver {
 
 
     MulticastHandler multicastHandler; // Instance of MulticastHandler.
     Configuration configuration; // Configuration of MulticastHandler.
-    HashMap<String, Message> beacons; // HashMap of currently available remote file browser via beacons.
+    PeerDirectory peerDirectory; // Currently available remote file browsers, via beacons.
+    ConcurrentHashMap<String, BloomFilter> catalogs; // Catalog blocks received from each remote file browser.
 
 
     /**
-     * Constructor: Creates an instance of BeaconReceiver as a separate thread.
+     * Constructor: Creates an instance of BeaconReceiver.
      *
      * @param multicastHandler Instance of MulticastHandler, used for creating and reading messages.
      */
@@ -22,69 +29,130 @@ public class BeaconReceiver implements Runnable {
 
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.beacons = new HashMap<>(); // Structure containing active beacons.
-
-        // Create thread for managing reading beacons from multicast group.
-        Thread thread = new Thread(this);
-        thread.start();
+        this.peerDirectory = new PeerDirectory(configuration, this::beaconTimeout); // Structure containing active beacons.
+        this.catalogs = new ConcurrentHashMap<>();
 
     } // BeaconReceiver().
 
 
     /**
-     * Maintains active beacons by removing beacons that have expired.
+     * Given a message know to be a beacon, add the beacon appropriately to the beacons structure.
+     *
+     * @param beacon Beacon to be added to beacons.
      */
-    @Override
-    public void run() {
+    public void addBeacon(Message beacon) {
 
-        do { // Do until application terminated.
+        // Identify beacons by the identifier (username@hostname) and port number; a known beacon is updated.
+        peerDirectory.beaconReceived(beacon);
+
+    } // addBeacon().
 
-            // Removes beacons from beacons structure if maximumBeaconTime_ has expired.
-            removeExpiredBeacons();
 
-            try { // Read beacons every 'configuration.sleepTime_'.
-                Thread.sleep(configuration.sleepTime_);
-            } catch (InterruptedException ignored) {
+    /**
+     * Given a message known to be a catalog, store the block it carries with the sender's catalog. A block of a
+     * different layout to the blocks held (the sender's catalog has been resized) replaces them all.
+     *
+     * @param catalog Catalog message to be added.
+     */
+    public void addCatalog(Message catalog) {
+
+        BloomFilter filter = catalogs.compute(catalog.getIdentifier(), (identifier, held) ->
+                held != null && held.hasLayout(catalog.getCatalogBlockCount(), catalog.getCatalogBlock().length,
+                        catalog.getCatalogHashes())
+                        ? held
+                        : new BloomFilter(catalog.getCatalogBlockCount(), catalog.getCatalogBlock().length,
+                                catalog.getCatalogHashes()));
+
+        filter.setBlock(catalog.getCatalogBlockIndex(), catalog.getCatalogBlock());
+
+        // Forget the catalogs of remote file browsers that have gone.
+        if (catalogs.size() > peerDirectory.size()) {
+
+            Set<String> active = new HashSet<>();
+            for (Message beacon : peerDirectory.snapshot().values()) {
+                active.add(beacon.getIdentifier());
             }
+            catalogs.keySet().removeIf(identifier -> !active.contains(identifier)
+                    && !identifier.equals(catalog.getIdentifier()));
 
-        } while (true);
+        } // if (catalogs of gone peers may be held).
 
-    } // run().
+    } // addCatalog().
 
 
     /**
-     * Given a message know to be a beacon, add the beacon appropriately to the beacons structure.
+     * Check a remote file browser's catalog for a name.
      *
-     * @param beacon Beacon to be added to beacons.
+     * @param identifier Identifier (username@hostname) of the remote file browser.
+     * @param name File or directory name, of any case.
+     *
+     * @return False if its catalog rules the name out; true if it might have the name, or has not sent a catalog.
      */
-    public synchronized void addBeacon(Message beacon) {
+    public boolean mightHave(String identifier, String name) {
+
+        BloomFilter filter = catalogs.get(identifier);
+        return filter == null || filter.mightContain(FileIndex.fold(name));
+
+    } // mightHave().
 
-        // Synchronised to prevent simultaneous adding and removing beacons issues due to threading.
 
-        // Identify beacons by the identifier (username@hostname) and port number.
-        String beaconIdentifier = beacon.getIdentifier() + ":" + beacon.getServerPort();
+    /**
+     * Time after which a remote file browser that has gone quiet is removed. This is several beacon intervals, which
+     * grow with the group size.
+     *
+     * @return Beacon timeout in ms.
+     */
+    private int beaconTimeout() {
 
-        if (beacons.get(beaconIdentifier) == null) { // Add beacon if new.
-            beacons.put(beaconIdentifier, beacon);
-        } else { // Updates the beacon if it exists already with new timestamp info.
-            beacons.replace(beaconIdentifier, beacon);
+        BeaconSender beaconSender = multicastHandler.beaconSender;
+        if (beaconSender == null) {
+            return BeaconSender.BEACON_TIMEOUT_INTERVALS * configuration.maximumBeaconPeriod_;
         }
 
-    } // addBeacon().
+        return beaconSender.beaconTimeout();
+
+    } // beaconTimeout().
 
 
     /**
-     * Remove expired beacons from list of beacons.
+     * @return Number of remote file browsers with active beacons.
+     */
+    public int peerCount() {
+        return peerDirectory.size();
+    }
+
+
+    /**
+     * @param beaconIdentifier identifier:port of a remote file browser.
+     *
+     * @return Active beacon of the remote file browser, or null if there is none.
      */
-    public synchronized void removeExpiredBeacons() {
+    public Message getBeacon(String beaconIdentifier) {
+        return peerDirectory.get(beaconIdentifier);
+    }
 
-        // Synchronised to prevent simultaneous adding and removing beacons issues due to threading.
 
-        // Beacon has expired if it has been longer than maximumBeaconPeriod_ since received.
-        beacons.entrySet().removeIf(entry ->
-                (System.currentTimeMillis() - entry.getValue().getTimestamp().getTime()) > configuration.maximumBeaconPeriod_);
+    /**
+     * Find the most recent beacon sent by a remote file browser.
+     *
+     * @param identifier Identifier (username@hostname) of the remote file browser.
+     *
+     * @return Latest beacon from the remote file browser, or null if none is active.
+     */
+    public Message getBeaconFrom(String identifier) {
+
+        Message latest = null;
+
+        for (Message beacon : peerDirectory.snapshot().values()) {
+            if (beacon.getIdentifier().equals(identifier)
+                    && (latest == null || beacon.getTimestampMillis() > latest.getTimestampMillis())) {
+                latest = beacon;
+            }
+        }
+
+        return latest;
 
-    } // removeExpiredBeacons().
+    } // getBeaconFrom().
 
 
     /**
@@ -96,7 +164,7 @@ public class BeaconReceiver implements Runnable {
 
         int beaconNum = 0;
 
-        for (Message beaconMessage : beacons.values()) {
+        for (Message beaconMessage : peerDirectory.snapshot().values()) {
 
             String beaconString = "";
 
@@ -1,6 +1,19 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * BeaconSender is a class used for sending beacons to remote file browsers in a separate thread.
  *
+ * Beacons are scheduled as RTCP schedules its reports: all beacons in the group share a fixed bandwidth, so the
+ * interval between our beacons grows with the number of peers seen, and each interval is randomised to between half
+ * and one and a half times its nominal length so that peers do not beacon in step. The port and services we advertise
+ * are fixed by the configuration, so a beacon is never sent early.
+ *
+ * Once the file index is ready, each beacon is followed by a catalog message carrying one block of a BloomFilter of
+ * our file names, so peers can tell which searches we cannot answer. Blocks that changed when the filter was last
+ * rebuilt go first, then the blocks are sent in turn. Catalog messages count towards the beacon bandwidth. The filter is
+ * rebuilt from the index when it has changed, at most every CATALOG_INTERVAL.
+ *
  * @author 170004680, Nov 2020.
  */
 public class BeaconSender implements Runnable {
@@ -9,6 +22,18 @@ public class BeaconSender implements Runnable {
     MulticastHandler multicastHandler;  // Instance of MulticastHandler used for creating beacon messages to send.
     Configuration configuration; // Configuration of MulticastHandler.
 
+    static final int BEACON_TIMEOUT_INTERVALS = 3; // Nominal intervals without a beacon before a peer is dropped.
+    static final long CATALOG_INTERVAL = 10_000L; // ms, shortest time between rebuilds of our catalog.
+
+    private volatile int averageBeaconSize; // Bytes, moving average of the size of our beacons (0 until one is sent).
+    private volatile int averageCatalogSize; // Bytes, moving average of the size of our catalog messages.
+
+    private BloomFilter catalog; // Names of the files under the root directory, null until the index is ready.
+    private long catalogBuilt; // System.nanoTime() the catalog was built.
+    private volatile boolean catalogChanged; // Whether the index has changed since the catalog was built.
+    private final ArrayDeque<Integer> changedBlocks; // Blocks that changed in the last rebuild, not yet sent.
+    private int nextBlock; // Block to send next when no changed blocks are waiting.
+
 
     /**
      * Constructor: Creates an instance of BeaconSender as a separate thread.
@@ -19,6 +44,9 @@ public class BeaconSender implements Runnable {
 
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
+        this.changedBlocks = new ArrayDeque<>();
+
+        multicastHandler.fileIndex.addListener((path, directory) -> catalogChanged = true);
 
         // Create thread for managing sending beacons to multicast group.
         Thread thread = new Thread(this);
@@ -36,9 +64,13 @@ public class BeaconSender implements Runnable {
         do { // Do until application terminated.
 
             String beaconSent = txBeacon(); // Send beacon according to the specification.
+            txCatalog(); // Followed by a block of our catalog.
+
+            // Randomise the interval to [0.5, 1.5) times the nominal interval, so peers do not synchronise.
+            long interval = (long) (beaconInterval() * (0.5 + ThreadLocalRandom.current().nextDouble()));
 
-            try { // Send beacons every configuration.maxBeaconPeriod_.
-                Thread.sleep(configuration.maximumBeaconPeriod_);
+            try {
+                Thread.sleep(interval);
             } catch (InterruptedException ignored) {
             }
 
@@ -47,6 +79,36 @@ public class BeaconSender implements Runnable {
     } // run().
 
 
+    /**
+     * Nominal interval between beacons: the base period, stretched so that the beacons of all peers together stay within
+     * configuration.beaconBandwidth_.
+     *
+     * @return Nominal interval between beacons in ms, for the number of peers currently seen.
+     */
+    public int beaconInterval() {
+
+        BeaconReceiver beaconReceiver = multicastHandler.beaconReceiver;
+        int members = (beaconReceiver == null ? 0 : beaconReceiver.peerCount()) + 1; // Peers, plus ourselves.
+
+        long bandwidthInterval = (long) members * (averageBeaconSize + averageCatalogSize) * 1000L
+                / Math.max(1, configuration.beaconBandwidth_);
+
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(configuration.maximumBeaconPeriod_, bandwidthInterval));
+
+    } // beaconInterval().
+
+
+    /**
+     * Time after which a peer is considered gone if no beacon has been heard from it. Several nominal intervals are
+     * allowed, as randomisation can stretch an interval by half and beacons may be lost.
+     *
+     * @return Beacon timeout in ms, for the number of peers currently seen.
+     */
+    public int beaconTimeout() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) BEACON_TIMEOUT_INTERVALS * beaconInterval());
+    }
+
+
     /**
      * Method for sending a beacon to the multicast group.
      *
@@ -61,7 +123,15 @@ public class BeaconSender implements Runnable {
         boolean sent = multicastHandler.txMessage(beacon);
 
         if (sent) {
-            return beacon.toString();
+
+            String beaconString = beacon.toString();
+
+            // Track the beacon size (as RTCP tracks its average packet size), which sets the interval between beacons.
+            int size = beaconString.length();
+            averageBeaconSize = averageBeaconSize == 0 ? size : averageBeaconSize + (size - averageBeaconSize) / 16;
+
+            return beaconString;
+
         } else {
             return null;
         }
@@ -69,4 +139,77 @@ public class BeaconSender implements Runnable {
     } // txBeacon().
 
 
+    /**
+     * Send the next block of our catalog, rebuilding the catalog first if the index has changed since it was built.
+     * Nothing is sent until the index is ready, or if catalogs are not enabled.
+     */
+    private void txCatalog() {
+
+        if (!configuration.catalog_ || !multicastHandler.fileIndex.isReady()) {
+            return;
+        }
+
+        if (catalog == null || (catalogChanged && System.nanoTime() - catalogBuilt >= CATALOG_INTERVAL * 1_000_000L)) {
+            buildCatalog();
+        }
+
+        Integer block = changedBlocks.poll();
+        if (block == null) {
+            block = nextBlock;
+            nextBlock = (nextBlock + 1) % catalog.blockCount();
+        }
+
+        Message catalogMessage = Message.catalogMessage(catalog, block);
+        if (multicastHandler.txMessage(catalogMessage)) {
+            int size = MessageEncoder.forCurrentThread().encodedLength(catalogMessage);
+            averageCatalogSize = averageCatalogSize == 0 ? size : averageCatalogSize + (size - averageCatalogSize) / 16;
+        }
+
+    } // txCatalog().
+
+
+    /**
+     * Rebuild our catalog from the file index, noting which blocks differ from those last sent.
+     */
+    private void buildCatalog() {
+
+        catalogChanged = false; // Cleared first, so a change made during the build is not missed.
+        catalogBuilt = System.nanoTime();
+
+        BloomFilter built = BloomFilter.of(multicastHandler.fileIndex.names(), configuration.catalogSize_,
+                catalogBlockBytes());
+
+        changedBlocks.clear();
+        for (int i = 0; i < built.blockCount(); i++) {
+            if (catalog == null || catalog.blockCount() != built.blockCount() || built.blockDiffers(catalog, i)) {
+                changedBlocks.add(i);
+            }
+        }
+        if (catalog == null || catalog.blockCount() != built.blockCount()) {
+            nextBlock = 0;
+        }
+
+        catalog = built;
+
+        configuration.log_.writeLog("Catalog Built: " + multicastHandler.fileIndex.names().size() + " Names In "
+                + built.blockCount() + " Blocks, " + changedBlocks.size() + " Changed"); // Create log.
+
+    } // buildCatalog().
+
+
+    /**
+     * @return Bytes of BloomFilter that fit in each catalog message within maximumDiscoveryMessageSize_, once Base64
+     *         encoded; room is left for the block numbers and serial number to gain digits.
+     */
+    private int catalogBlockBytes() {
+
+        Message empty = Message.catalogMessage(new BloomFilter(1, 0, BloomFilter.HASHES), 0);
+        empty.setCatalogBlock(new byte[0]);
+        int overhead = MessageEncoder.forCurrentThread().encodedLength(empty) + 12;
+
+        return Math.max(1, (configuration.maximumDiscoveryMessageSize_ - overhead) / 4 * 3);
+
+    } // catalogBlockBytes().
+
+
 } // BeaconsSender{}.
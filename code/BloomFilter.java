@@ -0,0 +1,243 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * BloomFilter is a compact summary of a set of names, answering whether a name might be in the set: a name that was
+ * added is always reported, and a name that was not is reported only rarely (about 1% of the time when the filter is
+ * given BITS_PER_NAME bits per name).
+ *
+ * The filter is split into blocks, each small enough to be sent in a single catalog message, and every name is held
+ * entirely within one block: its hash picks the block, then the bits within it. A block can therefore be sent, lost,
+ * and received independently of the others. A block that has not been received is treated as holding every name, so a
+ * partly received filter never rules out a name wrongly.
+ *
+ * Names are hashed as UTF-8 with 64-bit FNV-1a, passed through the MurmurHash3 finaliser. The result picks the block
+ * (its upper 32 bits, unsigned, modulo the block count) and the first bit (its lower 32 bits); the finaliser of the
+ * result XOR 0x9E3779B97F4A7C15 gives the step between bits (its lower 32 bits, forced odd), all modulo the bits in a
+ * block.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class BloomFilter {
+
+
+    static final int BITS_PER_NAME = 10; // Bits given to each name when sized, for about 1% false positives.
+    static final int HASHES = 7; // Bits set per name, best for BITS_PER_NAME.
+
+    private final byte[][] blocks; // Bits of each block, null for a block not yet received.
+    private final int blockBytes; // Bytes in each block.
+    private final int hashes; // Bits set per name.
+
+
+    /**
+     * Constructor: Creates a filter with no blocks received.
+     *
+     * @param blockCount Number of blocks.
+     * @param blockBytes Bytes in each block.
+     * @param hashes Bits set per name.
+     */
+    BloomFilter(int blockCount, int blockBytes, int hashes) {
+
+        this.blocks = new byte[blockCount][];
+        this.blockBytes = blockBytes;
+        this.hashes = hashes;
+
+    } // BloomFilter().
+
+
+    /**
+     * Build a filter holding a set of names.
+     *
+     * @param names Names to add.
+     * @param maximumBytes Most bytes the filter may take up in total; fewer are used for few names.
+     * @param blockBytes Bytes in each block, when more than one is needed.
+     *
+     * @return Filter holding the names.
+     */
+    public static BloomFilter of(Collection<String> names, int maximumBytes, int blockBytes) {
+
+        long bytes = Math.min(maximumBytes, ((long) names.size() * BITS_PER_NAME + 7) / 8);
+        int blockCount = (int) Math.max(1, (bytes + blockBytes - 1) / blockBytes);
+        int bytesPerBlock = blockCount == 1 ? (int) Math.max(8, bytes) : blockBytes; // A lone block need not be full.
+
+        BloomFilter filter = new BloomFilter(blockCount, bytesPerBlock, HASHES);
+        for (int i = 0; i < blockCount; i++) {
+            filter.blocks[i] = new byte[bytesPerBlock];
+        }
+        for (String name : names) {
+            filter.add(name);
+        }
+
+        return filter;
+
+    } // of().
+
+
+    /**
+     * Add a name to the filter. Its block must be present.
+     *
+     * @param name Name to add.
+     */
+    public synchronized void add(String name) {
+
+        long first = firstHash(name);
+        int step = stepHash(first);
+        byte[] block = blocks[blockIndex(first)];
+        int bits = blockBytes * 8;
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod((int) first + i * step, bits);
+            block[bit >>> 3] |= (byte) (1 << (bit & 7));
+        }
+
+    } // add().
+
+
+    /**
+     * @param name Name to look for.
+     *
+     * @return False if the name is certainly not in the set; true if it might be, or if its block is not present.
+     */
+    public synchronized boolean mightContain(String name) {
+
+        long first = firstHash(name);
+        byte[] block = blocks[blockIndex(first)];
+        if (block == null) {
+            return true;
+        }
+
+        int step = stepHash(first);
+        int bits = blockBytes * 8;
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = Math.floorMod((int) first + i * step, bits);
+            if ((block[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+
+    } // mightContain().
+
+
+    /**
+     * @return Number of blocks.
+     */
+    public int blockCount() {
+        return blocks.length;
+    }
+
+    /**
+     * @return Bytes in each block.
+     */
+    public int blockBytes() {
+        return blockBytes;
+    }
+
+    /**
+     * @return Bits set per name.
+     */
+    public int hashes() {
+        return hashes;
+    }
+
+    /**
+     * @param blockCount Number of blocks.
+     * @param blockBytes Bytes in each block.
+     * @param hashes Bits set per name.
+     *
+     * @return True if blocks of this layout can be stored in this filter.
+     */
+    public boolean hasLayout(int blockCount, int blockBytes, int hashes) {
+        return blocks.length == blockCount && this.blockBytes == blockBytes && this.hashes == hashes;
+    }
+
+
+    /**
+     * @param index Block index.
+     *
+     * @return Copy of the bits of the block, or null if it has not been received.
+     */
+    public synchronized byte[] getBlock(int index) {
+        return blocks[index] == null ? null : blocks[index].clone();
+    }
+
+    /**
+     * Store a block received from a peer, replacing any earlier copy.
+     *
+     * @param index Block index.
+     * @param bits Bits of the block, blockBytes() long.
+     */
+    public synchronized void setBlock(int index, byte[] bits) {
+        blocks[index] = bits.clone();
+    }
+
+    /**
+     * @param other Filter of the same layout.
+     * @param index Block index.
+     *
+     * @return True if the block differs between the two filters.
+     */
+    public synchronized boolean blockDiffers(BloomFilter other, int index) {
+        return !Arrays.equals(blocks[index], other.getBlock(index));
+    }
+
+
+    /**
+     * @param first First hash of a name.
+     *
+     * @return Index of the block holding the name.
+     */
+    private int blockIndex(long first) {
+        return (int) ((first >>> 32) % blocks.length);
+    }
+
+
+    /**
+     * @param name Name.
+     *
+     * @return First hash of the name.
+     */
+    private static long firstHash(String name) {
+
+        long hash = 0xcbf29ce484222325L; // FNV-1a offset basis.
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L; // FNV-1a prime.
+        }
+
+        return mix(hash);
+
+    } // firstHash().
+
+
+    /**
+     * @param first First hash of a name.
+     *
+     * @return Step between the bits of the name, odd.
+     */
+    private static int stepHash(long first) {
+        return (int) mix(first ^ 0x9E3779B97F4A7C15L) | 1;
+    }
+
+
+    /**
+     * @param hash Hash to mix.
+     *
+     * @return MurmurHash3 64-bit finaliser of the hash.
+     */
+    private static long mix(long hash) {
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+
+    } // mix().
+
+
+} // BloomFilter{}.
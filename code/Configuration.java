@@ -18,6 +18,8 @@ public class Configuration {
 
     public LogFileWriter log_;
     public String logFile_ = "../logs/filetreebrowser.log";
+    public String indexSnapshotFile_ = "../logs/filetreebrowser-index.snapshot"; // File index, saved between runs.
+    public String digestStoreFile_ = "../logs/filetreebrowser-digests.store"; // File digests, saved between runs.
 
     // These default values are overridden by the properties file.
     public String mAddr_ = "239.255.41.05"; // CS4105 group multicast address.
@@ -30,9 +32,26 @@ public class Configuration {
 
     // Application config - default values.
     public String rootDir_ = "../root_dir"; // Root directory is parallel to code/ directory.
+    public String stagingDir_ = "../staging_dir"; // Part files of transfers in progress, kept outside the root directory.
     public String id_; // System.getProperty("user.name") @ fqdn;
     public int maximumDiscoveryMessageSize_ = 500; // Bytes.
     public int maximumBeaconPeriod_ = 1000; // ms.
+    public int beaconBandwidth_ = 2000; // Bytes/s, shared by the beacons of all file browsers in the group.
+    public int receiverQueueCapacity_ = 1024; // Messages waiting per receiver before new ones are dropped.
+    public int requestTimeout_ = 10000; // ms, time to wait for responses to our requests.
+    public int transferRetries_ = 3; // Times a download or upload that fails part way is resumed before giving up.
+    public int downloadStreams_ = 4; // Concurrent connections a large download is split over; 1 for one stream.
+    public long parallelDownloadSize_ = 16L * 1024 * 1024; // Bytes, smallest file downloaded over several streams.
+    public String[] swarmDownloadOptions_ = {"true", "false"};
+    public boolean swarmDownload_ = true; // Whether large files are downloaded from every peer with an identical copy.
+    public long swarmChunkSize_ = 4L * 1024 * 1024; // Bytes, piece of a swarm download asked of one peer at a time.
+    public int searchCacheSize_ = 100000; // Search results (paths) the search cache may hold in total.
+    public int searchThreads_ = 4; // Threads performing search requests concurrently.
+    public int searchDeadline_ = 5000; // ms, time to gather responses to our search requests before showing them.
+    public int searchMaxResults_ = 100; // Most results asked of each peer per page of our searches, 0 for all.
+    public int catalogSize_ = 4096; // Bytes, largest BloomFilter of our file names sent in catalog messages.
+    public int digestThreads_ = 2; // Threads computing file digests in the background, for hash searches.
+    public int patternBudget_ = 250; // ms, most time one glob or regex search may spend matching names.
 
     public String[] remoteBrowseOptions_ = {"true", "false"};
     public boolean remoteBrowse_ = false; // Only local browsing.
@@ -40,7 +59,8 @@ public class Configuration {
     public String[] searchOptions_ = {"true", "false"}; // Could have been enum.
     public boolean search_ = false; // from searchOptions_
 
-    public static final String[] searchMatchOptions_ = {"none", "path", "path-filename", "path-filename-substring"};
+    public static final String[] searchMatchOptions_ = {"none", "path", "path-filename", "path-filename-substring",
+            "path-filename-substring-glob-regex"};
     public String searchMatch_ = "none"; // from searchMatchOptions_
 
     public String[] remoteDownloadOptions_ = {"true", "false"};
@@ -49,6 +69,16 @@ public class Configuration {
     public boolean upload_ = false;
     public String[] remoteDeleteOptions_ = {"true", "false"};
     public boolean delete_ = false;
+    public String[] batchResultsOptions_ = {"true", "false"};
+    public boolean batchResults_ = false; // Several search results per search-results message.
+    public String[] searchStreamOptions_ = {"true", "false"};
+    public boolean searchStream_ = false; // Search results sent as they are found, followed by search-end.
+    public String[] catalogOptions_ = {"true", "false"};
+    public boolean catalog_ = false; // BloomFilter of our file names sent to peers, theirs used to skip waiting.
+    public String[] hashSearchOptions_ = {"true", "false"};
+    public boolean hashSearch_ = false; // Searches for files by the SHA-256 digest of their content.
+    public String[] transferCheckOptions_ = {"true", "false"};
+    public boolean transferCheck_ = false; // Downloads and uploads checked by a CRC-32C trailer, with peers that do too.
 
     // These should not be loaded from a config file, of course.
     public InetAddress mGroup_;
@@ -77,6 +107,8 @@ public class Configuration {
             hostInfo_ = hostname + " " + inetAddress.getHostAddress();
             id_ = System.getProperty("user.name") + "@" + hostname;
             logFile_ = "../logs/" + id_ + "-log.log";
+            indexSnapshotFile_ = "../logs/" + id_ + "-index.snapshot";
+            digestStoreFile_ = "../logs/" + id_ + "-digests.store";
 
             properties_ = new Properties();
             InputStream p = getClass().getClassLoader().getResourceAsStream(propertiesFile_);
@@ -89,6 +121,16 @@ public class Configuration {
                     logFile_ = s;
                 }
 
+                if ((s = properties_.getProperty("indexSnapshotFile")) != null) {
+                    System.out.println(propertiesFile_ + " indexSnapshotFile: " + indexSnapshotFile_ + " -> " + s);
+                    indexSnapshotFile_ = s;
+                }
+
+                if ((s = properties_.getProperty("digestStoreFile")) != null) {
+                    System.out.println(propertiesFile_ + " digestStoreFile: " + digestStoreFile_ + " -> " + s);
+                    digestStoreFile_ = s;
+                }
+
                 if ((s = properties_.getProperty("id")) != null) {
                     System.out.println(propertiesFile_ + " id: " + id_ + " -> " + s);
                     id_ = s + "@" + hostname;
@@ -99,6 +141,11 @@ public class Configuration {
                     rootDir_ = s;
                 }
 
+                if ((s = properties_.getProperty("stagingDir")) != null) {
+                    System.out.println(propertiesFile_ + " stagingDir: " + stagingDir_ + " -> " + s);
+                    stagingDir_ = s;
+                }
+
                 if ((s = properties_.getProperty("mAddr")) != null) {
                     System.out.println(propertiesFile_ + " mAddr: " + mAddr_ + " -> " + s);
                     mAddr_ = s;
@@ -151,6 +198,99 @@ public class Configuration {
                     // should check for "sensible" period value
                 }
 
+                if ((s = properties_.getProperty("beaconBandwidth")) != null) {
+                    System.out.println(propertiesFile_ + " beaconBandwidth: " + beaconBandwidth_ + " -> " + s);
+                    beaconBandwidth_ = Integer.parseInt(s);
+                    // should check for "sensible" bandwidth value
+                }
+
+                if ((s = properties_.getProperty("receiverQueueCapacity")) != null) {
+                    System.out.println(propertiesFile_ + " receiverQueueCapacity: " + receiverQueueCapacity_ + " -> " + s);
+                    receiverQueueCapacity_ = Integer.parseInt(s);
+                    // should check for "sensible" capacity value
+                }
+
+                if ((s = properties_.getProperty("transferRetries")) != null) {
+                    System.out.println(propertiesFile_ + " transferRetries: " + transferRetries_ + " -> " + s);
+                    transferRetries_ = Integer.parseInt(s);
+                    // should check for "sensible" count
+                }
+
+                if ((s = properties_.getProperty("downloadStreams")) != null) {
+                    System.out.println(propertiesFile_ + " downloadStreams: " + downloadStreams_ + " -> " + s);
+                    downloadStreams_ = Integer.parseInt(s);
+                    // should check for "sensible" count
+                }
+
+                if ((s = properties_.getProperty("parallelDownloadSize")) != null) {
+                    System.out.println(propertiesFile_ + " parallelDownloadSize: " + parallelDownloadSize_ + " -> " + s);
+                    parallelDownloadSize_ = Long.parseLong(s);
+                    // should check for "sensible" size value
+                }
+
+                if ((s = properties_.getProperty("swarmDownload")) != null) {
+                    if (!checkOption(s, swarmDownloadOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'swarmDownload': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " swarmDownload: " + swarmDownload_ + " -> " + s);
+                    swarmDownload_ = Boolean.parseBoolean(s);
+                }
+
+                if ((s = properties_.getProperty("swarmChunkSize")) != null) {
+                    System.out.println(propertiesFile_ + " swarmChunkSize: " + swarmChunkSize_ + " -> " + s);
+                    swarmChunkSize_ = Long.parseLong(s);
+                    // should check for "sensible" size value
+                }
+
+                if ((s = properties_.getProperty("requestTimeout")) != null) {
+                    System.out.println(propertiesFile_ + " requestTimeout: " + requestTimeout_ + " -> " + s);
+                    requestTimeout_ = Integer.parseInt(s);
+                    // should check for "sensible" timeout value
+                }
+
+                if ((s = properties_.getProperty("searchCacheSize")) != null) {
+                    System.out.println(propertiesFile_ + " searchCacheSize: " + searchCacheSize_ + " -> " + s);
+                    searchCacheSize_ = Integer.parseInt(s);
+                    // should check for "sensible" size value
+                }
+
+                if ((s = properties_.getProperty("searchThreads")) != null) {
+                    System.out.println(propertiesFile_ + " searchThreads: " + searchThreads_ + " -> " + s);
+                    searchThreads_ = Integer.parseInt(s);
+                    // should check for "sensible" thread count
+                }
+
+                if ((s = properties_.getProperty("searchDeadline")) != null) {
+                    System.out.println(propertiesFile_ + " searchDeadline: " + searchDeadline_ + " -> " + s);
+                    searchDeadline_ = Integer.parseInt(s);
+                    // should check for "sensible" timeout value
+                }
+
+                if ((s = properties_.getProperty("searchMaxResults")) != null) {
+                    System.out.println(propertiesFile_ + " searchMaxResults: " + searchMaxResults_ + " -> " + s);
+                    searchMaxResults_ = Integer.parseInt(s);
+                    // should check for "sensible" count
+                }
+
+                if ((s = properties_.getProperty("digestThreads")) != null) {
+                    System.out.println(propertiesFile_ + " digestThreads: " + digestThreads_ + " -> " + s);
+                    digestThreads_ = Integer.parseInt(s);
+                    // should check for "sensible" thread count
+                }
+
+                if ((s = properties_.getProperty("patternBudget")) != null) {
+                    System.out.println(propertiesFile_ + " patternBudget: " + patternBudget_ + " -> " + s);
+                    patternBudget_ = Integer.parseInt(s);
+                    // should check for "sensible" time value
+                }
+
+                if ((s = properties_.getProperty("catalogSize")) != null) {
+                    System.out.println(propertiesFile_ + " catalogSize: " + catalogSize_ + " -> " + s);
+                    catalogSize_ = Integer.parseInt(s);
+                    // should check for "sensible" size value
+                }
+
         /*
           Should check values of remoteBrowse, search, searchMatch values
 
@@ -212,14 +352,71 @@ public class Configuration {
                     delete_ = Boolean.parseBoolean(s);
                 }
 
+                if ((s = properties_.getProperty("batchResults")) != null) {
+                    if (!checkOption(s, batchResultsOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'batchResults': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " batchResults: " + batchResults_ + " -> " + s);
+                    batchResults_ = Boolean.parseBoolean(s);
+                }
+
+                if ((s = properties_.getProperty("searchStream")) != null) {
+                    if (!checkOption(s, searchStreamOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'searchStream': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " searchStream: " + searchStream_ + " -> " + s);
+                    searchStream_ = Boolean.parseBoolean(s);
+                }
+
+                if ((s = properties_.getProperty("catalog")) != null) {
+                    if (!checkOption(s, catalogOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'catalog': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " catalog: " + catalog_ + " -> " + s);
+                    catalog_ = Boolean.parseBoolean(s);
+                }
+
+                if ((s = properties_.getProperty("hashSearch")) != null) {
+                    if (!checkOption(s, hashSearchOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'hashSearch': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " hashSearch: " + hashSearch_ + " -> " + s);
+                    hashSearch_ = Boolean.parseBoolean(s);
+                }
+
+                if ((s = properties_.getProperty("transferCheck")) != null) {
+                    if (!checkOption(s, transferCheckOptions_)) {
+                        System.out.println(propertiesFile_ + " bad value for 'transferCheck': '" + s + "' -> using 'false'");
+                        s = "false";
+                    }
+                    System.out.println(propertiesFile_ + " transferCheck: " + transferCheck_ + " -> " + s);
+                    transferCheck_ = Boolean.parseBoolean(s);
+                }
+
                 p.close();
 
             } // (p != null).
 
+            // Part files must never be shared, so the staging directory may not be inside the root directory.
+            File root = new File(rootDir_).getCanonicalFile();
+            if (root.getParentFile() != null
+                    && (new File(stagingDir_).getCanonicalPath() + File.separator).startsWith(root.getPath() + File.separator)) {
+                String s = new File(root.getParentFile(), root.getName() + "-staging").getPath();
+                System.out.println(propertiesFile_ + " stagingDir: " + stagingDir_ + " is inside rootDir -> " + s);
+                stagingDir_ = s;
+            }
+
             log_ = new LogFileWriter(logFile_);
             log_.writeLog("-* logFile=" + logFile_, true);
+            log_.writeLog("-* indexSnapshotFile=" + indexSnapshotFile_, true);
+            log_.writeLog("-* digestStoreFile=" + digestStoreFile_, true);
             log_.writeLog("-* id=" + id_, true);
             log_.writeLog("-* rootDir=" + rootDir_, true);
+            log_.writeLog("-* stagingDir=" + stagingDir_, true);
             log_.writeLog("-* mAddr=" + mAddr_, true);
             log_.writeLog("-* mPort=" + mPort_, true);
             log_.writeLog("-* mTTL=" + mTTL_, true);
@@ -229,12 +426,32 @@ public class Configuration {
             log_.writeLog("-* sleepTime=" + sleepTime_, true);
             log_.writeLog("-* maximumDiscoveryMessageSize=" + maximumDiscoveryMessageSize_, true);
             log_.writeLog("-* maximumBeaconPeriod=" + maximumBeaconPeriod_, true);
+            log_.writeLog("-* beaconBandwidth=" + beaconBandwidth_, true);
+            log_.writeLog("-* receiverQueueCapacity=" + receiverQueueCapacity_, true);
+            log_.writeLog("-* requestTimeout=" + requestTimeout_, true);
+            log_.writeLog("-* transferRetries=" + transferRetries_, true);
+            log_.writeLog("-* downloadStreams=" + downloadStreams_, true);
+            log_.writeLog("-* parallelDownloadSize=" + parallelDownloadSize_, true);
+            log_.writeLog("-* swarmDownload=" + swarmDownload_, true);
+            log_.writeLog("-* swarmChunkSize=" + swarmChunkSize_, true);
+            log_.writeLog("-* searchCacheSize=" + searchCacheSize_, true);
+            log_.writeLog("-* searchThreads=" + searchThreads_, true);
+            log_.writeLog("-* searchDeadline=" + searchDeadline_, true);
+            log_.writeLog("-* searchMaxResults=" + searchMaxResults_, true);
+            log_.writeLog("-* catalogSize=" + catalogSize_, true);
+            log_.writeLog("-* digestThreads=" + digestThreads_, true);
+            log_.writeLog("-* patternBudget=" + patternBudget_, true);
             log_.writeLog("-* remoteBrowse=" + remoteBrowse_, true);
             log_.writeLog("-* search=" + search_, true);
             log_.writeLog("-* searchMatch=" + searchMatch_, true);
             log_.writeLog("-* download=" + download_, true);
             log_.writeLog("-* upload=" + upload_, true);
             log_.writeLog("-* delete=" + delete_, true);
+            log_.writeLog("-* batchResults=" + batchResults_, true);
+            log_.writeLog("-* searchStream=" + searchStream_, true);
+            log_.writeLog("-* catalog=" + catalog_, true);
+            log_.writeLog("-* hashSearch=" + hashSearch_, true);
+            log_.writeLog("-* transferCheck=" + transferCheck_, true);
 
         } catch (NumberFormatException | IOException e) {
             System.err.println("Configuration.Configuration() Error: " + e.getMessage());
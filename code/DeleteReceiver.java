@@ -1,24 +1,17 @@
 import java.io.File;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
 
 /**
  * DeleteReceiver is a class used for handling delete messages received by MulticastHandler in a separate thread.
  *
  * @author 170004680, Nov 2020.
  */
-public class DeleteReceiver implements Runnable {
+public class DeleteReceiver implements Runnable, RequestTable.Listener {
 
 
     MulticastHandler multicastHandler; // Instance of MulticastHandler used.
     Configuration configuration; // Configuration of MulticastHandler.
 
-    HashMap<String, Message> outgoingDeleteRequests; // HashMap of active download requests that have been sent.
-    HashMap<String, Message> incomingDeleteMessages; // HashMap of incoming download messages pending processing.
+    MessageQueue incomingDeleteMessages; // Incoming delete messages pending processing.
 
 
     /**
@@ -31,8 +24,7 @@ public class DeleteReceiver implements Runnable {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
 
-        this.outgoingDeleteRequests = new HashMap<>(); // HashMap of active download requests that have been sent.
-        this.incomingDeleteMessages = new HashMap<>(); // HashMap of incoming download messages pending processing.
+        this.incomingDeleteMessages = new MessageQueue(configuration.receiverQueueCapacity_); // Incoming messages pending processing.
 
         // Create thread for managing handling search messages from multicast group.
         Thread thread = new Thread(this);
@@ -51,7 +43,8 @@ public class DeleteReceiver implements Runnable {
 
         do { // Do until application terminated.
 
-            processIncomingDeleteMessages();
+            // Sleeps until the multicast thread hands over a message.
+            processIncomingDeleteMessage(incomingDeleteMessages.take());
 
         } while (true);
 
@@ -59,83 +52,60 @@ public class DeleteReceiver implements Runnable {
 
 
     /**
-     * Process incoming delete messages.
+     * Process an incoming delete message.
+     *
+     * @param message Message handed over by the multicast thread.
      */
-    public synchronized void processIncomingDeleteMessages() {
-
-        LinkedList<String> messagesToRemove = new LinkedList<>();
-
-        // Loop over incoming messages and process them.
-        Iterator<Map.Entry<String, Message>> messageIterator = incomingDeleteMessages.entrySet().iterator();
-        while (messageIterator.hasNext()) {
-
-            // Get current message to process.
-            Map.Entry<String, Message> entry = messageIterator.next();
-            String messageIdentifier = entry.getKey();
-            Message message = entry.getValue();
-
-            // If delete request, then process the delete request.
-            if (message.getPayloadType().equalsIgnoreCase("delete-request")) {
-
-                try {
-
-                    // Check the request is for us by verifying that the identifier is for this machine.
-                    String ourIdentifier = System.getProperty("user.name") + "@" + InetAddress.getLocalHost().getCanonicalHostName();
-                    if (message.getTargetPeerIdentifier().equals(ourIdentifier)) {
-
-                        String addedSeparator = "";
-                        if (message.getTargetFilePath().charAt(0) != '/') {
-                            addedSeparator = "/";
-                        }
-                        String deleteFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
-
-                        File fileRequestedDelete = new File(deleteFileRootPath);
+    public void processIncomingDeleteMessage(Message message) {
 
-                        // Check the requested file to delete exists in the root dir and that it can be opened and sent.
-                        if (fileRequestedDelete.exists() && fileRequestedDelete.isFile()
-                                && !message.getTargetFilePath().contains("..") && fileRequestedDelete.delete()) {
+        // If delete request, then process the delete request.
+        if (message.getPayloadType().equalsIgnoreCase("delete-request")) {
 
-                            // Send a delete-result message as the file was successfully deleted.
-                            Message deleteResult = Message.deleteResultMessage(message.getIdentifier(), message.getSerialNumber());
-                            multicastHandler.txMessage(deleteResult);
+            // Check the request is for us by verifying that the identifier is for this machine.
+            if (message.getTargetPeerIdentifier().equals(Message.localIdentifier())) {
 
-                        } else { // If delete request file path does not exist, or is not a file, or could not be deleted.
-
-                            // Send a delete-error message to the peer that made the request.
-                            Message deleteError = Message.deleteErrorMessage(message.getIdentifier(), message.getSerialNumber());
-                            multicastHandler.txMessage(deleteError);
+                String addedSeparator = "";
+                if (message.getTargetFilePath().charAt(0) != '/') {
+                    addedSeparator = "/";
+                }
+                String deleteFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
 
-                        } // if (requested file can be deleted).
+                File fileRequestedDelete = new File(deleteFileRootPath);
 
-                    } // If delete request not for this machine, then ignore this message.
+                // Check the requested file to delete exists in the root dir and that it can be opened and sent.
+                if (fileRequestedDelete.exists() && fileRequestedDelete.isFile()
+                        && !message.getTargetFilePath().contains("..") && fileRequestedDelete.delete()) {
 
+                    // Remove the file from the index now, so searches stop finding it straight away.
+                    multicastHandler.fileIndex.deleted(fileRequestedDelete.toPath());
 
-                } catch (UnknownHostException e) {
-                    System.err.println("DeleteReceiver.processIncomingDeleteMessages() Error - Could not get hostname: " + e.getMessage());
-                }
+                    // Send a delete-result message as the file was successfully deleted.
+                    Message deleteResult = Message.deleteResultMessage(message.getIdentifier(), message.getSerialNumber());
+                    multicastHandler.txMessage(deleteResult);
 
-            } else { // Otherwise, a delete-result or delete-error.
+                } else { // If delete request file path does not exist, or is not a file, or could not be deleted.
 
-                String incomingMessageIdentifier = message.getResponseIDSerialNum();
+                    // Send a delete-error message to the peer that made the request.
+                    Message deleteError = Message.deleteErrorMessage(message.getIdentifier(), message.getSerialNumber());
+                    multicastHandler.txMessage(deleteError);
 
-                // Check response-id and serial number matches a message in the outgoing structure.
-                if (outgoingDeleteRequests.containsKey(incomingMessageIdentifier)) { // Match for one of our requests.
+                } // if (requested file can be deleted).
 
-                    Message initialRequest = outgoingDeleteRequests.get(incomingMessageIdentifier);
-                    showDeleteResponse(initialRequest, message);
+            } // If delete request not for this machine, then ignore this message.
 
-                } // If not a result for one of our requests, then ignore.
+        } else { // Otherwise, a delete-result or delete-error.
 
-            } // Anything else does not conform to the protocol so ignore.
+            // Check response-id and serial number match one of our outstanding requests; only the first response counts.
+            Message initialRequest = multicastHandler.requestTable.complete(message, this);
+            if (initialRequest != null) { // Match for one of our requests.
 
-            messagesToRemove.add(messageIdentifier);
+                showDeleteResponse(initialRequest, message);
 
-        } // for (all incoming messages).
+            } // If not a result for one of our outstanding requests, then ignore.
 
-        // Remove incoming messages once processed.
-        removeProcessedMessages(incomingDeleteMessages, messagesToRemove);
+        } // Anything else does not conform to the protocol so ignore.
 
-    } // processIncomingDeleteMessages().
+    } // processIncomingDeleteMessage().
 
 
     /**
@@ -144,9 +114,7 @@ public class DeleteReceiver implements Runnable {
      * @param outgoing Whether to add the message to the outgoing or incoming messages structure.
      * @param message Message to add to the message structures.
      */
-    public synchronized void addMessage(boolean outgoing, Message message) {
-
-        // Synchronised to prevent simultaneous adding and removing issues due to threading.
+    public void addMessage(boolean outgoing, Message message) {
 
         // Create key for message structures.
         String messageIdentifier = message.getIdentifier() + ":" + message.getSerialNumber();
@@ -154,21 +122,15 @@ public class DeleteReceiver implements Runnable {
         // Determine which structure to add message to.
         if (!outgoing) {
 
-            // Incoming download messages are messages from other peers to respond to.
-            if (incomingDeleteMessages.get(messageIdentifier) == null) { // Add if new.
-                incomingDeleteMessages.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                incomingDeleteMessages.replace(messageIdentifier, message);
+            // Incoming delete messages are messages from other peers to respond to, handed to this receiver's thread.
+            if (!incomingDeleteMessages.offer(message)) {
+                configuration.log_.writeLog("DeleteReceiver Queue Full - Dropped: " + message.getPayloadType() + " From " + messageIdentifier); // Create log.
             }
 
         } else {
 
-            // Outgoing download messages are messages that have been sent out and are awaiting answers.
-            if (outgoingDeleteRequests.get(messageIdentifier) == null) { // Add if new.
-                outgoingDeleteRequests.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                outgoingDeleteRequests.replace(messageIdentifier, message);
-            }
+            // Outgoing delete messages are messages that have been sent out and are awaiting answers, until they time out.
+            multicastHandler.requestTable.register(message, configuration.requestTimeout_, this);
 
         } // if (outgoing or not).
 
@@ -176,16 +138,25 @@ public class DeleteReceiver implements Runnable {
 
 
     /**
-     * Remove processed messages from list of search messages to process.
+     * Called by the request table when one of our delete requests completes, i.e. is answered or times out.
      *
-     * @param incomingMessages Structure of incoming messages to be processed.
-     * @param messagesToRemove List of messages that have been processed and should be removed from incomingMessages.
+     * @param request The delete request that has completed.
+     * @param responseCount Number of responses received for the request.
      */
-    public synchronized void removeProcessedMessages(HashMap<String, Message> incomingMessages, LinkedList<String> messagesToRemove) {
+    @Override
+    public void requestCompleted(Message request, int responseCount) {
+
+        if (responseCount == 0) { // Nobody answered before the request timed out, so let the user know.
 
-        incomingMessages.entrySet().removeIf(entry -> messagesToRemove.contains(entry.getKey()));
+            System.out.println("----------------------------------------------");
+            System.out.println("Delete Request: Delete At: " + request.getTargetPeerIdentifier()
+                + ", File To Delete: " + request.getTargetFilePath());
+            System.out.println("Delete Result: No response from " + request.getTargetPeerIdentifier() + ".");
+            System.out.println("----------------------------------------------");
+
+        }
 
-    } // removeProcessedMessages().
+    } // requestCompleted().
 
 
     /**
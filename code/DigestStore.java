@@ -0,0 +1,537 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * DigestStore holds the SHA-256 digest of the content of every file below the root directory, used to answer searches
+ * of type 'hash', so identical content can be found anywhere on the LAN without transferring files to compare them.
+ *
+ * Digests are computed in the background by a pool of digestThreads_ workers, once the FileIndex is ready, for every
+ * indexed file and then for each file the index is told of. A digest is kept under the file's key: its inode (the file
+ * system's file key, or its path where there is none), size and last modified time. The watch service does not report
+ * files written in place, so the key of each file a search would return is checked again first, and a file whose key
+ * has changed is not a result until its digest has been computed again.
+ *
+ * The digests are saved between runs, so at start up a file whose key is unchanged (even if it has been renamed) is
+ * not read again. A file modified within the resolution of its file system's clock may change again without its key
+ * changing, so its digest is used but not saved.
+ *
+ * Format (big-endian; a string is an int byte count followed by that many bytes of UTF-8):
+ *   int magic, int version, string root directory,
+ *   then per file: string key, 32 bytes digest.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class DigestStore implements Runnable, FileIndex.Listener {
+
+
+    private static final int MAGIC = 0x46544244; // "FTBD".
+    private static final int VERSION = 1; // Format version; stores of other versions are ignored.
+    private static final int DIGEST_BYTES = 32; // Length of a SHA-256 digest.
+    private static final int READ_BUFFER_SIZE = 64 * 1024; // Bytes read from a file at a time while digesting it.
+    private static final long RACY_MILLIS = 2000; // Files modified this recently may change unnoticed.
+    private static final long SAVE_INTERVAL = 30000; // ms, longest a new digest waits before the store is saved.
+
+
+    /**
+     * Digest of a file, as it was when it was read.
+     */
+    private static final class Digest {
+
+        final String key; // Key of the file when it was read.
+        final String hex; // Lower case hexadecimal SHA-256 digest of its content.
+        final boolean trusted; // Whether the file was modified long enough before it was read for its key to be saved.
+
+        Digest(String key, String hex, boolean trusted) {
+            this.key = key;
+            this.hex = hex;
+            this.trusted = trusted;
+        }
+
+    } // Digest{}.
+
+
+    private final Configuration configuration; // Configuration of the file browser.
+    private final FileIndex fileIndex; // Index of the files to digest.
+    private final Path root; // Absolute, normalised root directory.
+    private final Path storeFile; // Where the digests are saved between runs.
+
+    private final ConcurrentHashMap<String, Digest> byPath; // Digest of every file digested, by path from the root.
+    private final ConcurrentHashMap<String, Set<String>> byDigest; // Paths of the files digested, by digest.
+    private final ConcurrentHashMap<String, String> saved; // Digests loaded from the store, by key.
+    private final Set<String> queued; // Paths waiting to be digested, so a file is not queued twice.
+    private final ThreadPoolExecutor digestPool; // Workers computing digests.
+
+    private volatile boolean changed; // Whether a digest has been added since the store was saved.
+
+
+    /**
+     * Constructor: Creates an empty store and starts the thread that loads it and queues the indexed files.
+     *
+     * @param configuration Configuration of the file browser, giving the root directory and store file.
+     * @param fileIndex Index of the files to digest, told of their changes.
+     */
+    DigestStore(Configuration configuration, FileIndex fileIndex) {
+
+        this.configuration = configuration;
+        this.fileIndex = fileIndex;
+        this.root = Paths.get(configuration.rootDir_).toAbsolutePath().normalize();
+        this.storeFile = Paths.get(configuration.digestStoreFile_);
+        this.byPath = new ConcurrentHashMap<>();
+        this.byDigest = new ConcurrentHashMap<>();
+        this.saved = new ConcurrentHashMap<>();
+        this.queued = ConcurrentHashMap.newKeySet();
+
+        int threads = Math.max(1, configuration.digestThreads_);
+        this.digestPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread worker = new Thread(runnable, "DigestWorker");
+                    worker.setDaemon(true);
+                    worker.setPriority(Thread.MIN_PRIORITY); // Never ahead of searches and transfers.
+                    return worker;
+                });
+
+        fileIndex.addListener(this);
+
+        // Create thread for loading the store, queueing the indexed files and saving the store as it changes.
+        Thread thread = new Thread(this, "DigestStore");
+        thread.setDaemon(true);
+        thread.start();
+
+    } // DigestStore().
+
+
+    /**
+     * Load the saved digests, queue every indexed file once the index is ready, then save the store from time to time
+     * while digests are added.
+     */
+    @Override
+    public void run() {
+
+        long start = System.currentTimeMillis();
+        load();
+
+        try {
+            fileIndex.awaitReady();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        List<String> files = fileIndex.files();
+        files.forEach(this::queue);
+
+        configuration.log_.writeLog("Digest Store Loaded: " + saved.size() + " Digests In "
+                + (System.currentTimeMillis() - start) + "ms, " + files.size() + " Files Queued"); // Create log.
+
+        do { // Do until application terminated.
+
+            try {
+                Thread.sleep(SAVE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (changed) {
+                save();
+            }
+
+        } while (true);
+
+    } // run().
+
+
+    /**
+     * Called by the file index when a file or directory is added or removed: digest the file again, or forget it.
+     *
+     * @param path Path of the file or directory from the root directory.
+     * @param directory Whether it is a directory.
+     */
+    @Override
+    public void indexChanged(String path, boolean directory) {
+
+        if (!directory) {
+            queue(path);
+        }
+
+    } // indexChanged().
+
+
+    /**
+     * Find every file with the given content.
+     *
+     * @param hex SHA-256 digest of the content, in hexadecimal, of either case.
+     *
+     * @return Paths (from the root directory) of the files digested with that content, and unchanged since.
+     */
+    public List<String> find(String hex) {
+
+        List<String> results = new ArrayList<>();
+
+        Set<String> paths = byDigest.get(FileIndex.fold(hex.trim()));
+        if (paths == null) {
+            return results;
+        }
+
+        for (String path : paths) {
+
+            Digest digest = byPath.get(path);
+            if (digest != null && digest.key.equals(key(path))) {
+                results.add(path);
+            } else {
+                queue(path); // Changed since it was read, or gone.
+            }
+
+        } // for (all paths with the digest).
+
+        return results;
+
+    } // find().
+
+
+    /**
+     * Give the digest of one file, if it is known and the file is unchanged since it was read.
+     *
+     * @param path Path of the file from the root directory.
+     *
+     * @return Lower case hexadecimal SHA-256 digest of its content, "" if not known yet (it is then queued).
+     */
+    public String digestOf(String path) {
+
+        Digest digest = byPath.get(path);
+        if (digest != null && digest.key.equals(key(path))) {
+            return digest.hex;
+        }
+
+        queue(path); // Not read yet, or changed since.
+        return "";
+
+    } // digestOf().
+
+
+    /**
+     * @return Number of files digested.
+     */
+    public int size() {
+        return byPath.size();
+    }
+
+
+    /**
+     * Queue a file to be digested, unless it is already waiting.
+     *
+     * @param path Path of the file from the root directory.
+     */
+    private void queue(String path) {
+
+        if (queued.add(path)) {
+            digestPool.execute(() -> {
+                queued.remove(path); // Removed first, so a change made while it is read queues it again.
+                digest(path);
+            });
+        }
+
+    } // queue().
+
+
+    /**
+     * Bring the digest of one file up to date: taken from the store if its key is unchanged since it was saved, read
+     * otherwise, and forgotten if the file is gone.
+     *
+     * @param path Path of the file from the root directory.
+     */
+    private void digest(String path) {
+
+        String key = key(path);
+        if (key == null) {
+            forget(path);
+            return;
+        }
+
+        Digest current = byPath.get(path);
+        if (current != null && current.key.equals(key)) {
+            return; // Unchanged.
+        }
+
+        String hex = saved.get(key);
+        boolean trusted = true;
+        if (hex == null) {
+
+            Path file = root.resolve(path.substring(1));
+            try {
+                hex = sha256(file);
+            } catch (IOException e) {
+                forget(path); // Gone or unreadable.
+                return;
+            }
+
+            if (!key.equals(key(path))) {
+                queue(path); // Written while it was read.
+                return;
+            }
+
+            trusted = !racy(file);
+
+        } // if (not saved).
+
+        Digest digest = new Digest(key, hex, trusted);
+        Digest previous = byPath.put(path, digest);
+        if (previous != null) {
+            removePath(previous.hex, path);
+        }
+        byDigest.computeIfAbsent(hex, k -> ConcurrentHashMap.newKeySet()).add(path);
+
+        if (trusted) {
+            changed = true;
+        }
+
+    } // digest().
+
+
+    /**
+     * Forget the digest of a file that is gone.
+     *
+     * @param path Path of the file from the root directory.
+     */
+    private void forget(String path) {
+
+        Digest previous = byPath.remove(path);
+        if (previous != null) {
+            removePath(previous.hex, path);
+            changed = true;
+        }
+
+    } // forget().
+
+
+    /**
+     * @param hex Digest a file had.
+     * @param path Path of the file from the root directory.
+     */
+    private void removePath(String hex, String path) {
+
+        byDigest.computeIfPresent(hex, (k, paths) -> {
+            paths.remove(path);
+            return paths.isEmpty() ? null : paths;
+        });
+
+    } // removePath().
+
+
+    /**
+     * @param path Path of a file from the root directory.
+     *
+     * @return Key of the file: its inode, size and last modified time, or null if it is not a regular file.
+     */
+    private String key(String path) {
+
+        Path file = root.resolve(path.substring(1));
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        Object fileKey = attributes.fileKey(); // Inode, where the file system has them.
+        return (fileKey == null ? path : fileKey.toString()) + "|" + attributes.size() + "|"
+                + attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+    } // key().
+
+
+    /**
+     * @param file File just read.
+     *
+     * @return True if it was modified within the resolution of its file system's clock, so its key is not trusted.
+     */
+    private static boolean racy(Path file) {
+
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() < RACY_MILLIS;
+        } catch (IOException e) {
+            return true;
+        }
+
+    } // racy().
+
+
+    /**
+     * Compute the SHA-256 digest of a file's content.
+     *
+     * @param file File to read.
+     *
+     * @return Lower case hexadecimal digest.
+     *
+     * @throws IOException File could not be read.
+     */
+    static String sha256(Path file) throws IOException {
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e); // Every Java platform must provide SHA-256.
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return hex(sha256.digest());
+
+    } // sha256().
+
+
+    /**
+     * @param bytes Bytes to format.
+     *
+     * @return Bytes in lower case hexadecimal.
+     */
+    private static String hex(byte[] bytes) {
+
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+
+    } // hex().
+
+
+    /**
+     * Load the digests saved by an earlier run, if they are of the same root directory.
+     */
+    private void load() {
+
+        if (!Files.isRegularFile(storeFile)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(storeFile)))) {
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !getString(in).equals(root.toString())) {
+                return;
+            }
+
+            byte[] digest = new byte[DIGEST_BYTES];
+            do { // Until the end of the file.
+
+                String key;
+                try {
+                    key = getString(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                in.readFully(digest);
+                saved.put(key, hex(digest));
+
+            } while (true);
+
+        } catch (IOException | NegativeArraySizeException e) {
+            System.err.println("DigestStore.load() Error: " + e.getMessage()); // Unreadable or truncated.
+        }
+
+    } // load().
+
+
+    /**
+     * Save the trusted digests of the files currently digested. The store is written alongside and then moved over
+     * the old one, so a store that is being loaded is never only partly written.
+     */
+    private void save() {
+
+        long start = System.currentTimeMillis();
+        changed = false; // Cleared first, so a digest added during the save is not missed.
+
+        Path temporary = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+        int count = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            putString(out, root.toString());
+
+            for (Digest digest : byPath.values()) {
+
+                if (!digest.trusted) {
+                    continue;
+                }
+
+                putString(out, digest.key);
+                for (int i = 0; i < DIGEST_BYTES; i++) {
+                    out.writeByte(Character.digit(digest.hex.charAt(2 * i), 16) << 4
+                            | Character.digit(digest.hex.charAt(2 * i + 1), 16));
+                }
+                count++;
+
+            } // for (all files digested).
+
+        } catch (IOException e) {
+            System.err.println("DigestStore.save() Error: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temporary, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("DigestStore.save() Error: " + e.getMessage());
+            return;
+        }
+
+        configuration.log_.writeLog("Digest Store Saved: " + count + " Digests In "
+                + (System.currentTimeMillis() - start) + "ms"); // Create log.
+
+    } // save().
+
+
+    /**
+     * @param in Stream positioned at a string.
+     *
+     * @return The string.
+     */
+    private static String getString(DataInputStream in) throws IOException {
+
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+
+    } // getString().
+
+
+    /**
+     * @param out Stream to write to.
+     * @param s String to write.
+     */
+    private static void putString(DataOutputStream out, String s) throws IOException {
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+    } // putString().
+
+
+} // DigestStore{}.
@@ -0,0 +1,309 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * DirectoryWalker visits every file and directory below a starting point, listing directories in parallel.
+ *
+ * Each directory is listed by its own task on a fork-join pool with one thread per core, and its subdirectories are
+ * forked as further tasks, so a cold walk of a large (or slow, e.g. NFS) tree keeps every core busy. Tasks never wait
+ * for their children (they are counted completers), so very deep trees do not deepen the stack. Symbolic links are
+ * followed, but a directory whose file key matches one of its ancestors is reported and not entered, so link loops end.
+ *
+ * A visitor may already know the entries of a directory (e.g. from an index snapshot), and can supply them instead of
+ * the directory being read; subdirectories are still examined, so each can be checked and, if need be, read.
+ *
+ * The visitor is called from several threads at once and must be thread-safe.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class DirectoryWalker {
+
+
+    /**
+     * Receives each file and directory found. Called concurrently.
+     */
+    public interface Visitor {
+
+        /**
+         * @param file File or directory found.
+         * @param directory Whether it is a directory.
+         */
+        void visit(Path file, boolean directory);
+
+        /**
+         * Called before a directory is read.
+         *
+         * @param directory Directory about to be read.
+         * @param attributes Attributes of the directory, read before it is.
+         *
+         * @return Entries of the directory if they are already known, so it need not be read, or null to read it.
+         */
+        default Listing cached(Path directory, BasicFileAttributes attributes) {
+            return null;
+        }
+
+        /**
+         * Called once every entry of a directory has been visited, whether read or cached. Not called for a directory
+         * that could not be read in full.
+         *
+         * @param directory Directory whose entries have been visited.
+         * @param attributes Attributes of the directory, read before its entries were.
+         */
+        default void listed(Path directory, BasicFileAttributes attributes) {
+        }
+
+        /**
+         * Checked before each directory is listed and between its entries. Once true, no further directories are
+         * listed or entries visited, so the walk finishes early (e.g. a search that has found enough results).
+         *
+         * @return True to stop the walk.
+         */
+        default boolean stopped() {
+            return false;
+        }
+
+    } // Visitor{}.
+
+
+    /**
+     * Entries of a directory, as a visitor may know them without reading the directory.
+     */
+    public static final class Listing {
+
+        final String[] names; // Name of each entry.
+        final boolean[] directories; // Whether each entry is a directory.
+
+        public Listing(String[] names, boolean[] directories) {
+            this.names = names;
+            this.directories = directories;
+        }
+
+    } // Listing{}.
+
+
+    /**
+     * File keys of the directories from the starting point down to a directory, for spotting link loops.
+     */
+    private static final class Ancestors {
+
+        final Object fileKey; // File key of this directory, null if the file system has none.
+        final Ancestors parent; // Ancestors of this directory.
+
+        Ancestors(Object fileKey, Ancestors parent) {
+            this.fileKey = fileKey;
+            this.parent = parent;
+        }
+
+        boolean contains(Object key) {
+
+            for (Ancestors a = this; a != null; a = a.parent) {
+                if (key != null && key.equals(a.fileKey)) {
+                    return true;
+                }
+            }
+            return false;
+
+        }
+
+    } // Ancestors{}.
+
+
+    /**
+     * Lists one directory, visiting its entries and forking a task for each subdirectory.
+     */
+    private final class DirectoryTask extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L; // CountedCompleter is Serializable; tasks are never serialised.
+
+        private final Path directory; // Directory to list.
+        private final BasicFileAttributes attributes; // Attributes of the directory, read before it is listed.
+        private final Ancestors ancestors; // This directory and its ancestors.
+        private final Visitor visitor; // Visitor to report entries to.
+
+        DirectoryTask(CountedCompleter<?> parent, Path directory, BasicFileAttributes attributes, Ancestors ancestors,
+                      Visitor visitor) {
+            super(parent);
+            this.directory = directory;
+            this.attributes = attributes;
+            this.ancestors = ancestors;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public void compute() {
+
+            if (visitor.stopped()) {
+                tryComplete();
+                return;
+            }
+
+            Listing listing = visitor.cached(directory, attributes);
+            if (listing != null ? visitListing(listing) : visitDirectory()) {
+                visitor.listed(directory, attributes);
+            }
+
+            tryComplete();
+
+        } // compute().
+
+        /**
+         * @return True if every entry of the directory was read and visited.
+         */
+        private boolean visitDirectory() {
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+
+                for (Path entry : stream) {
+                    if (visitor.stopped()) {
+                        return false;
+                    }
+                    visitEntry(entry);
+                }
+
+            } catch (IOException | DirectoryIteratorException e) {
+                return false; // Unreadable or vanished directory: what was listed has been visited.
+            }
+
+            return true;
+
+        } // visitDirectory().
+
+        /**
+         * @param listing Known entries of the directory.
+         *
+         * @return True if every entry has been visited, false if the walk was stopped first.
+         */
+        private boolean visitListing(Listing listing) {
+
+            for (int i = 0; i < listing.names.length; i++) {
+
+                if (visitor.stopped()) {
+                    return false;
+                }
+
+                Path entry = directory.resolve(listing.names[i]);
+                if (listing.directories[i]) {
+                    visitEntry(entry); // Examined, to check for loops and so its own entries can be checked.
+                } else {
+                    visitor.visit(entry, false);
+                }
+
+            } // for (all entries).
+
+            return true;
+
+        } // visitListing().
+
+        /**
+         * Visit an entry, forking a task for it if it is a directory that does not loop back to an ancestor.
+         *
+         * @param entry Entry of the directory.
+         */
+        private void visitEntry(Path entry) {
+
+            BasicFileAttributes entryAttributes;
+            try {
+                entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class); // Follows links.
+            } catch (IOException e) {
+                visitor.visit(entry, false); // e.g. a broken link: still a name that can be found.
+                return;
+            }
+
+            visitor.visit(entry, entryAttributes.isDirectory());
+
+            if (entryAttributes.isDirectory() && !ancestors.contains(entryAttributes.fileKey())) {
+                addToPendingCount(1);
+                new DirectoryTask(this, entry, entryAttributes, new Ancestors(entryAttributes.fileKey(), ancestors),
+                        visitor).fork();
+            }
+
+        } // visitEntry().
+
+    } // DirectoryTask{}.
+
+
+    private static final ForkJoinPool sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final Path root; // Root directory, to which reported paths are made relative.
+    private final ForkJoinPool pool; // Pool the directories are listed on.
+
+
+    /**
+     * Constructor: Creates a walker for the tree under a root directory, listing directories on the shared pool.
+     *
+     * @param root Root directory.
+     */
+    DirectoryWalker(Path root) {
+        this(root, sharedPool);
+    }
+
+    /**
+     * Constructor: Creates a walker for the tree under a root directory, listing directories on a given pool. Walks on
+     * the same pool are served largely one after another, so a walk that must not wait behind another (e.g. a search
+     * while the index is being built) needs a pool of its own.
+     *
+     * @param root Root directory.
+     * @param pool Pool to list directories on.
+     */
+    DirectoryWalker(Path root, ForkJoinPool pool) {
+        this.root = root.toAbsolutePath().normalize();
+        this.pool = pool;
+    }
+
+
+    /**
+     * Visit a file or directory, and everything below a directory. Returns when the whole tree has been visited, or
+     * when the visitor has stopped the walk and the directories being listed have finished.
+     *
+     * @param start File or directory to start from.
+     * @param visitor Visitor to report each file and directory to (including start).
+     */
+    public void walk(Path start, Visitor visitor) {
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(start, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return; // Nothing there (any more).
+        }
+
+        visitor.visit(start, attributes.isDirectory());
+
+        if (attributes.isDirectory()) {
+            Ancestors ancestors = new Ancestors(attributes.fileKey(), null);
+            pool.invoke(new DirectoryTask(null, start, attributes, ancestors, visitor));
+        }
+
+    } // walk().
+
+
+    /**
+     * @param file File or directory below the root directory.
+     *
+     * @return Path from the root directory, starting with "/", or null for the root directory itself.
+     */
+    public String relativePath(Path file) {
+
+        // Paths the walker reports are resolved from the root directory, so usually the root is a plain prefix.
+        String path = file.toString();
+        String rootPath = root.toString();
+        if (path.length() > rootPath.length() + 1 && path.startsWith(rootPath)
+                && path.charAt(rootPath.length()) == File.separatorChar && path.indexOf("." + File.separator) < 0) {
+            return path.substring(rootPath.length()).replace(File.separatorChar, '/');
+        }
+
+        Path relative = root.relativize(file.toAbsolutePath().normalize());
+        if (relative.toString().isEmpty()) {
+            return null;
+        }
+
+        return "/" + relative.toString().replace(File.separatorChar, '/');
+
+    } // relativePath().
+
+
+} // DirectoryWalker{}.
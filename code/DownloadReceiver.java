@@ -1,10 +1,9 @@
 import java.io.File;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -12,14 +11,29 @@ import java.util.Map;
  *
  * @author 170004680, Nov 2020.
  */
-public class DownloadReceiver implements Runnable {
+public class DownloadReceiver implements Runnable, RequestTable.Listener {
 
 
     MulticastHandler multicastHandler; // Instance of MulticastHandler used.
     Configuration configuration; // Configuration of MulticastHandler.
 
-    HashMap<String, Message> outgoingDownloadRequests; // HashMap of active download requests that have been sent.
-    HashMap<String, Message> incomingDownloadMessages; // HashMap of incoming download messages pending processing.
+    MessageQueue incomingDownloadMessages; // Incoming download messages pending processing.
+    Map<Long, FileTransfer.Resume> resumes = new ConcurrentHashMap<>(); // Our resume requests, by serial number.
+    Map<Long, Part> parts = new ConcurrentHashMap<>(); // Our requests for parts of a file, by serial number.
+
+
+    /**
+     * Part of a download made by several requests (see ParallelDownload and SwarmDownload), told of the answer to the
+     * request for it.
+     */
+    interface Part {
+
+        /**
+         * @param response The download result or error, or null if the request timed out.
+         */
+        void answered(Message response);
+
+    } // Part{}.
 
 
     /**
@@ -32,8 +46,7 @@ public class DownloadReceiver implements Runnable {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
 
-        this.outgoingDownloadRequests = new HashMap<>(); // HashMap of active download requests that have been sent.
-        this.incomingDownloadMessages = new HashMap<>(); // HashMap of incoming messages pending processing.
+        this.incomingDownloadMessages = new MessageQueue(configuration.receiverQueueCapacity_); // Incoming messages pending processing.
 
         // Create thread for managing handling search messages from multicast group.
         Thread thread = new Thread(this);
@@ -51,7 +64,8 @@ public class DownloadReceiver implements Runnable {
 
         do { // Do until application terminated.
 
-            processIncomingDownloadMessages();
+            // Sleeps until the multicast thread hands over a message.
+            processIncomingDownloadMessage(incomingDownloadMessages.take());
 
         } while (true);
 
@@ -59,85 +73,87 @@ public class DownloadReceiver implements Runnable {
 
 
     /**
-     * Process incoming download messages.
+     * Process an incoming download message.
+     *
+     * @param message Message handed over by the multicast thread.
      */
-    public synchronized void processIncomingDownloadMessages() {
+    public void processIncomingDownloadMessage(Message message) {
 
-        LinkedList<String> messagesToRemove = new LinkedList<>();
+        // If download request, then process the download request.
+        if (message.getPayloadType().equalsIgnoreCase("download-request")) {
 
-        // Loop over incoming messages and process them.
-        Iterator<Map.Entry<String, Message>> messageIterator = incomingDownloadMessages.entrySet().iterator();
-        while (messageIterator.hasNext()) {
+            // Check the request is for us by verifying that the downloadIdentifier is for this machine.
+            if (message.getTargetPeerIdentifier().equals(Message.localIdentifier())) {
 
-            // Get current message to process.
-            Map.Entry<String, Message> entry = messageIterator.next();
-            String messageIdentifier = entry.getKey();
-            Message message = entry.getValue();
+                String addedSeparator = "";
+                if (message.getTargetFilePath().charAt(0) != '/') {
+                    addedSeparator = "/";
+                }
+                String downloadFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
 
-            // If download request, then process the download request.
-            if (message.getPayloadType().equalsIgnoreCase("download-request")) {
+                File fileRequestedDownload = new File(downloadFileRootPath);
 
-                try {
+                // Check the requested file to download exists in the root directory and that it can be opened and sent.
+                if (fileRequestedDownload.exists() && fileRequestedDownload.isFile() && !message.getTargetFilePath().contains("..")) {
 
-                    // Check the request is for us by verifying that the downloadIdentifier is for this machine.
-                    String ourIdentifier = System.getProperty("user.name") + "@" + InetAddress.getLocalHost().getCanonicalHostName();
-                    if (message.getTargetPeerIdentifier().equals(ourIdentifier)) {
+                    // Start from the offset asked for, or the end of the file if it is shorter.
+                    long fileSize = fileRequestedDownload.length();
+                    long start = Math.min(message.getTransferOffset(), fileSize);
 
-                        String addedSeparator = "";
-                        if (message.getTargetFilePath().charAt(0) != '/') {
-                            addedSeparator = "/";
+                    // When resuming, send the checksum of the bytes skipped so the requester can check its copy matches.
+                    String prefixChecksum = "";
+                    if (message.getTransferOffset() > 0) {
+                        try {
+                            prefixChecksum = FileTransfer.prefixChecksum(fileRequestedDownload.toPath(), start);
+                        } catch (IOException e) {
+                            multicastHandler.txMessage(Message.downloadErrorMessage(message.getIdentifier(), message.getSerialNumber()));
+                            return;
                         }
-                        String downloadFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
-
-                        File fileRequestedDownload = new File(downloadFileRootPath);
-
-                        // Check the requested file to download exists in the root directory and that it can be opened and sent.
-                        if (fileRequestedDownload.exists() && fileRequestedDownload.isFile() && !message.getTargetFilePath().contains("..")) {
-
-                            // Set up a TCP Server (give port 0 so ephemeral port assigned).
-                            TCPFileServer tcpServer = new TCPFileServer(configuration, downloadFileRootPath, true);
-                            int downloadPort = tcpServer.serverSocket.getLocalPort();
-                            // Send a download-result message with the TCP server ephemeral port.
-                            Message downloadResult = Message.downloadResultMessage(message.getIdentifier(), message.getSerialNumber(), downloadPort);
-                            multicastHandler.txMessage(downloadResult);
+                    }
 
-                        } else { // If download request file path does not exist or is not a file in root, then send error.
+                    // Check the transfer by CRC-32C if the requester does too.
+                    boolean checked = configuration.transferCheck_ && requesterChecks(message);
 
-                            // Send a download-error message to the peer that made the request.
-                            Message downloadError = Message.downloadErrorMessage(message.getIdentifier(), message.getSerialNumber());
-                            multicastHandler.txMessage(downloadError);
+                    // Set up a TCP Server (give port 0 so ephemeral port assigned).
+                    TCPFileServer tcpServer = new TCPFileServer(configuration, downloadFileRootPath, true, multicastHandler.fileIndex,
+                            start, message.getTransferLength(), checked);
+                    int downloadPort = tcpServer.serverSocket.getLocalPort();
+                    // Send a download-result message with the TCP server ephemeral port.
+                    Message downloadResult = Message.downloadResultMessage(message.getIdentifier(), message.getSerialNumber(), downloadPort,
+                            fileSize, prefixChecksum);
+                    // Give the digest of our copy, if known, so the requester can find and check other copies to swarm from.
+                    if (multicastHandler.digestStore != null) {
+                        downloadResult.setTransferContentDigest(
+                                multicastHandler.digestStore.digestOf(addedSeparator + message.getTargetFilePath()));
+                    }
+                    if (checked) {
+                        downloadResult.setTransferCheck(FileTransfer.CHECK_CRC32C);
+                    }
+                    multicastHandler.txMessage(downloadResult);
 
-                        } // if (requested download file can be downloaded).
-
-                    } // if (download request not for this machine).
-
-
-                } catch (UnknownHostException e) {
-                    System.err.println("DownloadReceiver.processIncomingDownloadMessages() Error - Could not get hostname: " + e.getMessage());
-                }
+                } else { // If download request file path does not exist or is not a file in root, then send error.
 
-            } else { // Otherwise, a download-result or download-error.
+                    // Send a download-error message to the peer that made the request.
+                    Message downloadError = Message.downloadErrorMessage(message.getIdentifier(), message.getSerialNumber());
+                    multicastHandler.txMessage(downloadError);
 
-                String incomingMessageIdentifier = message.getResponseIDSerialNum();
+                } // if (requested download file can be downloaded).
 
-                // Check response-id and serial number matches a message in the outgoing structure.
-                if (outgoingDownloadRequests.containsKey(incomingMessageIdentifier)) { // Match for one of our requests.
+            } // if (download request not for this machine).
 
-                    Message initialRequest = outgoingDownloadRequests.get(incomingMessageIdentifier);
-                    showDownloadResponse(initialRequest, message);
+        } else { // Otherwise, a download-result or download-error.
 
-                } // If not a result for one of our requests, then ignore.
+            // Check response-id and serial number match one of our outstanding requests; only the first response counts.
+            Message initialRequest = multicastHandler.requestTable.complete(message, this);
+            if (initialRequest != null) { // Match for one of our requests.
 
-            } // Anything else does not conform to the protocol so ignore.
+                showDownloadResponse(initialRequest, message);
 
-            messagesToRemove.add(messageIdentifier);
+            } // If not a result for one of our outstanding requests, then ignore.
 
-        } // for (all incoming messages).
+        } // Anything else does not conform to the protocol so ignore.
 
-        // Remove incoming messages once processed.
-        removeProcessedMessages(incomingDownloadMessages, messagesToRemove);
-
-    } // processIncomingDownloadMessages().
+    } // processIncomingDownloadMessage().
 
 
     /**
@@ -146,9 +162,7 @@ public class DownloadReceiver implements Runnable {
      * @param outgoing Whether to add the message to the outgoing or incoming messages structure.
      * @param message Message to add to the message structures.
      */
-    public synchronized void addMessage(boolean outgoing, Message message) {
-
-        // Synchronised to prevent simultaneous adding and removing issues due to threading.
+    public void addMessage(boolean outgoing, Message message) {
 
         // Create key for message structures.
         String messageIdentifier = message.getIdentifier() + ":" + message.getSerialNumber();
@@ -156,21 +170,15 @@ public class DownloadReceiver implements Runnable {
         // Determine which structure to add message to.
         if (!outgoing) {
 
-            // Incoming download messages are messages from other peers to respond to.
-            if (incomingDownloadMessages.get(messageIdentifier) == null) { // Add if new.
-                incomingDownloadMessages.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                incomingDownloadMessages.replace(messageIdentifier, message);
+            // Incoming download messages are messages from other peers to respond to, handed to this receiver's thread.
+            if (!incomingDownloadMessages.offer(message)) {
+                configuration.log_.writeLog("DownloadReceiver Queue Full - Dropped: " + message.getPayloadType() + " From " + messageIdentifier); // Create log.
             }
 
         } else {
 
-            // Outgoing download messages are messages that have been sent out and are awaiting answers.
-            if (outgoingDownloadRequests.get(messageIdentifier) == null) { // Add if new.
-                outgoingDownloadRequests.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                outgoingDownloadRequests.replace(messageIdentifier, message);
-            }
+            // Outgoing download messages are messages that have been sent out and are awaiting answers, until they time out.
+            multicastHandler.requestTable.register(message, configuration.requestTimeout_, this);
 
         } // if (outgoing or not).
 
@@ -178,18 +186,33 @@ public class DownloadReceiver implements Runnable {
 
 
     /**
-     * Remove processed messages from list of search messages to process.
+     * Called by the request table when one of our download requests completes, i.e. is answered or times out.
      *
-     * @param incomingMessages Structure of incoming messages to be processed.
-     * @param messagesToRemove List of messages that have been processed and should be removed from incomingMessages.
+     * @param request The download request that has completed.
+     * @param responseCount Number of responses received for the request.
      */
-    public synchronized void removeProcessedMessages(HashMap<String, Message> incomingMessages, LinkedList<String> messagesToRemove) {
+    @Override
+    public void requestCompleted(Message request, int responseCount) {
 
-        // Synchronised to prevent simultaneous adding and removing issues due to threading.
+        if (responseCount == 0) { // Nobody answered before the request timed out, so let the user know.
 
-        incomingMessages.entrySet().removeIf(entry -> messagesToRemove.contains(entry.getKey()));
+            Part part = parts.remove(request.getSerialNumber());
+            if (part != null) {
+                part.answered(null); // Part of a larger download, which asks again or reports.
+                return;
+            }
+
+            resumes.remove(request.getSerialNumber()); // Resume given up on.
 
-    } // removeProcessedMessages().
+            System.out.println("----------------------------------------------");
+            System.out.println("Download Request: Download From: " + request.getTargetPeerIdentifier()
+                + ", File To Download: " + request.getTargetFilePath());
+            System.out.println("Download Result: No response from " + request.getTargetPeerIdentifier() + ".");
+            System.out.println("----------------------------------------------");
+
+        }
+
+    } // requestCompleted().
 
 
     /**
@@ -200,6 +223,12 @@ public class DownloadReceiver implements Runnable {
      */
     public void showDownloadResponse(Message initialRequest, Message downloadResponse) {
 
+        Part part = parts.remove(initialRequest.getSerialNumber());
+        if (part != null) {
+            part.answered(downloadResponse); // Part of a larger download, which reports once it is done.
+            return;
+        }
+
         System.out.println("----------------------------------------------");
 
         System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
@@ -207,23 +236,107 @@ public class DownloadReceiver implements Runnable {
 
         if (downloadResponse.getPayloadType().equalsIgnoreCase("download-result")) {
 
-            // Get file path to save file to.
-            String filePathToSaveTo = FileTreeBrowser.getFile(System.in,true);
+            // Get file path to save file to, unless resuming a download to it.
+            FileTransfer.Resume resume = resumes.remove(initialRequest.getSerialNumber());
+            String filePathToSaveTo = resume != null ? resume.localPath : FileTreeBrowser.getFile(System.in,true);
+            int attempts = resume != null ? resume.attempts : 0;
+            Path localFile = Paths.get(filePathToSaveTo);
+            Path partFile = FileTransfer.partPath(configuration, localFile, FileTransfer.DOWNLOADS); // Downloaded to, until complete.
+
+            // Size of the file at the peer, and where the transfer starts; a peer without resumption always starts at 0.
+            long fileSize = downloadResponse.getTransferFileSize();
+            long start = fileSize < 0 ? 0 : Math.min(initialRequest.getTransferOffset(), fileSize);
+
+            if (start > 0 && !FileTransfer.prefixMatches(partFile, start, downloadResponse.getTransferPrefixChecksum())) {
+
+                // Our copy differs from the peer's, so what we have is of no use: start over.
+                abandon(downloadResponse);
+                System.out.println("Download Result: Local copy differs from " + initialRequest.getTargetPeerIdentifier()
+                        + ", restarting the download.");
+                resume(initialRequest, filePathToSaveTo, 0, attempts);
+
+            } else if (resume == null && 0 < partFile.toFile().length() && partFile.toFile().length() < fileSize) {
+
+                // Part of the file was downloaded before, so ask for the rest instead.
+                long localSize = partFile.toFile().length();
+                abandon(downloadResponse);
+                System.out.println("Download Result: Resuming from byte " + localSize + " of " + fileSize + ".");
+                resume(initialRequest, filePathToSaveTo, localSize, attempts);
+
+            } else if (resume == null && fileSize > 0 && fileSize >= configuration.parallelDownloadSize_
+                    && configuration.swarmDownload_ && !downloadResponse.getTransferContentDigest().isEmpty()) {
+
+                // Large file whose digest is known, so download chunks of it from every peer with the same content.
+                abandon(downloadResponse);
+                SwarmDownload swarmDownload = new SwarmDownload(this, initialRequest, filePathToSaveTo, fileSize,
+                        downloadResponse.getTransferContentDigest());
+                if (swarmDownload.start()) {
+                    System.out.println("Download Result: Downloading " + fileSize + " bytes from every peer with a copy.");
+                } else {
+                    System.out.println("Download Result: Could not download the file.");
+                }
 
-            // Create TCP Client and download the file (connect to identifier and downloadPort).
-            TCPClient tcpClient = new TCPClient(configuration, downloadResponse.getHostname(), downloadResponse.getFileTransferPort());
-            tcpClient.processFile(filePathToSaveTo, true);
+            } else if (resume == null && fileSize > 0 && fileSize >= configuration.parallelDownloadSize_
+                    && configuration.downloadStreams_ > 1) {
 
-            // Output results to the user.
-            System.out.println("Download Result: Successfully downloaded " + initialRequest.getTargetFilePath()
-                    + " From " + initialRequest.getTargetPeerIdentifier());
+                // Large file, so download byte ranges of it over several connections at once instead.
+                abandon(downloadResponse);
+                ParallelDownload parallelDownload = new ParallelDownload(this, initialRequest, filePathToSaveTo, fileSize);
+                if (parallelDownload.start()) {
+                    System.out.println("Download Result: Downloading " + fileSize + " bytes over " + parallelDownload.streams + " streams.");
+                } else {
+                    System.out.println("Download Result: Could not download the file.");
+                }
+
+            } else {
+
+                // Create TCP Client and download the file (connect to identifier and downloadPort).
+                TCPClient tcpClient = new TCPClient(configuration, downloadResponse.getHostname(), downloadResponse.getFileTransferPort());
+                boolean checked = FileTransfer.CHECK_CRC32C.equalsIgnoreCase(downloadResponse.getTransferCheck());
+                long received = tcpClient.processFile(partFile.toString(), true, start, -1, checked);
+                long localSize = partFile.toFile().length();
+                boolean whole = received >= 0 && (fileSize < 0 || start + received == fileSize);
+
+                if (whole) {
+                    try {
+                        // Only a whole file replaces what was there, cut to the bytes received in case nothing arrived
+                        // to cut off what an earlier download left after them.
+                        FileTransfer.commit(partFile, localFile, start + received);
+                    } catch (IOException e) {
+                        System.err.println("DownloadReceiver.showDownloadResponse() IO Exception: " + e.getMessage());
+                        whole = false;
+                        attempts = configuration.transferRetries_; // Downloading again would not help.
+                    }
+                }
 
-            String rootDirName = FileTreeBrowser.getRootDirName();
-            String fileToSaveToRootPath = filePathToSaveTo.split(rootDirName)[1];
-            System.out.println("File Saved To: " + fileToSaveToRootPath + ".");
+                if (!whole && attempts < configuration.transferRetries_) {
+
+                    // Connection dropped part way, or the bytes did not match their checksum, so ask for the rest.
+                    System.out.println("Download Result: Interrupted at byte " + localSize + ", resuming.");
+                    resume(initialRequest, filePathToSaveTo, localSize, attempts + 1);
+
+                } else if (!whole) {
+
+                    System.out.println("Download Result: Could not download the file, " + localSize + " bytes kept in "
+                            + partFile + ".");
+
+                } else {
+
+                    // Output results to the user.
+                    System.out.println("Download Result: Successfully downloaded " + initialRequest.getTargetFilePath()
+                            + " From " + initialRequest.getTargetPeerIdentifier());
+
+                    String rootDirName = FileTreeBrowser.getRootDirName();
+                    String fileToSaveToRootPath = filePathToSaveTo.split(rootDirName)[1];
+                    System.out.println("File Saved To: " + fileToSaveToRootPath + ".");
+
+                }
+
+            } // if (local copy differs), else if (partial local copy), else if (swarm), else if (large file), else.
 
         } else { // Download-error.
 
+            resumes.remove(initialRequest.getSerialNumber());
             System.out.println("Download Result: Could not download the file.");
 
         }
@@ -233,4 +346,49 @@ public class DownloadReceiver implements Runnable {
     } // showDownloadResponse().
 
 
+    /**
+     * Check whether the peer that sent a download request has advertised that it checks transfers by CRC-32C.
+     *
+     * @param downloadRequest The download request.
+     *
+     * @return True if the transfer may be followed by its CRC-32C.
+     */
+    private boolean requesterChecks(Message downloadRequest) {
+
+        Message requesterBeacon = multicastHandler.beaconReceiver.getBeaconFrom(downloadRequest.getIdentifier());
+        return requesterBeacon != null && requesterBeacon.isTransferCheckAvailable();
+
+    } // requesterChecks().
+
+
+    /**
+     * Ask the peer again for a file we are downloading, from an offset, to carry on from what we already have.
+     *
+     * @param initialRequest The download request being resumed.
+     * @param filePathToSaveTo Local file being downloaded to.
+     * @param offset Byte of the file to resume from.
+     * @param attempts Times the download has been resumed after failing.
+     */
+    private void resume(Message initialRequest, String filePathToSaveTo, long offset, int attempts) {
+
+        Message resumeRequest = Message.downloadRequestMessage(initialRequest.getTargetPeerIdentifier(),
+                initialRequest.getTargetFilePath(), offset, -1);
+        resumes.put(resumeRequest.getSerialNumber(), new FileTransfer.Resume(filePathToSaveTo, attempts));
+
+        multicastHandler.txMessage(resumeRequest);
+        addMessage(true, resumeRequest);
+
+    } // resume().
+
+
+    /**
+     * Connect to a TCP server set up for us and close the connection straight away, so the server stops waiting.
+     *
+     * @param downloadResponse The download result naming the server.
+     */
+    private void abandon(Message downloadResponse) {
+        new TCPClient(configuration, downloadResponse.getHostname(), downloadResponse.getFileTransferPort()).closeClient();
+    }
+
+
 } // DownloadReceiver{}.
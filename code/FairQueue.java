@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * FairQueue holds items from several sources, handing them out in round robin order of source rather than in order of
+ * arrival, so a source that sends a burst of items does not delay the items of every other source behind its own.
+ *
+ * Each source has its own bounded first-in first-out queue, and the sources with items waiting take turns: take()
+ * returns the oldest item of the source at the front of the rotation, and that source goes to the back if it still has
+ * items waiting. The items of all sources together are bounded too, so many sources cannot queue without limit. Any
+ * number of threads may offer and take.
+ *
+ * @param <K> Type of the key identifying a source.
+ * @param <T> Type of item.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class FairQueue<K, T> {
+
+
+    private final HashMap<K, ArrayDeque<T>> queues; // Waiting items of each source with items waiting.
+    private final ArrayDeque<K> rotation; // Sources with items waiting, in the order they are next served.
+    private final int capacityPerSource; // Most items a single source may have waiting.
+    private final int capacity; // Most items all sources together may have waiting.
+    private int size; // Number of items waiting.
+    private final ReentrantLock lock; // Guards the queues and rotation.
+    private final Condition notEmpty; // Signalled when an item is offered.
+
+
+    /**
+     * Constructor: Creates an empty queue.
+     *
+     * @param capacityPerSource Most items a single source may have waiting before its further items are refused.
+     * @param capacity Most items all sources together may have waiting before further items are refused.
+     */
+    FairQueue(int capacityPerSource, int capacity) {
+
+        this.queues = new HashMap<>();
+        this.rotation = new ArrayDeque<>();
+        this.capacityPerSource = capacityPerSource;
+        this.capacity = capacity;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+
+    } // FairQueue().
+
+
+    /**
+     * Add an item from a source, without blocking.
+     *
+     * @param source Source of the item.
+     * @param item Item to add.
+     *
+     * @return True if added, false if the source, or all sources together, already have as many items waiting as
+     *         they may.
+     */
+    public boolean offer(K source, T item) {
+
+        lock.lock();
+        try {
+
+            if (size >= capacity) {
+                return false;
+            }
+
+            ArrayDeque<T> queue = queues.get(source);
+            if (queue == null) { // Source had nothing waiting, so joins the back of the rotation.
+                queue = new ArrayDeque<>();
+                queues.put(source, queue);
+                rotation.add(source);
+            } else if (queue.size() >= capacityPerSource) {
+                return false;
+            }
+
+            queue.add(item);
+            size++;
+            notEmpty.signal();
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+
+    } // offer().
+
+
+    /**
+     * Remove the next item, waiting until there is one.
+     *
+     * @return Oldest item of the source whose turn it is.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public T take() throws InterruptedException {
+
+        lock.lock();
+        try {
+
+            while (rotation.isEmpty()) {
+                notEmpty.await();
+            }
+
+            K source = rotation.poll();
+            ArrayDeque<T> queue = queues.get(source);
+            T item = queue.poll();
+            size--;
+
+            if (queue.isEmpty()) {
+                queues.remove(source);
+            } else {
+                rotation.add(source); // More waiting, so its next turn comes after every other source's.
+            }
+
+            return item;
+
+        } finally {
+            lock.unlock();
+        }
+
+    } // take().
+
+
+} // FairQueue{}.
@@ -0,0 +1,758 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * FileIndex is an in-memory index of every file and directory below the root directory, used to answer searches
+ * without walking the disk.
+ *
+ * Names are case-folded, as all search matches are case-insensitive: a filename search is one lookup in a map of
+ * folded names to paths, a path search is one lookup in a map of folded paths to paths, and a substring search
+ * intersects the trigram postings of the distinct names (see TrigramIndex). Entries themselves are held by their exact
+ * path, so files whose names differ only in case are indexed apart. The index is built once by its own thread at
+ * start up and is then kept current from WatchService events, with every directory in the tree registered.
+ * Until the first build has finished, isReady() is false and searches must fall back to walking the directory tree.
+ *
+ * The index is saved as an IndexSnapshot after it is built, and again while it changes. At start up the snapshot is
+ * loaded first, and only the directories modified since it was saved are read, so a restart does not walk the tree.
+ * Registering a directory with the watch service is slow, so it is done after the build rather than during it, and any
+ * directory modified since it was read is read again once it is watched.
+ *
+ * Changes made by this file browser itself (deletes and uploads) are applied through created() and deleted() as they
+ * are made, rather than when the watch service reports them. Listeners are told of every file and directory added to or
+ * removed from the index once it is ready.
+ *
+ * Paths are held relative to the root directory, starting with "/", as they are sent in search results.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class FileIndex implements Runnable {
+
+
+    /**
+     * An indexed file or directory.
+     */
+    static final class Entry {
+
+        final String path; // Path from the root directory, e.g. "/dir1/text1-1.txt".
+        final boolean directory; // Whether the entry is a directory.
+
+        Entry(String path, boolean directory) {
+            this.path = path;
+            this.directory = directory;
+        }
+
+    } // Entry{}.
+
+
+    /**
+     * Told of each change to the index, once it is ready.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a file or directory has been added to or removed from the index.
+         *
+         * @param path Path of the file or directory from the root directory.
+         * @param directory Whether it is a directory.
+         */
+        void indexChanged(String path, boolean directory);
+
+    } // Listener{}.
+
+
+    private final Configuration configuration; // Configuration of the file browser.
+    private final Path root; // Absolute, normalised root directory.
+    private final DirectoryWalker directoryWalker; // Walks the tree when it (or part of it) is indexed.
+
+    private final ConcurrentHashMap<String, Entry> entries; // Every file and directory, by path.
+    private final ConcurrentHashMap<String, Set<String>> byPath; // Paths of every file and directory, by folded path.
+    private final ConcurrentHashMap<String, Set<String>> byName; // Paths of every file and directory, by folded name.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry>> children; // Entries by name, by directory.
+    private final TrigramIndex nameTrigrams; // Trigrams of the folded names in byName, for substring searches.
+
+    private WatchService watchService; // Reports changes to the indexed directories.
+    private final ConcurrentHashMap<WatchKey, Path> watchedDirectories; // Directory each watch key belongs to.
+
+    private final Path snapshotFile; // Where the index is saved between runs.
+    private final ConcurrentHashMap<String, Long> directoryTimes; // Last modified time (ns) of each directory read.
+    private static final long RACY_MILLIS = 2000; // Directories modified this recently may change unnoticed.
+    private static final long SNAPSHOT_INTERVAL = 30000; // ms, longest a change waits before the snapshot is saved.
+
+    private final CopyOnWriteArrayList<Listener> listeners; // Told of changes to the index.
+
+    private volatile boolean ready; // Whether the initial build has finished.
+    private final CountDownLatch built; // Released once the initial build has finished.
+
+
+    /**
+     * Constructor: Creates an empty index and starts the thread that builds and then maintains it.
+     *
+     * @param configuration Configuration of the file browser, giving the root directory.
+     */
+    FileIndex(Configuration configuration) {
+
+        this.configuration = configuration;
+        this.root = Paths.get(configuration.rootDir_).toAbsolutePath().normalize();
+        this.directoryWalker = new DirectoryWalker(root);
+        this.entries = new ConcurrentHashMap<>();
+        this.byPath = new ConcurrentHashMap<>();
+        this.byName = new ConcurrentHashMap<>();
+        this.children = new ConcurrentHashMap<>();
+        this.nameTrigrams = new TrigramIndex();
+        this.watchedDirectories = new ConcurrentHashMap<>();
+        this.snapshotFile = Paths.get(configuration.indexSnapshotFile_);
+        this.directoryTimes = new ConcurrentHashMap<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.built = new CountDownLatch(1);
+
+        try {
+            this.watchService = root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            System.err.println("FileIndex.FileIndex() Error: " + e.getMessage());
+        }
+
+        // Create thread for building the index and then applying changes to it.
+        Thread thread = new Thread(this, "FileIndex");
+        thread.setDaemon(true);
+        thread.start();
+
+    } // FileIndex().
+
+
+    /**
+     * Build the index, from the snapshot where it is still current, then keep it current by applying directory change
+     * events as they arrive, saving the snapshot once changes have been made.
+     */
+    @Override
+    public void run() {
+
+        long start = System.currentTimeMillis();
+        IndexSnapshot snapshot = IndexSnapshot.load(snapshotFile, root);
+        directoryWalker.walk(root, new IndexVisitor(snapshot, false));
+        ready = true;
+        built.countDown();
+
+        int reused = snapshot == null ? 0 : snapshot.reused();
+        configuration.log_.writeLog("File Index Built: " + entries.size() + " Entries In "
+                + (System.currentTimeMillis() - start) + "ms, " + reused + " Directories From Snapshot, "
+                + (directoryTimes.size() - reused) + " Read"); // Create log.
+
+        if (watchService == null) {
+            saveSnapshot();
+            return; // Index stays as built.
+        }
+
+        start = System.currentTimeMillis();
+        int changed = watchTree();
+
+        configuration.log_.writeLog("File Index Watching: " + watchedDirectories.size() + " Directories In "
+                + (System.currentTimeMillis() - start) + "ms, " + changed + " Read Again"); // Create log.
+
+        saveSnapshot();
+
+        long changedSince = 0; // When the index first changed after the snapshot was last saved, 0 if it has not.
+
+        do { // Do until application terminated.
+
+            WatchKey key;
+            try {
+
+                if (changedSince == 0) {
+                    key = watchService.take();
+                } else {
+                    long wait = changedSince + SNAPSHOT_INTERVAL - System.currentTimeMillis();
+                    key = wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (key == null) { // Changed, and the snapshot is due.
+                saveSnapshot();
+                changedSince = 0;
+                continue;
+            }
+
+            if (changedSince == 0) {
+                changedSince = System.currentTimeMillis();
+            }
+
+            Path directory = watchedDirectories.get(key);
+            if (directory != null) {
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+
+                    if (event.kind() == OVERFLOW) { // Events were lost, so index the directory again.
+                        removeTree(directory);
+                        indexTree(directory);
+                        continue;
+                    }
+
+                    Path child = directory.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE) {
+                        indexTree(child); // A single file, or a directory that may already have contents.
+                    } else if (event.kind() == ENTRY_DELETE) {
+                        removeTree(child);
+                    }
+
+                } // for (all events).
+
+            } // if (directory is still indexed).
+
+            if (!key.reset()) { // Directory no longer exists or can no longer be watched.
+                watchedDirectories.remove(key);
+            }
+
+        } while (true);
+
+    } // run().
+
+
+    /**
+     * @return True once the initial build has finished, after which search results come from the index.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Wait until the initial build has finished.
+     *
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public void awaitReady() throws InterruptedException {
+        built.await();
+    }
+
+    /**
+     * @return Number of indexed files and directories.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return Paths (from the root directory) of every indexed file, leaving out directories.
+     */
+    public List<String> files() {
+
+        List<String> files = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (!entry.directory) {
+                files.add(entry.path);
+            }
+        }
+        return files;
+
+    } // files().
+
+    /**
+     * @return Live, unmodifiable view of the distinct folded names of the indexed files and directories.
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    /**
+     * @param listener Listener to tell of changes to the index.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+
+    /**
+     * Index a file or directory this file browser has just created (e.g. by an upload), without waiting for the watch
+     * service to report it.
+     *
+     * @param file File or directory created.
+     */
+    public void created(Path file) {
+        indexTree(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Remove a file or directory this file browser has just deleted from the index, without waiting for the watch
+     * service to report it.
+     *
+     * @param file File or directory deleted.
+     */
+    public void deleted(Path file) {
+        removeTree(file.toAbsolutePath().normalize());
+    }
+
+
+    /**
+     * Find every file and directory with a given name, ignoring case.
+     *
+     * @param name Name to look for.
+     *
+     * @return Paths (from the root directory) of the matching files and directories.
+     */
+    public List<String> findByName(String name) {
+
+        Set<String> paths = byName.get(fold(name));
+        return paths == null ? new ArrayList<>() : new ArrayList<>(paths);
+
+    } // findByName().
+
+
+    /**
+     * Find every file and directory whose name contains a string, ignoring case.
+     *
+     * @param substring String to look for within names.
+     *
+     * @return Paths (from the root directory) of the matching files and directories.
+     */
+    public List<String> findBySubstring(String substring) {
+        return findBySubstring(substring, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Find files and directories whose name contains a string, ignoring case, stopping once enough are found. Every
+     * name has at least one path, so no more than limit names are looked at.
+     *
+     * @param substring String to look for within names.
+     * @param limit Most paths to return.
+     *
+     * @return Paths (from the root directory) of matching files and directories, at most limit of them.
+     */
+    public List<String> findBySubstring(String substring, int limit) {
+
+        List<String> results = new ArrayList<>();
+
+        for (String name : nameTrigrams.search(fold(substring), limit)) {
+
+            Set<String> paths = byName.get(name);
+            if (paths == null) {
+                continue;
+            }
+
+            for (String path : paths) {
+                if (results.size() >= limit) {
+                    return results;
+                }
+                results.add(path);
+            }
+
+        }
+
+        return results;
+
+    } // findBySubstring().
+
+
+    /**
+     * Find files and directories whose name matches a glob or regex, stopping once enough are found or the pattern's
+     * budget is spent. Only the names containing the literal every match must contain are matched.
+     *
+     * @param pattern Compiled pattern of the search.
+     * @param limit Most paths to return.
+     *
+     * @return Paths (from the root directory) of matching files and directories, at most limit of them.
+     */
+    public List<String> findByPattern(NamePattern pattern, int limit) {
+
+        List<String> results = new ArrayList<>();
+
+        for (String name : nameTrigrams.search(pattern.literal())) {
+
+            if (!pattern.matches(name)) {
+                if (pattern.exhausted()) {
+                    return results;
+                }
+                continue;
+            }
+
+            Set<String> paths = byName.get(name);
+            if (paths == null) {
+                continue;
+            }
+
+            for (String path : paths) {
+                if (results.size() >= limit) {
+                    return results;
+                }
+                results.add(path);
+            }
+
+        }
+
+        return results;
+
+    } // findByPattern().
+
+
+    /**
+     * Find a file or directory by its exact path from the root directory, ignoring case.
+     *
+     * @param path Path from the root directory; the leading '/' may be omitted.
+     *
+     * @return The indexed entry, or null if there is no such file or directory.
+     */
+    public Entry findByPath(String path) {
+
+        if (path.length() == 0 || path.charAt(0) != '/') {
+            path = "/" + path;
+        }
+        while (path.length() > 1 && path.charAt(path.length() - 1) == '/') {
+            path = path.substring(0, path.length() - 1); // Directories may be given with a trailing '/'.
+        }
+
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            return entry; // Same case, which takes precedence over paths differing only in case.
+        }
+
+        Set<String> paths = byPath.get(fold(path));
+        if (paths != null) {
+            for (String match : paths) {
+                entry = entries.get(match);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+
+    } // findByPath().
+
+
+    /**
+     * Adds what a DirectoryWalker finds to the index, taking the entries of unmodified directories from a snapshot.
+     */
+    private final class IndexVisitor implements DirectoryWalker.Visitor {
+
+        private final IndexSnapshot snapshot; // Snapshot to take entries from, or null to read every directory.
+        private final boolean watch; // Whether to register directories with the watch service as they are found.
+
+        IndexVisitor(IndexSnapshot snapshot, boolean watch) {
+            this.snapshot = snapshot;
+            this.watch = watch;
+        }
+
+        @Override
+        public void visit(Path file, boolean directory) {
+
+            if (directory && watch) {
+                watch(file);
+            }
+            add(file, directory);
+
+        }
+
+        @Override
+        public DirectoryWalker.Listing cached(Path directory, BasicFileAttributes attributes) {
+
+            if (snapshot == null) {
+                return null;
+            }
+            return snapshot.listing(directoryKey(directory), modifiedTime(attributes.lastModifiedTime()));
+
+        }
+
+        @Override
+        public void listed(Path directory, BasicFileAttributes attributes) {
+            directoryTimes.put(directoryKey(directory), modifiedTime(attributes.lastModifiedTime()));
+        }
+
+    } // IndexVisitor{}.
+
+
+    /**
+     * Add a file or directory, and everything below a directory, to the index, listing directories in parallel.
+     * Directories are registered with the watch service before they are listed, so nothing created during the walk is
+     * missed.
+     *
+     * @param start File or directory to index.
+     */
+    private void indexTree(Path start) {
+        directoryWalker.walk(start, new IndexVisitor(null, true));
+    }
+
+
+    /**
+     * Register every indexed directory with the watch service. A directory modified since it was read is read again
+     * once it is watched, so a change made before it was watched is not missed.
+     *
+     * @return Number of directories read again.
+     */
+    private int watchTree() {
+
+        int changed = 0;
+
+        for (Map.Entry<String, Long> read : new ArrayList<>(directoryTimes.entrySet())) {
+
+            Path directory = read.getKey().isEmpty() ? root : root.resolve(read.getKey().substring(1));
+            watch(directory);
+
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(directory);
+            } catch (IOException e) {
+                continue; // Gone, so its parent has been modified too.
+            }
+
+            if (read.getValue() == IndexSnapshot.UNKNOWN || modifiedTime(modified) != read.getValue()) {
+                rescan(directory, modified);
+                changed++;
+            }
+
+        } // for (all directories read).
+
+        return changed;
+
+    } // watchTree().
+
+
+    /**
+     * Bring the entries of one directory up to date with the disk, indexing new entries and removing vanished ones.
+     *
+     * @param directory Directory to read again.
+     * @param modified Last modified time of the directory, read before it is.
+     */
+    private void rescan(Path directory, FileTime modified) {
+
+        String key = directoryKey(directory);
+        Map<String, Entry> indexed = new HashMap<>(children.getOrDefault(key, new ConcurrentHashMap<>()));
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+
+            for (Path file : stream) {
+
+                Entry entry = indexed.remove(file.getFileName().toString());
+                if (entry != null && entry.directory != Files.isDirectory(file)) { // Replaced by another kind.
+                    removeTree(file);
+                    entry = null;
+                }
+                if (entry == null) {
+                    indexTree(file);
+                }
+
+            } // for (all entries).
+
+        } catch (IOException | DirectoryIteratorException e) {
+            return; // Gone or unreadable: left as it was.
+        }
+
+        for (Entry vanished : indexed.values()) {
+            removeTree(root.resolve(vanished.path.substring(1)));
+        }
+
+        directoryTimes.put(key, modifiedTime(modified));
+
+    } // rescan().
+
+
+    /**
+     * Save the index as a snapshot. Called from the index thread only, so the index is not part way through a change.
+     */
+    private void saveSnapshot() {
+
+        long start = System.currentTimeMillis();
+        IndexSnapshot.save(snapshotFile, root, directoryTimes, children);
+
+        configuration.log_.writeLog("File Index Snapshot Saved: " + directoryTimes.size() + " Directories In "
+                + (System.currentTimeMillis() - start) + "ms"); // Create log.
+
+    } // saveSnapshot().
+
+
+    /**
+     * Register a directory with the watch service.
+     *
+     * @param directory Directory to watch.
+     */
+    private void watch(Path directory) {
+
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchedDirectories.put(directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE), directory);
+        } catch (IOException e) {
+            System.err.println("FileIndex.watch() Error: " + e.getMessage());
+        }
+
+    } // watch().
+
+
+    /**
+     * Add a single file or directory to the index.
+     *
+     * @param file File or directory to add.
+     * @param directory Whether it is a directory.
+     */
+    private void add(Path file, boolean directory) {
+
+        String path = directoryWalker.relativePath(file);
+        if (path == null) {
+            return; // The root directory itself is not a search result.
+        }
+
+        Entry entry = new Entry(path, directory);
+        Entry previous = entries.put(path, entry);
+        byPath.computeIfAbsent(fold(path), k -> ConcurrentHashMap.newKeySet()).add(path);
+        children.computeIfAbsent(path.substring(0, path.lastIndexOf('/')), k -> new ConcurrentHashMap<>())
+                .put(file.getFileName().toString(), entry);
+
+        String name = fold(file.getFileName().toString());
+        byName.computeIfAbsent(name, k -> {
+            nameTrigrams.add(k); // First file or directory with this name.
+            return ConcurrentHashMap.newKeySet();
+        }).add(path);
+
+        if (previous == null || previous.directory != directory) {
+            changed(entry);
+        }
+
+    } // add().
+
+
+    /**
+     * Remove a file or directory, and everything below a directory, from the index.
+     *
+     * @param file File or directory that has been removed.
+     */
+    private void removeTree(Path file) {
+
+        String path = directoryWalker.relativePath(file);
+        if (path == null) { // Root directory: everything goes.
+            children.getOrDefault("", new ConcurrentHashMap<>()).values().forEach(this::removeTree);
+            directoryTimes.remove("");
+            return;
+        }
+
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            removeTree(entry);
+        }
+
+    } // removeTree().
+
+
+    /**
+     * Remove an entry, and everything below a directory, from the index.
+     *
+     * @param entry Entry to remove.
+     */
+    private void removeTree(Entry entry) {
+
+        if (entry.directory) {
+            children.getOrDefault(entry.path, new ConcurrentHashMap<>()).values().forEach(this::removeTree);
+        }
+
+        remove(entry);
+
+    } // removeTree().
+
+
+    /**
+     * Remove a single entry from the index.
+     *
+     * @param entry Entry to remove.
+     */
+    private void remove(Entry entry) {
+
+        if (entries.remove(entry.path, entry)) {
+            changed(entry);
+            byPath.computeIfPresent(fold(entry.path), (k, paths) -> {
+                paths.remove(entry.path);
+                return paths.isEmpty() ? null : paths;
+            });
+        }
+        if (entry.directory) {
+            directoryTimes.remove(entry.path);
+        }
+
+        String parent = entry.path.substring(0, entry.path.lastIndexOf('/'));
+        children.computeIfPresent(parent, (k, names) -> {
+            names.remove(entry.path.substring(entry.path.lastIndexOf('/') + 1), entry);
+            return names.isEmpty() ? null : names;
+        });
+
+        String name = fold(entry.path.substring(entry.path.lastIndexOf('/') + 1));
+        byName.computeIfPresent(name, (k, paths) -> {
+            paths.remove(entry.path);
+            if (!paths.isEmpty()) {
+                return paths;
+            }
+            nameTrigrams.remove(k); // Last file or directory with this name.
+            return null;
+        });
+
+    } // remove().
+
+
+    /**
+     * Tell the listeners of an entry added or removed. Nothing can have been learned from the index before it was
+     * ready, so nothing need be told until then.
+     *
+     * @param entry Entry added or removed.
+     */
+    private void changed(Entry entry) {
+
+        if (ready) {
+            for (Listener listener : listeners) {
+                listener.indexChanged(entry.path, entry.directory);
+            }
+        }
+
+    } // changed().
+
+
+    /**
+     * @param directory Directory in the tree.
+     *
+     * @return Path of the directory from the root directory, "" for the root directory, as held in the snapshot.
+     */
+    private String directoryKey(Path directory) {
+
+        String path = directoryWalker.relativePath(directory);
+        return path == null ? "" : path;
+
+    } // directoryKey().
+
+
+    /**
+     * A directory modified within the resolution of its file system's clock (as much as a second or two) may be modified
+     * again without its time changing, so such a time is not trusted to show that the directory is unchanged.
+     *
+     * @param modified Last modified time of a directory.
+     *
+     * @return The time in ns, or IndexSnapshot.UNKNOWN if it is too recent to be trusted.
+     */
+    private static long modifiedTime(FileTime modified) {
+
+        if (System.currentTimeMillis() - modified.toMillis() < RACY_MILLIS) {
+            return IndexSnapshot.UNKNOWN;
+        }
+
+        return modified.to(TimeUnit.NANOSECONDS);
+
+    } // modifiedTime().
+
+
+    /**
+     * @param s String to fold.
+     *
+     * @return String in the case used for matching.
+     */
+    static String fold(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+
+} // FileIndex{}.
@@ -0,0 +1,562 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * FileTransfer moves the content of a file over a TCP connection, for downloads and uploads.
+ *
+ * Where the socket has a channel, the file is sent with FileChannel.transferTo() and received with transferFrom(), so
+ * the kernel moves the bytes between the file and the socket (sendfile on Linux) rather than copying them through a
+ * buffer in the heap. A socket without a channel falls back to a buffered copy.
+ *
+ * Part of a file may be transferred, from a start offset, so an interrupted transfer can be resumed. Before resuming,
+ * the two copies are compared by the CRC-32C of the part already transferred (see prefixChecksum()).
+ *
+ * A transfer may also be checked as it goes. The sender computes the CRC-32C of the bytes it sends, appends it as a
+ * 4 byte trailer, and shuts down its side of the connection. The receiver computes the CRC-32C of the bytes it writes,
+ * holding back the last 4 bytes read since they may be the trailer, then compares the two and answers with one byte,
+ * ACK_VERIFIED or ACK_CORRUPT, so both ends know the outcome. The bytes pass through a direct buffer rather than being
+ * moved by the kernel, and CRC32C uses the processor's CRC instructions, so checking costs little over a plain copy.
+ * Received files are written to a part file in the staging directory (see partPath()) and only moved over their
+ * destination by commit() once complete, so a transfer that fails never leaves a damaged file in its place. The staging
+ * directory is outside the root directory, so part files are never indexed, searched for, digested or sent to peers.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public final class FileTransfer {
+
+
+    static final int BUFFER_SIZE = 64 * 1024; // Bytes, buffer used by the fallback copy.
+    static final long CHUNK_SIZE = 8L * 1024 * 1024; // Bytes, most moved by one transferTo() or transferFrom() call.
+    static final int CHECKED_BUFFER_SIZE = 256 * 1024; // Bytes, direct buffer a checked transfer is copied through.
+    static final int TRAILER_BYTES = 4; // Bytes of the CRC-32C trailer sent after the file by a checked transfer.
+    static final int ACK_VERIFIED = 1; // Answer of the receiver of a checked transfer when the checksums match.
+    static final int ACK_CORRUPT = 0; // Answer of the receiver of a checked transfer when they do not.
+    static final String PART_SUFFIX = ".part"; // Added to the name of a file being received.
+    static final String DOWNLOADS = "downloads"; // Directory of the staging directory downloads are received into.
+    static final String UPLOADS = "uploads"; // Directory of the staging directory uploads are received into.
+    static final String CHECK_CRC32C = "crc32c"; // How a download or upload result says its transfer is checked.
+
+
+    /**
+     * A transfer of ours being resumed: the local file, and how many times the transfer has been resumed after failing.
+     */
+    static final class Resume {
+
+        final String localPath; // Local file downloaded to or uploaded from.
+        final int attempts; // Times the transfer has been resumed after failing.
+
+        Resume(String localPath, int attempts) {
+            this.localPath = localPath;
+            this.attempts = attempts;
+        }
+
+    } // Resume{}.
+
+
+    private FileTransfer() {
+        // Static methods only.
+    }
+
+
+    /**
+     * Send the whole of a file over a connection.
+     *
+     * @param file File to send.
+     * @param socket Connected socket to send the file over.
+     *
+     * @return Number of bytes sent.
+     *
+     * @throws IOException Error reading the file or writing to the socket.
+     */
+    public static long send(Path file, Socket socket) throws IOException {
+        return send(file, socket, 0, -1);
+    }
+
+
+    /**
+     * Send part of a file over a connection.
+     *
+     * @param file File to send.
+     * @param socket Connected socket to send the file over.
+     * @param start Byte of the file to start from.
+     * @param length Most bytes to send, -1 for the rest of the file.
+     *
+     * @return Number of bytes sent.
+     *
+     * @throws IOException Error reading the file or writing to the socket.
+     */
+    public static long send(Path file, Socket socket, long start, long length) throws IOException {
+        return send(file, socket, start, length, false);
+    }
+
+
+    /**
+     * Send part of a file over a connection, followed by its checksum if the transfer is checked.
+     *
+     * @param file File to send.
+     * @param socket Connected socket to send the file over.
+     * @param start Byte of the file to start from.
+     * @param length Most bytes to send, -1 for the rest of the file.
+     * @param checked Whether to send the CRC-32C trailer and wait for the receiver to verify it.
+     *
+     * @return Number of bytes sent.
+     *
+     * @throws IOException Error reading the file or writing to the socket, or the receiver did not verify the bytes.
+     */
+    public static long send(Path file, Socket socket, long start, long length, boolean checked) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long end = length < 0 ? fileChannel.size() : Math.min(fileChannel.size(), start + length);
+
+            if (checked) {
+                return sendChecked(fileChannel, socket, start, end);
+            }
+
+            SocketChannel socketChannel = socket.getChannel();
+            if (socketChannel == null) {
+                fileChannel.position(start);
+                return copy(Channels.newInputStream(fileChannel), socket.getOutputStream(), end - start);
+            }
+
+            long position = start;
+            while (position < end) {
+
+                long sent = fileChannel.transferTo(position, Math.min(CHUNK_SIZE, end - position), socketChannel);
+                if (sent <= 0) {
+                    break; // Truncated while being sent.
+                }
+                position += sent;
+
+            } // while (bytes remain).
+
+            return position - start;
+
+        }
+
+    } // send().
+
+
+    /**
+     * Receive a file from a connection, until the sender closes it, replacing any existing content.
+     *
+     * @param socket Connected socket to read the file from.
+     * @param file File to write.
+     *
+     * @return Number of bytes received.
+     *
+     * @throws IOException Error reading from the socket or writing the file.
+     */
+    public static long receive(Socket socket, Path file) throws IOException {
+        return receive(socket, file, 0, -1);
+    }
+
+
+    /**
+     * Receive part of a file from a connection, writing it from a start offset, until the sender closes it. When the
+     * rest of the file is received, the file is cut short after the first bytes received, so bytes after the start are
+     * replaced; a connection closed before any arrive leaves the file as it was. When a given length is received,
+     * bytes outside it are kept.
+     *
+     * @param socket Connected socket to read the file from.
+     * @param file File to write.
+     * @param start Byte of the file to write the first byte received to.
+     * @param length Most bytes to receive, -1 for the rest of the file.
+     *
+     * @return Number of bytes received.
+     *
+     * @throws IOException Error reading from the socket or writing the file.
+     */
+    public static long receive(Socket socket, Path file, long start, long length) throws IOException {
+        return receive(socket, file, start, length, false);
+    }
+
+
+    /**
+     * Receive part of a file from a connection, as receive(socket, file, start, length), checking it against the
+     * sender's CRC-32C trailer if the transfer is checked.
+     *
+     * @param socket Connected socket to read the file from.
+     * @param file File to write.
+     * @param start Byte of the file to write the first byte received to.
+     * @param length Most bytes to receive, -1 for the rest of the file.
+     * @param checked Whether the sender follows the bytes with the CRC-32C trailer, to be verified and answered.
+     *
+     * @return Number of bytes received.
+     *
+     * @throws IOException Error reading from the socket or writing the file, or the bytes did not match the trailer.
+     */
+    public static long receive(Socket socket, Path file, long start, long length, boolean checked) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            if (checked) {
+                return receiveChecked(socket, fileChannel, start, length);
+            }
+            long end = length < 0 ? Long.MAX_VALUE : start + length;
+
+            SocketChannel socketChannel = socket.getChannel();
+            ReadableByteChannel in = socketChannel != null ? socketChannel : Channels.newChannel(socket.getInputStream());
+
+            long position = start;
+            // A blocking channel only transfers nothing once the sender has closed the connection.
+            while (position < end) {
+
+                long received = fileChannel.transferFrom(in, position, Math.min(CHUNK_SIZE, end - position));
+                if (received <= 0) {
+                    break;
+                }
+                if (length < 0 && position == start) {
+                    fileChannel.truncate(start + received); // Bytes have arrived, so the old rest of the file goes.
+                }
+                position += received;
+
+            } // while (bytes remain).
+
+            return position - start;
+
+        }
+
+    } // receive().
+
+
+    /**
+     * Send bytes of a file through a direct buffer, computing their CRC-32C on the way, then the CRC-32C as a trailer,
+     * and wait for the receiver's answer.
+     *
+     * @param fileChannel File to send.
+     * @param socket Connected socket to send the file over.
+     * @param start Byte of the file to start from.
+     * @param end Byte of the file to stop before.
+     *
+     * @return Number of bytes sent, not counting the trailer.
+     *
+     * @throws IOException Error reading the file or writing to the socket, or the receiver did not verify the bytes.
+     */
+    private static long sendChecked(FileChannel fileChannel, Socket socket, long start, long end) throws IOException {
+
+        WritableByteChannel out = socket.getChannel() != null ? socket.getChannel()
+                : Channels.newChannel(socket.getOutputStream());
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKED_BUFFER_SIZE);
+
+        long position = start;
+        while (position < end) {
+
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = fileChannel.read(buffer, position);
+            if (read < 0) {
+                break; // Truncated while being sent; the receiver finds it short.
+            }
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            position += read;
+
+        } // while (bytes remain).
+
+        buffer.clear();
+        buffer.putInt((int) crc.getValue()).flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        socket.shutdownOutput(); // The receiver reads to the end, so knows the last 4 bytes are the trailer.
+
+        int answer = socket.getInputStream().read();
+        if (answer != ACK_VERIFIED) {
+            throw new IOException(answer == ACK_CORRUPT ? "Receiver found the transfer corrupt"
+                    : "Receiver closed the connection without verifying the transfer");
+        }
+
+        return position - start;
+
+    } // sendChecked().
+
+
+    /**
+     * Receive bytes of a file through a direct buffer, computing their CRC-32C on the way, check it against the
+     * sender's trailer, and answer the sender. When the rest of the file is being received, bytes that do not match
+     * their trailer are cut off again, so a resumed transfer starts from the last byte known to be good.
+     *
+     * @param socket Connected socket to read the file from.
+     * @param fileChannel File to write.
+     * @param start Byte of the file to write the first byte received to.
+     * @param length Most bytes to receive, -1 for the rest of the file.
+     *
+     * @return Number of bytes received, not counting the trailer.
+     *
+     * @throws IOException Error reading from the socket or writing the file, or the bytes did not match the trailer.
+     */
+    private static long receiveChecked(Socket socket, FileChannel fileChannel, long start, long length)
+            throws IOException {
+
+        ReadableByteChannel in = socket.getChannel() != null ? socket.getChannel()
+                : Channels.newChannel(socket.getInputStream());
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKED_BUFFER_SIZE);
+
+        long position = start;
+        while (in.read(buffer) >= 0) {
+
+            // All but the last TRAILER_BYTES read are the file; those may be the trailer, so are held back.
+            int bytes = buffer.position() - TRAILER_BYTES;
+            if (bytes <= 0) {
+                continue;
+            }
+            if (length >= 0 && position - start + bytes > length) {
+                throw new IOException("Sender sent more than the " + length + " bytes asked for");
+            }
+
+            buffer.flip();
+            ByteBuffer fileBytes = buffer.duplicate();
+            fileBytes.limit(bytes);
+            crc.update(fileBytes);
+            fileBytes.rewind();
+            boolean first = position == start;
+            while (fileBytes.hasRemaining()) {
+                position += fileChannel.write(fileBytes, position);
+            }
+            if (length < 0 && first) {
+                fileChannel.truncate(position); // Bytes have arrived, so the old rest of the file goes.
+            }
+            buffer.position(bytes);
+            buffer.compact();
+
+        } // while (connection open).
+
+        buffer.flip();
+        boolean complete = buffer.remaining() == TRAILER_BYTES;
+        boolean verified = complete && buffer.getInt() == (int) crc.getValue();
+
+        if (complete && !verified && length < 0) {
+            fileChannel.truncate(start); // Damaged in transit somewhere after the start.
+        }
+
+        try {
+            socket.getOutputStream().write(verified ? ACK_VERIFIED : ACK_CORRUPT);
+            socket.getOutputStream().flush();
+        } catch (IOException ignored) {
+            // The sender has gone; nothing to tell it.
+        }
+
+        if (!verified) {
+            throw new IOException(complete ? "Checksum of the bytes received does not match the sender's"
+                    : "Connection closed before the checksum was received");
+        }
+
+        return position - start;
+
+    } // receiveChecked().
+
+
+    /**
+     * The part file a file is written to until complete: its path below the root directory, under the staging directory
+     * for the direction of the transfer, so a download and an upload to the same file never share one. Directories
+     * leading to it are created; if that fails, opening the part file reports the error.
+     *
+     * @param configuration Configuration of the file browser, giving the root and staging directories.
+     * @param file Destination of a file being received, below the root directory.
+     * @param direction DOWNLOADS or UPLOADS.
+     *
+     * @return The part file.
+     */
+    public static Path partPath(Configuration configuration, Path file, String direction) {
+
+        Path root = Paths.get(configuration.rootDir_).toAbsolutePath().normalize();
+        Path relative = root.relativize(file.toAbsolutePath().normalize());
+        if (relative.startsWith("..")) {
+            relative = file.getFileName(); // Not below the root directory, so not shared either.
+        }
+
+        Path part = Paths.get(configuration.stagingDir_, direction).resolve(relative.toString() + PART_SUFFIX);
+        try {
+            Files.createDirectories(part.getParent());
+        } catch (IOException e) {
+            System.err.println("FileTransfer.partPath() IO Exception: " + e.getMessage());
+        }
+        return part;
+
+    } // partPath().
+
+
+    /**
+     * Move a completely received part file over its destination, in one step where the file system allows, so the
+     * destination is never seen partly written.
+     *
+     * @param part The part file.
+     * @param file Its destination.
+     *
+     * @throws IOException Error moving the file.
+     */
+    public static void commit(Path part, Path file) throws IOException {
+
+        try {
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    } // commit().
+
+
+    /**
+     * Cut a completely received part file to the size of the file, dropping anything an earlier transfer left after
+     * it, then move it over its destination as commit(part, file).
+     *
+     * @param part The part file.
+     * @param file Its destination.
+     * @param size Size of the file.
+     *
+     * @throws IOException Error cutting or moving the file.
+     */
+    public static void commit(Path part, Path file, long size) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(size);
+        }
+        commit(part, file);
+
+    } // commit().
+
+
+    /**
+     * Size a file ahead of a download whose parts arrive out of order, dropping any content it had, so each part can be
+     * written at its position without the file having to grow under it.
+     *
+     * @param file File to size, created if it does not exist.
+     * @param size Size of the file being downloaded.
+     *
+     * @throws IOException Error creating or writing the file.
+     */
+    public static void preallocate(Path file, long size) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            fileChannel.truncate(0);
+            if (size > 0) {
+                fileChannel.write(ByteBuffer.allocate(1), size - 1); // Extends the file, leaving a hole where supported.
+            }
+        }
+
+    } // preallocate().
+
+
+    /**
+     * Compute the checksum of the start of a file, so two copies can be compared before a transfer is resumed.
+     *
+     * @param file File to read.
+     * @param length Bytes at the start of the file to include.
+     *
+     * @return CRC-32C of the first length bytes, as 8 hexadecimal digits.
+     *
+     * @throws IOException File could not be read, or is shorter than length.
+     */
+    public static String prefixChecksum(Path file, long length) throws IOException {
+
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long position = 0;
+            while (position < length) {
+
+                buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File shorter than " + length + " bytes");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+
+            } // while (bytes remain).
+
+        }
+
+        return String.format("%08x", crc.getValue());
+
+    } // prefixChecksum().
+
+
+    /**
+     * Check that the start of a local file matches the start of a remote copy, before a transfer is resumed.
+     *
+     * @param file Local file.
+     * @param length Bytes at the start of the file to compare.
+     * @param checksum CRC-32C of the start of the remote copy, in hexadecimal.
+     *
+     * @return True if the checksums agree, false if they do not or the local file is too short or unreadable.
+     */
+    public static boolean prefixMatches(Path file, long length, String checksum) {
+
+        try {
+            return prefixChecksum(file, length).equalsIgnoreCase(checksum);
+        } catch (IOException e) {
+            return false;
+        }
+
+    } // prefixMatches().
+
+
+    /**
+     * Fallback: send all bytes from an input stream to an output stream through a buffer.
+     *
+     * @param in Input stream to read bytes from.
+     * @param out Output stream to send bytes to.
+     *
+     * @return Number of bytes sent.
+     *
+     * @throws IOException Error interacting with the streams.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return copy(in, out, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Fallback: send bytes from an input stream to an output stream through a buffer, up to a limit.
+     *
+     * @param in Input stream to read bytes from.
+     * @param out Output stream to send bytes to.
+     * @param limit Most bytes to send.
+     *
+     * @return Number of bytes sent.
+     *
+     * @throws IOException Error interacting with the streams.
+     */
+    public static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+
+        byte[] buf = new byte[BUFFER_SIZE];
+        int bytesRead;
+        long totalBytes = 0;
+
+        while (totalBytes < limit
+                && (bytesRead = in.read(buf, 0, (int) Math.min(buf.length, limit - totalBytes))) != -1) {
+            totalBytes += bytesRead;
+            out.write(buf, 0, bytesRead); // Write current chunk of bytes to output stream.
+        }
+        out.flush();
+
+        return totalBytes;
+
+    } // copy().
+
+
+} // FileTransfer{}.
@@ -23,6 +23,7 @@ public final class FileTreeBrowser {
     public static String remoteBrowse_ = ":remoteBrowse"; // Browse a remote file-space option.
     public static String localBrowse_ = ":localBrowse"; // Revert to local file-space browsing option.
     public static String search_ = ":search"; // Option for allowing user to search for files.
+    public static String more_ = ":more"; // Option for fetching the next page of results of the last search.
     public static String download_ = ":download"; // Option for allowing user to download remote files.
     public static String upload_ = ":upload"; // Option for allowing user to upload files to remote file-spaces.
     public static String delete_ = ":delete"; // Option for allowing user to delete files at remote file-spaces.
@@ -178,7 +179,7 @@ public final class FileTreeBrowser {
             } else if (userCmd.equalsIgnoreCase(remoteBrowse_) && configuration_.remoteBrowse_) { // ':remoteBrowse' option for remote browsing.
 
                 // If no beacons then show unable to remote browse.
-                if (multicastHandler.beaconReceiver.beacons.size() == 0) {
+                if (multicastHandler.beaconReceiver.peerCount() == 0) {
 
                     System.out.println("There are no beacons to connect to right now. Try again later.");
 
@@ -204,7 +205,7 @@ public final class FileTreeBrowser {
 
                     } // if (chosenBeacon !- null).
 
-                } // if (multicastHandler.beaconReceiver.beacons.size() == 0).
+                } // if (multicastHandler.beaconReceiver.peerCount() == 0).
 
 
             } else if (userCmd.equalsIgnoreCase(localBrowse_) && configuration_.remoteBrowse_ && remoteBrowsing) { // ':localBrowse' option to return to local browsing.
@@ -238,12 +239,21 @@ public final class FileTreeBrowser {
                     userSearchString = getUserInput(keyboard);
                 } while (userSearchString.length() == 0);
 
-                // Create search request message.
-                Message searchRequest = Message.searchRequestMessage(userSearchChoice, userSearchString);
-                // Send search request message over multicast group.
-                multicastHandler.txMessage(searchRequest);
-                // Add sent search request to pending request structure in SearchReceiver.
-                multicastHandler.searchReceiver.addSearchMessage(true, searchRequest);
+                // Create search request message, for the first page of results if pages are configured.
+                Message searchRequest = configuration_.searchMaxResults_ > 0
+                        ? Message.searchRequestMessage(userSearchChoice, userSearchString,
+                                configuration_.searchMaxResults_, 0)
+                        : Message.searchRequestMessage(userSearchChoice, userSearchString);
+                // Send search request message over multicast group, unless no peer's catalog allows a match.
+                multicastHandler.searchReceiver.sendSearchRequest(searchRequest);
+
+
+            } else if (userCmd.equalsIgnoreCase(more_) && configuration_.search_) {
+
+                // Ask for the next page of results of the last search.
+                if (!multicastHandler.searchReceiver.sendNextSearchPage()) {
+                    System.out.println("No search with more results to show.");
+                }
 
 
             } else if (userCmd.equalsIgnoreCase(download_) && configuration_.download_) {
@@ -289,13 +299,12 @@ public final class FileTreeBrowser {
                         userUploadFilePath = getUserInput(keyboard);
                     } while (userUploadFilePath.length() == 0);
 
-                    // Create and send upload-request message over the multicast group.
-                    String peerIdentifier = userBeaconChoice.getIdentifier();
-                    Message uploadRequest = Message.uploadRequestMessage(peerIdentifier, userUploadFilePath);
-                    multicastHandler.txMessage(uploadRequest);
+                    // Get the local file to upload, whose size goes in the request so the peer can resume its copy.
+                    String fileToUploadPath = getFile(keyboard, false);
 
-                    // Add upload-request message to outgoing upload requests, so responses can be handled.
-                    multicastHandler.uploadReceiver.addMessage(true, uploadRequest);
+                    // Create and send upload-request message over the multicast group, handling responses to it.
+                    String peerIdentifier = userBeaconChoice.getIdentifier();
+                    multicastHandler.uploadReceiver.sendUploadRequest(peerIdentifier, userUploadFilePath, fileToUploadPath);
 
                 } // if (user selected a peer to upload to).
 
@@ -434,6 +443,8 @@ public final class FileTreeBrowser {
         if (configuration_.search_) { // Can only search if enabled by te configuration.
             userOptions += optionSeparator;
             userOptions += search_;
+            userOptions += optionSeparator;
+            userOptions += more_;
         }
         if (configuration_.download_) { // Can only remote download if enabled by te configuration.
             userOptions += optionSeparator;
@@ -521,7 +532,7 @@ public final class FileTreeBrowser {
 
                     String beaconIdentifier = identifier + ":" + portStr; // Create key needed for beacons.
 
-                    if (multicastHandler.beaconReceiver.beacons.size() == 0) {
+                    if (multicastHandler.beaconReceiver.peerCount() == 0) {
 
                         // All beacons removed whilst getting user input.
                         System.out.println("There are no available beacons right now. Try again later.");
@@ -529,7 +540,7 @@ public final class FileTreeBrowser {
 
                     } else {
 
-                        Message beaconSelected = multicastHandler.beaconReceiver.beacons.get(beaconIdentifier);
+                        Message beaconSelected = multicastHandler.beaconReceiver.getBeacon(beaconIdentifier);
 
                         // Check if user selected a valid beacon from the list of available beacons.
                         if (beaconSelected != null) {
@@ -577,6 +588,15 @@ public final class FileTreeBrowser {
         if (availableSearchMatches.contains("substring")) {
             System.out.print(", 'substring'");
         }
+        if (availableSearchMatches.contains("glob")) {
+            System.out.print(", 'glob'");
+        }
+        if (availableSearchMatches.contains("regex")) {
+            System.out.print(", 'regex'");
+        }
+        if (configuration_.hashSearch_) {
+            System.out.print(", 'hash'");
+        }
         System.out.println();
 
         // Loop until user provides option.
@@ -596,6 +616,15 @@ public final class FileTreeBrowser {
                 } else if (userInput.equalsIgnoreCase("substring")) {
                     userSearchChoice =  "substring";
                     validSearchChoice = true;
+                } else if (userInput.equalsIgnoreCase("glob") && availableSearchMatches.contains("glob")) {
+                    userSearchChoice =  "glob";
+                    validSearchChoice = true;
+                } else if (userInput.equalsIgnoreCase("regex") && availableSearchMatches.contains("regex")) {
+                    userSearchChoice =  "regex";
+                    validSearchChoice = true;
+                } else if (userInput.equalsIgnoreCase("hash") && configuration_.hashSearch_) {
+                    userSearchChoice =  "hash";
+                    validSearchChoice = true;
                 } else {
                     System.out.println("Please choose a valid search type.");
                 }
@@ -730,7 +759,8 @@ public final class FileTreeBrowser {
         "\t:showBeacons\tShow currently available remote file-spaces.\n" +
         "\t:remoteBrowse\tBrowse a remote file-space.\n" +
         "\t:localBrowse\tReturn to local file-space browsing.\n" +
-        "\t:search\t\t\tSearch for a path, filename or substring on the network.\n" +
+        "\t:search\t\t\tSearch for a path, filename, substring, glob, regex or content hash.\n" +
+        "\t:more\t\t\tShow the next page of results of the last search.\n" +
         "\t:download\t\tDownload a file from a remote file-browser.\n" +
         "\t:upload\t\t\tUpload a file to a remote file-browser.\n" +
         "\t:delete\t\t\tDelete a file at a remote file-browser.\n";
@@ -753,7 +783,9 @@ public final class FileTreeBrowser {
         services += "searchMatch=" + configuration_.searchMatch_ + ",";
         services += "download=" + configuration_.download_ + ",";
         services += "upload=" + configuration_.upload_ + ",";
-        services += "delete=" + configuration_.delete_;
+        services += "delete=" + configuration_.delete_ + ",";
+        services += "hashSearch=" + configuration_.hashSearch_ + ",";
+        services += "transferCheck=" + configuration_.transferCheck_;
         services += ":";
 
         return services;
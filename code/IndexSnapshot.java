@@ -0,0 +1,240 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IndexSnapshot is the FileIndex as it was saved to disk, so that a restarted file browser need only read the
+ * directories that have changed since, rather than walking the whole tree.
+ *
+ * The snapshot holds one record per directory: its path from the root directory, its last modified time when it was
+ * read, and its entries. A directory's last modified time changes whenever an entry is added, removed or renamed, so a
+ * directory whose time still matches its record can be given its entries from the snapshot instead of being read.
+ *
+ * The file is memory mapped rather than read: loading only finds where each record starts, and the entries of a record
+ * are decoded when they are asked for, so the entries of changed directories are never decoded at all.
+ *
+ * Format (big-endian; a string is an int byte count followed by that many bytes of UTF-8):
+ *   int magic, int version, string root directory,
+ *   then per directory: string path ("" for the root directory), long last modified (ns), int entry count,
+ *   then per entry: byte directory (1) or file (0), string name.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class IndexSnapshot {
+
+
+    private static final int MAGIC = 0x46544249; // "FTBI".
+    private static final int VERSION = 1; // Format version; snapshots of other versions are ignored.
+
+    public static final long UNKNOWN = -1L; // Last modified time recorded for a directory that must be read again.
+
+    private final ByteBuffer buffer; // Mapped snapshot file.
+    private final HashMap<String, Integer> records; // Offset of the last modified time of each directory record.
+    private final AtomicInteger reused; // Number of directory records whose entries have been used.
+
+
+    /**
+     * Constructor: Creates a snapshot over a mapped file whose records have been located.
+     *
+     * @param buffer Mapped snapshot file.
+     * @param records Offset of the last modified time of each directory record, by path.
+     */
+    private IndexSnapshot(ByteBuffer buffer, HashMap<String, Integer> records) {
+
+        this.buffer = buffer;
+        this.records = records;
+        this.reused = new AtomicInteger();
+
+    } // IndexSnapshot().
+
+
+    /**
+     * Map a snapshot file and locate its directory records.
+     *
+     * @param file Snapshot file.
+     * @param root Absolute, normalised root directory the snapshot must be of.
+     *
+     * @return Snapshot, or null if there is none, or it is unreadable or of another root directory.
+     */
+    public static IndexSnapshot load(Path file, Path root) {
+
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            // The mapping stays valid once the channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || !getString(buffer).equals(root.toString())) {
+                return null;
+            }
+
+            HashMap<String, Integer> records = new HashMap<>();
+            while (buffer.hasRemaining()) {
+
+                String path = getString(buffer);
+                records.put(path, buffer.position());
+
+                buffer.getLong(); // Last modified.
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    buffer.get(); // Directory or file.
+                    int length = buffer.getInt();
+                    buffer.position(buffer.position() + length); // Name, decoded only if needed.
+                }
+
+            } // while (records remain).
+
+            return new IndexSnapshot(buffer, records);
+
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            System.err.println("IndexSnapshot.load() Error: " + e.getMessage()); // Unreadable or truncated.
+            return null;
+        }
+
+    } // load().
+
+
+    /**
+     * Find the entries of a directory, if it has not changed since the snapshot was saved.
+     *
+     * @param path Path of the directory from the root directory, "" for the root directory.
+     * @param lastModified Current last modified time of the directory, in ns.
+     *
+     * @return Entries of the directory, or null if it is not in the snapshot or has changed, so must be read.
+     */
+    public DirectoryWalker.Listing listing(String path, long lastModified) {
+
+        Integer offset = records.get(path);
+        if (offset == null) {
+            return null;
+        }
+
+        ByteBuffer record = buffer.duplicate(); // Own position, so records can be decoded concurrently.
+        record.position(offset);
+
+        long recorded = record.getLong();
+        if (recorded == UNKNOWN || recorded != lastModified) {
+            return null;
+        }
+
+        int count = record.getInt();
+        String[] names = new String[count];
+        boolean[] directories = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            directories[i] = record.get() == 1;
+            names[i] = getString(record);
+        }
+
+        reused.incrementAndGet();
+        return new DirectoryWalker.Listing(names, directories);
+
+    } // listing().
+
+
+    /**
+     * @return Number of directories in the snapshot.
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * @return Number of directories whose entries have been taken from the snapshot.
+     */
+    public int reused() {
+        return reused.get();
+    }
+
+
+    /**
+     * Save the index as a snapshot. The snapshot is written alongside and then moved over the old one, so a snapshot
+     * that is being loaded is never only partly written.
+     *
+     * @param file Snapshot file.
+     * @param root Absolute, normalised root directory.
+     * @param directoryTimes Last modified time (ns) of every directory read, by path from the root directory.
+     * @param children Entries of every directory by name, by path from the root directory.
+     */
+    public static void save(Path file, Path root, Map<String, Long> directoryTimes,
+                            Map<String, ? extends Map<String, FileIndex.Entry>> children) {
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            putString(out, root.toString());
+
+            for (Map.Entry<String, Long> directory : directoryTimes.entrySet()) {
+
+                Map<String, FileIndex.Entry> contents = children.get(directory.getKey());
+                List<FileIndex.Entry> entries = contents == null ? new ArrayList<>() : new ArrayList<>(contents.values());
+
+                putString(out, directory.getKey());
+                out.writeLong(directory.getValue());
+                out.writeInt(entries.size());
+
+                for (FileIndex.Entry entry : entries) {
+                    out.writeByte(entry.directory ? 1 : 0);
+                    putString(out, entry.path.substring(entry.path.lastIndexOf('/') + 1));
+                }
+
+            } // for (all directories read).
+
+        } catch (IOException e) {
+            System.err.println("IndexSnapshot.save() Error: " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("IndexSnapshot.save() Error: " + e.getMessage());
+        }
+
+    } // save().
+
+
+    /**
+     * @param buffer Buffer positioned at a string.
+     *
+     * @return The string, with the buffer positioned after it.
+     */
+    private static String getString(ByteBuffer buffer) {
+
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+
+    } // getString().
+
+
+    /**
+     * @param out Stream to write to.
+     * @param s String to write.
+     */
+    private static void putString(DataOutputStream out, String s) throws IOException {
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+    } // putString().
+
+
+} // IndexSnapshot{}.
@@ -1,9 +1,14 @@
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Message class is an object that holds all of the information that can be structured in a protocol message.
@@ -14,13 +19,36 @@ public class Message {
 
 
     private static final long initialSerialNumber = System.currentTimeMillis();
+    private static final AtomicLong lastSerialNumber = new AtomicLong(-1); // Last serial number given to a message.
+
+    private static volatile String localUsername; // Username of this file browser, resolved once.
+    private static volatile String localHostname; // Canonical hostname of this file browser, resolved once.
+    private static volatile String localIdentifier; // Identifier of this file browser: username@hostname.
+
+    // Attributes of parsed messages that are only turned into Strings when first read (index into slices).
+    private static final int LAZY_USERNAME = 0;
+    private static final int LAZY_HOSTNAME = 1;
+    private static final int LAZY_PAYLOAD_TYPE = 2;
+    private static final int LAZY_RESPONSE_IDENTIFIER = 3;
+    private static final int LAZY_SEARCH_MATCH = 4;
+    private static final int LAZY_SEARCH_TYPE = 5;
+    private static final int LAZY_SEARCH_STRING = 6;
+    private static final int LAZY_SEARCH_FILE_STRING = 7;
+    private static final int LAZY_TARGET_PEER_IDENTIFIER = 8;
+    private static final int LAZY_TARGET_FILE_PATH = 9;
+    private static final int LAZY_SEARCH_FILE_STRINGS = 10;
+    private static final int LAZY_ATTRIBUTES = 11;
+
+    private byte[] source; // Datagram this message was parsed from, null for messages created locally.
+    private int[] slices; // Start and end offsets into source of each lazy attribute, -1 when absent.
 
     // Header Attributes:
 
     private String username = ""; // Identifier: username@hostname.
     private String hostname = ""; // Identifier: username@hostname.
+    private String identifier; // Identifier: username@hostname, built from username and hostname when first read.
     private long serialNumber = -1; // Serial Number.
-    private Date timestamp = new Date(); // Timestamp as Date: "yyyyMMdd-HHmmss.SSS" format.
+    private long timestamp = System.currentTimeMillis(); // Timestamp as epoch ms: "yyyyMMdd-HHmmss.SSS" format.
 
     // Payload Attributes:
 
@@ -37,16 +65,37 @@ public class Message {
     private boolean downloadAvailable = false; // Whether the remote file browser supports remote download.
     private boolean uploadAvailable = false; // Whether the remote file browser supports remote upload.
     private boolean deleteAvailable = false; // Whether the remote file browser supports remote deletion.
+    private boolean batchResultsAvailable = false; // Whether the remote file browser understands search-results.
+    private boolean searchStreamAvailable = false; // Whether the remote file browser understands search-end.
+    private boolean catalogAvailable = false; // Whether the remote file browser sends and reads catalog messages.
+    private boolean hashSearchAvailable = false; // Whether the remote file browser answers hash searches.
+    private boolean transferCheckAvailable = false; // Whether the remote file browser checks transfers by CRC-32C.
+
+    // Catalog Payload Attributes:
+    private int catalogBlockIndex = -1; // Index of the BloomFilter block carried.
+    private int catalogBlockCount = -1; // Number of blocks in the sender's BloomFilter.
+    private int catalogHashes = -1; // Bits set per name in the sender's BloomFilter.
+    private byte[] catalogBlock = new byte[0]; // Bits of the block carried.
 
     // Search Payload Attributes:
-    private String searchType = ""; // Type of search being made, i.e. 'path, 'filename', and 'substring'.
+    private String searchType = ""; // Type of search being made, i.e. 'path', 'filename', 'substring', 'glob', 'regex' and 'hash'.
     private String searchString = ""; // Query string used in the search.
+    private long searchMaxResults = -1; // Most results wanted from each peer for a search request, -1 for all.
+    private long searchOffset = 0; // Results each peer should skip before those it sends, for a later page.
     private String searchFileString = ""; // Path to file meeting the criteria of the search.
+    private List<String> searchFileStrings = Collections.emptyList(); // Paths carried by a search-results message.
+    private long searchResultCount = -1; // Total results sent in answer to a search request, given by search-end.
 
     // Download/Upload/Delete Payload Attributes:
     private String targetPeerIdentifier = ""; // Remote peer to download/upload/delete.
     private String targetFilePath = ""; // Exact path to file to download/upload/delete at the remote peer.
     private int fileTransferPort = -1; // Port number indicated by remote peer to initiate download/upload.
+    private long transferOffset = 0; // Byte of the file a download/upload request asks to start from.
+    private long transferLength = -1; // Bytes a download/upload request asks to transfer, -1 for the rest of the file.
+    private long transferFileSize = -1; // Size of the responder's copy (result) or uploader's file (upload request), or -1.
+    private String transferPrefixChecksum = ""; // CRC-32C of the responder's copy up to the start, "" if not given.
+    private String transferContentDigest = ""; // SHA-256 of the responder's whole copy, "" if not given.
+    private String transferCheck = ""; // How a result's transfer is checked: "crc32c" for a trailer, "" for not at all.
 
 
     // Message Creation Methods:
@@ -71,12 +120,42 @@ public class Message {
         message.setDownloadAvailable(configuration.download_);
         message.setUploadAvailable(configuration.upload_);
         message.setDeleteAvailable(configuration.delete_);
+        message.setBatchResultsAvailable(configuration.batchResults_);
+        message.setSearchStreamAvailable(configuration.searchStream_);
+        message.setCatalogAvailable(configuration.catalog_);
+        message.setHashSearchAvailable(configuration.hashSearch_);
+        message.setTransferCheckAvailable(configuration.transferCheck_);
 
         return message;
 
     } // beaconMessage().
 
 
+    /**
+     * Create a message object required to format a catalog message, carrying one block of our BloomFilter of file
+     * names, to send over multicast.
+     *
+     * @param catalog BloomFilter of the names of the files under the root directory.
+     * @param blockIndex Index of the block to carry.
+     *
+     * @return Message object with the catalog information set.
+     */
+    public static Message catalogMessage(BloomFilter catalog, int blockIndex) {
+
+        Message message = new Message();
+
+        message.setHeader(message);
+        message.setPayloadType("catalog");
+        message.setCatalogBlockIndex(blockIndex);
+        message.setCatalogBlockCount(catalog.blockCount());
+        message.setCatalogHashes(catalog.hashes());
+        message.setCatalogBlock(catalog.getBlock(blockIndex));
+
+        return message;
+
+    } // catalogMessage().
+
+
     /**
      * Create a message object required to format a search request message to send over multicast.
      *
@@ -99,6 +178,29 @@ public class Message {
     } // searchRequestMessage().
 
 
+    /**
+     * Create a message object required to format a search request message for one page of results, to send over
+     * multicast.
+     *
+     * @param searchType Type of search, i.e. 'path', 'filename', 'substring'.
+     * @param searchString Query string for search.
+     * @param maxResults Most results wanted from each peer.
+     * @param offset Results each peer should skip, i.e. those of earlier pages.
+     *
+     * @return Message object with search-request message information set.
+     */
+    public static Message searchRequestMessage(String searchType, String searchString, long maxResults, long offset) {
+
+        Message message = searchRequestMessage(searchType, searchString);
+
+        message.setSearchMaxResults(maxResults);
+        message.setSearchOffset(offset);
+
+        return message;
+
+    } // searchRequestMessage().
+
+
     /**
      * Create a message object required to format a search result message to send over multicast.
      *
@@ -123,6 +225,31 @@ public class Message {
     } // searchResultMessage().
 
 
+    /**
+     * Create a message object required to format a search results message, which carries several results at once,
+     * to send over multicast.
+     *
+     * @param responseIdentifier Identifier of the search-request these results correspond to.
+     * @param serialNumber Serial number of the search-request these results correspond to.
+     * @param searchFileStrings Strings representing paths to files that satisfy the search request.
+     *
+     * @return Message object with search-results message information set.
+     */
+    public static Message searchResultsMessage(String responseIdentifier, long serialNumber, List<String> searchFileStrings) {
+
+        Message message = new Message();
+
+        message.setHeader(message);
+        message.setPayloadType("search-results");
+        message.setResponseIdentifier(responseIdentifier);
+        message.setResponseSerialNumber(serialNumber);
+        message.setSearchFileStrings(searchFileStrings);
+
+        return message;
+
+    } // searchResultsMessage().
+
+
     /**
      * Create a message object required to format a search error message to send over multicast.
      *
@@ -145,6 +272,31 @@ public class Message {
     } // searchErrorMessage().
 
 
+    /**
+     * Create a message object required to format a search end message, sent after the last result of a search, to
+     * send over multicast.
+     *
+     * @param responseIdentifier Identifier of the search-request this search-end corresponds to.
+     * @param serialNumber Serial number of the search-request this search-end corresponds to.
+     * @param searchResultCount Total number of results sent for the search-request.
+     *
+     * @return Message object with search-end message information set.
+     */
+    public static Message searchEndMessage(String responseIdentifier, long serialNumber, long searchResultCount) {
+
+        Message message = new Message();
+
+        message.setHeader(message);
+        message.setPayloadType("search-end");
+        message.setResponseIdentifier(responseIdentifier);
+        message.setResponseSerialNumber(serialNumber);
+        message.setSearchResultCount(searchResultCount);
+
+        return message;
+
+    } // searchEndMessage().
+
+
     /**
      * Create a message object to format a download request message to send over multicast.
      *
@@ -167,6 +319,28 @@ public class Message {
     } // downloadRequestMessage().
 
 
+    /**
+     * Create a message object to format a download request message for part of a file, e.g. to resume a transfer.
+     *
+     * @param downloadIdentifier Identifier (usernam@hostname) for peer to download from.
+     * @param downloadFilePath Exact file path to the file to download at the peer.
+     * @param offset Byte of the file to start from.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     *
+     * @return Message object with download-request information set.
+     */
+    public static Message downloadRequestMessage(String downloadIdentifier, String downloadFilePath, long offset, long length) {
+
+        Message message = downloadRequestMessage(downloadIdentifier, downloadFilePath);
+
+        message.setTransferOffset(offset);
+        message.setTransferLength(length);
+
+        return message;
+
+    } // downloadRequestMessage().
+
+
     /**
      * Create a message object to format a download result message to send over multicast.
      *
@@ -191,6 +365,31 @@ public class Message {
     } // downloadResultMessage().
 
 
+    /**
+     * Create a message object to format a download result message, giving the size of our copy of the file and, when
+     * the request asked to start part way through, the checksum of the part before the start.
+     *
+     * @param responseIdentifier Identifier (usernam@hostname) for peer who requested the download.
+     * @param serialNumber Serial number associated with the download request message.
+     * @param downloadPort Ephemeral port for the requester to download the file from.
+     * @param fileSize Size of our copy of the file.
+     * @param prefixChecksum CRC-32C of our copy before the start, in hexadecimal, "" if the transfer starts at 0.
+     *
+     * @return Message object with download-result information set.
+     */
+    public static Message downloadResultMessage(String responseIdentifier, long serialNumber, int downloadPort,
+                                              long fileSize, String prefixChecksum) {
+
+        Message message = downloadResultMessage(responseIdentifier, serialNumber, downloadPort);
+
+        message.setTransferFileSize(fileSize);
+        message.setTransferPrefixChecksum(prefixChecksum);
+
+        return message;
+
+    } // downloadResultMessage().
+
+
     /**
      * Create a message object to format a download error message to send over multicast.
      *
@@ -235,6 +434,52 @@ public class Message {
     } // uploadRequestMessage().
 
 
+    /**
+     * Create a message object to format a upload request message for part of a file, e.g. to resume a transfer.
+     *
+     * @param uploadIdentifier Identifier (usernam@hostname) for peer to upload to.
+     * @param uploadFilePath Exact file path to the file to upload at the peer.
+     * @param offset Byte of the file to start from.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     *
+     * @return Message object with upload-request information set.
+     */
+    public static Message uploadRequestMessage(String uploadIdentifier, String uploadFilePath, long offset, long length) {
+
+        Message message = uploadRequestMessage(uploadIdentifier, uploadFilePath);
+
+        message.setTransferOffset(offset);
+        message.setTransferLength(length);
+
+        return message;
+
+    } // uploadRequestMessage().
+
+
+    /**
+     * Create a message object to format a upload request message for part of a file, giving the size of the file so
+     * the peer can tell when the whole of it has been received.
+     *
+     * @param uploadIdentifier Identifier (usernam@hostname) for peer to upload to.
+     * @param uploadFilePath Exact file path to the file to upload at the peer.
+     * @param offset Byte of the file to start from.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     * @param fileSize Size of the file to upload.
+     *
+     * @return Message object with upload-request information set.
+     */
+    public static Message uploadRequestMessage(String uploadIdentifier, String uploadFilePath, long offset, long length,
+                                               long fileSize) {
+
+        Message message = uploadRequestMessage(uploadIdentifier, uploadFilePath, offset, length);
+
+        message.setTransferFileSize(fileSize);
+
+        return message;
+
+    } // uploadRequestMessage().
+
+
     /**
      * Create a message object to format a upload result message to send over multicast.
      *
@@ -259,6 +504,31 @@ public class Message {
     } // uploadResultMessage().
 
 
+    /**
+     * Create a message object to format a upload result message, giving the size of our copy of the file and, when
+     * the request asked to start part way through, the checksum of the part before the start.
+     *
+     * @param responseIdentifier Identifier (usernam@hostname) for peer who requested the upload.
+     * @param serialNumber Serial number associated with the upload request message.
+     * @param uploadPort Ephemeral port for the requester to upload the file to.
+     * @param fileSize Size of our copy of the file.
+     * @param prefixChecksum CRC-32C of our copy before the start, in hexadecimal, "" if the transfer starts at 0.
+     *
+     * @return Message object with upload-result information set.
+     */
+    public static Message uploadResultMessage(String responseIdentifier, long serialNumber, int uploadPort,
+                                              long fileSize, String prefixChecksum) {
+
+        Message message = uploadResultMessage(responseIdentifier, serialNumber, uploadPort);
+
+        message.setTransferFileSize(fileSize);
+        message.setTransferPrefixChecksum(prefixChecksum);
+
+        return message;
+
+    } // uploadResultMessage().
+
+
     /**
      * Create a message object to format a upload error message to send over multicast.
      *
@@ -354,232 +624,399 @@ public class Message {
      *
      * @param message The message to read/interpret as a string.
      *
-     * @return The message type, i.e., "beacon", "search", "download", "upload", "delete".
+     * @return Message object for the message, or null if the string is not a protocol message.
      */
     public static Message parseMessage(String message) {
 
-        Message messageObj = new Message();
-
-        String[] messageParts = message.split(":");
+        MessageView messageView = new MessageView();
 
-        if (messageParts.length < 3) {
+        if (!messageView.parse(ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII)))) {
             return null;
         }
 
-        // Read message header.
-        messageObj.setIdentifier(messageParts[1]);
-        messageObj.setSerialNumber(messageParts[2]);
+        return parseMessage(messageView);
 
-        try {
-            messageObj.setTimestamp(messageParts[3]);
-        } catch (ParseException e) {
-            System.err.println("Message.parseMessage() Error - Could not parse date: " + e.getMessage());
+    } // parseMessage().
+
+
+    /**
+     * Given a tokenized datagram, create the message object for it. Numbers, the timestamp and beacon services are
+     * decoded straight from the datagram bytes; string attributes are only created when a receiver reads them.
+     *
+     * @param messageView View of a datagram that has been tokenized successfully.
+     *
+     * @return Message object for the datagram, or null if the datagram does not follow the protocol.
+     */
+    public static Message parseMessage(MessageView messageView) {
+
+        int category = messageView.payloadCategory();
+        if (category == MessageView.CATEGORY_NONE) {
+            return null; // Ignore none protocol messages.
         }
 
-        messageObj.setPayloadType(messageParts[4]);
-        String payloadType = messageObj.getPayloadType();
+        Message messageObj = new Message();
+        messageObj.source = messageView.copyBytes();
+        messageObj.slices = new int[LAZY_ATTRIBUTES * 2];
+        Arrays.fill(messageObj.slices, -1);
+
+        try {
 
-        // Read messagePayload
-        String[] payload = Arrays.copyOfRange(messageParts, 5, messageParts.length);
+            // Read message header.
+            int identifierStart = messageView.start(MessageView.IDENTIFIER_FIELD);
+            int identifierEnd = messageView.end(MessageView.IDENTIFIER_FIELD);
+            int at = messageView.indexOf((byte) '@', identifierStart, identifierEnd);
+            if (at < 0) {
+                return null; // Identifier must be username@hostname.
+            }
+            messageObj.setSlice(LAZY_USERNAME, identifierStart, at);
+            messageObj.setSlice(LAZY_HOSTNAME, at + 1, identifierEnd);
 
-        if (payloadType.contains("beacon")) {
+            messageObj.setSerialNumber(messageView.fieldLong(MessageView.SERIAL_NUMBER_FIELD));
 
-            parsePayloadBeacon(messageObj, payload);
+            long timestamp = messageView.fieldTimestamp(MessageView.TIMESTAMP_FIELD);
+            if (timestamp < 0) {
+                System.err.println("Message.parseMessage() Error - Could not parse date.");
+            } else {
+                messageObj.timestamp = timestamp;
+            }
 
-        } else if (payloadType.contains("search")) {
+            messageObj.setSliceField(LAZY_PAYLOAD_TYPE, messageView, MessageView.PAYLOAD_TYPE_FIELD);
 
-            parsePayloadSearch(messageObj, payload);
+            // Read message payload.
+            boolean parsed;
+            if (category == MessageView.CATEGORY_BEACON) {
 
-        } else if (payloadType.contains("download")) {
+                parsed = parsePayloadBeacon(messageObj, messageView);
 
-            parsePayloadDownload(messageObj, payload);
+            } else if (category == MessageView.CATEGORY_SEARCH) {
 
-        } else if (payloadType.contains("upload")) {
+                parsed = parsePayloadSearch(messageObj, messageView);
 
-            parsePayloadUpload(messageObj, payload);
+            } else if (category == MessageView.CATEGORY_CATALOG) {
 
-        } else if (payloadType.contains("delete")) {
+                parsed = parsePayloadCatalog(messageObj, messageView);
 
-            parsePayloadDelete(messageObj, payload);
+            } else {
 
-        } else {
+                // Download, upload and delete messages share the same payload layouts.
+                parsed = parsePayloadFileTransfer(messageObj, messageView, category);
+
+            }
+
+            return parsed ? messageObj : null;
+
+        } catch (NumberFormatException e) {
+            System.err.println("Message.parseMessage() Error - Could not parse number: " + e.getMessage());
             return null;
-            // Ignore none protocol messages.
         }
 
-        return messageObj;
-
-    } // readMessage().
+    } // parseMessage().
 
 
     /**
      * Given a message determined to be of the beacon type, read the beacon payload contents into usable memory.
      *
-     * @param currMessage The current message object to update and return with updated payload data.
-     * @param payload Array of strings representing the payload data to be read.
+     * @param currMessage The current message object to update with payload data.
+     * @param messageView Tokenized datagram holding the payload data to be read.
      *
+     * @return True if the payload is well formed.
      */
-    public static void parsePayloadBeacon(Message currMessage, String[] payload) {
+    private static boolean parsePayloadBeacon(Message currMessage, MessageView messageView) {
+
+        int servicesField = MessageView.FIRST_PAYLOAD_FIELD + 1;
+        if (messageView.fieldCount() <= servicesField) {
+            return false;
+        }
 
         // Read payload server port data and update to message object.
-        currMessage.setServerPort(payload[0]);
+        currMessage.setServerPort((int) messageView.fieldLong(MessageView.FIRST_PAYLOAD_FIELD));
 
-        // Read payload service options data into message object.
-        String[] services = payload[1].split(",");
+        // Read payload service options data into message object: name "=" status *("," name "=" status).
+        int servicesEnd = messageView.end(servicesField);
+        int serviceStart = messageView.start(servicesField);
 
-        for (String currService : services) {
+        while (serviceStart < servicesEnd) {
 
-            String[] servicePair = currService.split("=");
-            String serviceName = servicePair[0];
-            String serviceStatusString = servicePair[1];
-            boolean serviceStatus = serviceStatusString.equals("true");
+            int serviceEnd = messageView.indexOf((byte) ',', serviceStart, servicesEnd);
+            if (serviceEnd < 0) serviceEnd = servicesEnd;
 
-            switch (serviceName) {
-                case "remoteBrowse":
+            int equals = messageView.indexOf((byte) '=', serviceStart, serviceEnd);
+            if (equals > 0) {
+
+                boolean serviceStatus = messageView.regionEquals(equals + 1, serviceEnd, "true");
+
+                if (messageView.regionEquals(serviceStart, equals, "remoteBrowse")) {
                     currMessage.setRemoteBrowseAvailable(serviceStatus);
-                    break;
-                case "search":
+                } else if (messageView.regionEquals(serviceStart, equals, "search")) {
                     currMessage.setSearchAvailable(serviceStatus);
-                    break;
-                case "download":
+                } else if (messageView.regionEquals(serviceStart, equals, "searchMatch")) {
+                    currMessage.setSlice(LAZY_SEARCH_MATCH, equals + 1, serviceEnd);
+                } else if (messageView.regionEquals(serviceStart, equals, "download")) {
                     currMessage.setDownloadAvailable(serviceStatus);
-                    break;
-                case "upload":
+                } else if (messageView.regionEquals(serviceStart, equals, "upload")) {
                     currMessage.setUploadAvailable(serviceStatus);
-                    break;
-                case "delete":
+                } else if (messageView.regionEquals(serviceStart, equals, "delete")) {
                     currMessage.setDeleteAvailable(serviceStatus);
-                    break;
-                default: // searchMatch.
-                    currMessage.setSearchMatch(serviceStatusString);
-            } // switch (serviceName).
+                } else if (messageView.regionEquals(serviceStart, equals, "batchResults")) {
+                    currMessage.setBatchResultsAvailable(serviceStatus);
+                } else if (messageView.regionEquals(serviceStart, equals, "searchStream")) {
+                    currMessage.setSearchStreamAvailable(serviceStatus);
+                } else if (messageView.regionEquals(serviceStart, equals, "catalog")) {
+                    currMessage.setCatalogAvailable(serviceStatus);
+                } else if (messageView.regionEquals(serviceStart, equals, "hashSearch")) {
+                    currMessage.setHashSearchAvailable(serviceStatus);
+                } else if (messageView.regionEquals(serviceStart, equals, "transferCheck")) {
+                    currMessage.setTransferCheckAvailable(serviceStatus);
+                } // Services this browser does not know about are ignored.
+
+            } // if (service has a status).
 
-        } // for currService in services.
+            serviceStart = serviceEnd + 1;
 
-    } // readPayloadBeacon().
+        } // while (services remain).
+
+        return true;
+
+    } // parsePayloadBeacon().
 
 
     /**
      * Given a message determined to be a search message, read the search message payload into usable memory.
      *
-     * @param currMessage The current message object to update and return with updated payload data.
-     * @param payload Array of strings representing the payload data to be read.
+     * @param currMessage The current message object to update with payload data.
+     * @param messageView Tokenized datagram holding the payload data to be read.
+     *
+     * @return True if the payload is well formed.
      */
-    public static void parsePayloadSearch(Message currMessage, String[] payload) {
+    private static boolean parsePayloadSearch(Message currMessage, MessageView messageView) {
 
-        String searchType = currMessage.getPayloadType(); // i.e. "search-request", "search-result", "search-error".
+        int payload = MessageView.FIRST_PAYLOAD_FIELD;
+        int payloadFields = messageView.fieldCount() - payload;
 
-        if (searchType.equalsIgnoreCase("search-request")) {
+        if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "search-request") && payloadFields >= 2) {
 
-            currMessage.setSearchType(payload[0]);
-            currMessage.setSearchString(payload[1]);
+            currMessage.setSliceField(LAZY_SEARCH_TYPE, messageView, payload);
+            currMessage.setSliceField(LAZY_SEARCH_STRING, messageView, payload + 1);
 
-        } else if (searchType.equalsIgnoreCase("search-result")) {
-
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
-            currMessage.setSearchFileString(payload[2]);
-
-        } else if (searchType.equalsIgnoreCase("search-error")) {
-
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
-
-        }
+            // Optional page of results: max-results, then offset.
+            if (payloadFields >= 3) {
+                currMessage.setSearchMaxResults(messageView.fieldLong(payload + 2));
+            }
+            if (payloadFields >= 4) {
+                currMessage.setSearchOffset(messageView.fieldLong(payload + 3));
+            }
+            if (currMessage.searchMaxResults < 0 || currMessage.searchOffset < 0) {
+                return false;
+            }
 
-    } // parsePayloadSearch().
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "search-result") && payloadFields >= 3) {
 
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
+            currMessage.setSliceField(LAZY_SEARCH_FILE_STRING, messageView, payload + 2);
 
-    /**
-     * Given a message determined to be a download message, read the download message payload into usable memory.
-     *
-     * @param currMessage The current message object to update and return with updated payload data.
-     * @param payload Array of strings representing the payload data to be read.
-     */
-    public static void parsePayloadDownload(Message currMessage, String[] payload) {
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "search-results") && payloadFields >= 4) {
 
-        String downloadType = currMessage.getPayloadType(); // i.e. "download-request", "download-result", "download-error".
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
 
-        if (downloadType.equalsIgnoreCase("download-request")) {
+            // The count must agree with the number of paths that follow it.
+            long count = messageView.fieldLong(payload + 2);
+            if (count != payloadFields - 3) {
+                return false;
+            }
 
-            currMessage.setTargetPeerIdentifier(payload[0]);
-            currMessage.setTargetFilePath(payload[1]);
+            // The paths are only split apart when read.
+            currMessage.setSlice(LAZY_SEARCH_FILE_STRINGS, messageView.start(payload + 3), messageView.end(messageView.fieldCount() - 1));
 
-        } else if (downloadType.equalsIgnoreCase("download-result")) {
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "search-end") && payloadFields >= 3) {
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
-            currMessage.setFileTransferPort(Integer.parseInt(payload[2]));
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
+            currMessage.setSearchResultCount(messageView.fieldLong(payload + 2));
 
-        } else if (downloadType.equalsIgnoreCase("download-error")) {
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "search-error") && payloadFields >= 2) {
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
 
+        } else {
+            return false;
         }
 
-    } // parsePayloadDownload().
+        return true;
+
+    } // parsePayloadSearch().
 
 
     /**
-     * Given a message determined to be an upload message, read the upload message payload into usable memory.
+     * Given a message determined to be a catalog message, read the block it carries into usable memory.
+     *
+     * @param currMessage The current message object to update with payload data.
+     * @param messageView Tokenized datagram holding the payload data to be read.
      *
-     * @param currMessage The current message object to update and return with updated payload data.
-     * @param payload Array of strings representing the payload data to be read.
+     * @return True if the payload is well formed.
      */
-    public static void parsePayloadUpload(Message currMessage, String[] payload) {
+    private static boolean parsePayloadCatalog(Message currMessage, MessageView messageView) {
 
-        String downloadType = currMessage.getPayloadType(); // i.e. "upload-request", "upload-result", "upload-error".
+        int payload = MessageView.FIRST_PAYLOAD_FIELD;
+        if (!messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, "catalog")
+                || messageView.fieldCount() - payload < 4) {
+            return false;
+        }
 
-        if (downloadType.equalsIgnoreCase("upload-request")) {
+        currMessage.setCatalogBlockIndex((int) messageView.fieldLong(payload));
+        currMessage.setCatalogBlockCount((int) messageView.fieldLong(payload + 1));
+        currMessage.setCatalogHashes((int) messageView.fieldLong(payload + 2));
 
-            currMessage.setTargetPeerIdentifier(payload[0]);
-            currMessage.setTargetFilePath(payload[1]);
+        try {
+            currMessage.setCatalogBlock(Base64.getDecoder().decode(messageView.fieldString(payload + 3)));
+        } catch (IllegalArgumentException e) {
+            return false; // Not Base64.
+        }
 
-        } else if (downloadType.equalsIgnoreCase("upload-result")) {
+        return currMessage.catalogBlockIndex >= 0 && currMessage.catalogBlockIndex < currMessage.catalogBlockCount
+                && currMessage.catalogHashes > 0 && currMessage.catalogBlock.length > 0;
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
-            currMessage.setFileTransferPort(Integer.parseInt(payload[2]));
+    } // parsePayloadCatalog().
 
-        } else if (downloadType.equalsIgnoreCase("upload-error")) {
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
+    /**
+     * Given a message determined to be a download, upload or delete message, read the message payload into usable
+     * memory. The three message families share the same layouts: requests carry a target identifier and file path,
+     * results carry a response-id (and a transfer port for downloads and uploads), errors carry a response-id.
+     *
+     * @param currMessage The current message object to update with payload data.
+     * @param messageView Tokenized datagram holding the payload data to be read.
+     * @param category Payload category of the message.
+     *
+     * @return True if the payload is well formed.
+     */
+    private static boolean parsePayloadFileTransfer(Message currMessage, MessageView messageView, int category) {
+
+        String prefix = category == MessageView.CATEGORY_DOWNLOAD ? "download"
+                : category == MessageView.CATEGORY_UPLOAD ? "upload" : "delete";
+
+        int payload = MessageView.FIRST_PAYLOAD_FIELD;
+        int payloadFields = messageView.fieldCount() - payload;
+
+        if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, prefix + "-request") && payloadFields >= 2) {
+
+            currMessage.setSliceField(LAZY_TARGET_PEER_IDENTIFIER, messageView, payload);
+            currMessage.setSliceField(LAZY_TARGET_FILE_PATH, messageView, payload + 1);
+
+            // Optional part of the file to transfer: offset, then length (empty for the rest of the file if the
+            // uploader's file size follows).
+            if (category != MessageView.CATEGORY_DELETE) {
+                if (payloadFields >= 3) {
+                    currMessage.setTransferOffset(messageView.fieldLong(payload + 2));
+                }
+                boolean lengthGiven = payloadFields >= 4 && messageView.start(payload + 3) < messageView.end(payload + 3);
+                if (lengthGiven) {
+                    currMessage.setTransferLength(messageView.fieldLong(payload + 3));
+                }
+                if (payloadFields >= 5 && category == MessageView.CATEGORY_UPLOAD) {
+                    currMessage.setTransferFileSize(messageView.fieldLong(payload + 4));
+                }
+                if (currMessage.transferOffset < 0 || (lengthGiven && currMessage.transferLength < 0)) {
+                    return false;
+                }
+            }
+
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, prefix + "-result") && payloadFields >= 2) {
+
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
+
+            if (category != MessageView.CATEGORY_DELETE) {
+                currMessage.setFileTransferPort((int) messageView.fieldLong(payload + 2));
+
+                // Optional size of the responder's copy, checksum of the part before the start, digest (either may be
+                // empty), and how the transfer is checked.
+                if (payloadFields >= 4) {
+                    currMessage.setTransferFileSize(messageView.fieldLong(payload + 3));
+                }
+                if (payloadFields >= 5) {
+                    currMessage.setTransferPrefixChecksum(messageView.fieldString(payload + 4));
+                }
+                if (payloadFields >= 6) {
+                    currMessage.setTransferContentDigest(messageView.fieldString(payload + 5));
+                }
+                if (payloadFields >= 7) {
+                    currMessage.setTransferCheck(messageView.fieldString(payload + 6));
+                }
+            }
+
+        } else if (messageView.fieldEquals(MessageView.PAYLOAD_TYPE_FIELD, prefix + "-error") && payloadFields >= 2) {
+
+            currMessage.setSliceField(LAZY_RESPONSE_IDENTIFIER, messageView, payload);
+            currMessage.setResponseSerialNumber(messageView.fieldLong(payload + 1));
 
+        } else {
+            return false;
         }
 
-    } // parsePayloadUpload().
+        return true;
+
+    } // parsePayloadFileTransfer().
 
 
     /**
-     * Given a message determined to be a delete message, read the delete message payload into usable memory.
+     * Mark a lazy attribute as backed by a whole field of the datagram.
      *
-     * @param currMessage The current message object to update and return with updated payload data.
-     * @param payload Array of strings representing the payload data to be read.
+     * @param attribute LAZY_ attribute index.
+     * @param messageView Tokenized datagram.
+     * @param field Field index within the datagram.
      */
-    public static void parsePayloadDelete(Message currMessage, String[] payload) {
-
-        String downloadType = currMessage.getPayloadType(); // i.e. "delete-request", "delete-result", "delete-error".
-
-        if (downloadType.equalsIgnoreCase("delete-request")) {
-
-            currMessage.setTargetPeerIdentifier(payload[0]);
-            currMessage.setTargetFilePath(payload[1]);
-
-        } else if (downloadType.equalsIgnoreCase("delete-result")) {
+    private void setSliceField(int attribute, MessageView messageView, int field) {
+        setSlice(attribute, messageView.start(field), messageView.end(field));
+    }
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
+    /**
+     * Mark a lazy attribute as backed by a region of the datagram.
+     *
+     * @param attribute LAZY_ attribute index.
+     * @param start Offset of the first byte of the attribute.
+     * @param end Offset one past the last byte of the attribute.
+     */
+    private void setSlice(int attribute, int start, int end) {
+
+        slices[attribute * 2] = start;
+        slices[attribute * 2 + 1] = end;
+
+        switch (attribute) { // Clear the default so that the getter materialises the attribute on first use.
+            case LAZY_USERNAME: username = null; break;
+            case LAZY_HOSTNAME: hostname = null; break;
+            case LAZY_PAYLOAD_TYPE: payloadType = null; break;
+            case LAZY_RESPONSE_IDENTIFIER: responseIdentifier = null; break;
+            case LAZY_SEARCH_MATCH: searchMatch = null; break;
+            case LAZY_SEARCH_TYPE: searchType = null; break;
+            case LAZY_SEARCH_STRING: searchString = null; break;
+            case LAZY_SEARCH_FILE_STRING: searchFileString = null; break;
+            case LAZY_SEARCH_FILE_STRINGS: searchFileStrings = null; break;
+            case LAZY_TARGET_PEER_IDENTIFIER: targetPeerIdentifier = null; break;
+            case LAZY_TARGET_FILE_PATH: targetFilePath = null; break;
+        }
 
-        } else if (downloadType.equalsIgnoreCase("delete-error")) {
+    } // setSlice().
 
-            currMessage.setResponseIdentifier(payload[0]);
-            currMessage.setResponseSerialNumber(Long.parseLong(payload[1]));
+    /**
+     * Create the String for a lazy attribute from the datagram it was parsed from.
+     *
+     * @param attribute LAZY_ attribute index.
+     *
+     * @return Attribute value, or "" if the datagram did not carry it.
+     */
+    private String materialise(int attribute) {
 
+        if (source == null || slices[attribute * 2] < 0) {
+            return "";
         }
 
-    } // parsePayloadDelete().
+        int start = slices[attribute * 2];
+        return new String(source, start, slices[attribute * 2 + 1] - start, StandardCharsets.US_ASCII);
+
+    } // materialise().
 
 
     // Auxiliary Methods:
@@ -591,181 +1028,55 @@ public class Message {
      */
     private void setHeader(Message message) {
 
-        try {
-            String identifier = System.getProperty("user.name") + "@" + InetAddress.getLocalHost().getCanonicalHostName();
-            message.setIdentifier(identifier);
-        } catch (UnknownHostException e) {
-            System.err.println("Message.setHeader() Error - Could not get hostname: " + e.getMessage());
-        }
+        String identifier = localIdentifier();
+        message.username = localUsername;
+        message.hostname = localHostname;
+        message.identifier = identifier;
 
-        long serialNumber = System.currentTimeMillis() - initialSerialNumber;
+        // Serial numbers follow the clock, but are bumped when needed so no two of our messages share one.
+        long now = System.currentTimeMillis();
+        long serialNumber = lastSerialNumber.updateAndGet(last -> Math.max(now - initialSerialNumber, last + 1));
         message.setSerialNumber(serialNumber);
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-        String date = sdf.format(new Date());
-        try {
-            message.setTimestamp(date);
-        } catch (ParseException e) {
-            System.err.println("Message.setHeader() Error - Could not parse date: " + e.getMessage());
-        }
+        message.timestamp = now;
 
     } // setHeader().
 
 
     /**
-     * @return Calling toString on a message object will return the protocol representation of that message as a string.
+     * Get the identifier of this file browser. The canonical hostname is only looked up the first time.
+     *
+     * @return Identifier of this file browser: username@hostname.
      */
-    @Override
-    public String toString() {
+    public static String localIdentifier() {
 
-        // Method could have been made more concise, but purposefully left explicit for ease of protocol format verification.
-
-        String messageString = "";
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-
-        if (this.payloadType.equalsIgnoreCase("beacon")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getServerPort()
-                            + ":" + "remoteBrowse=" + this.isRemoteBrowseAvailable()
-                            + "," + "search=" + this.isSearchAvailable()
-                            + "," + "searchMatch=" + this.getSearchMatch()
-                            + "," + "download=" + this.isDownloadAvailable()
-                            + "," + "upload=" + this.isUploadAvailable()
-                            + "," + "delete=" + this.isDeleteAvailable()
-                            + ":";
-
-
-        } else if (this.payloadType.equalsIgnoreCase("search-request")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getSearchType()
-                            + ":" + this.getSearchString()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("search-result")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getResponseIdentifier()
-                            + ":" + this.getResponseSerialNumber()
-                            + ":" + this.getSearchFileString()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("search-error")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getResponseIdentifier()
-                            + ":" + this.getResponseSerialNumber()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("upload-request")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getTargetPeerIdentifier()
-                            + ":" + this.getTargetFilePath()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("upload-result")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getResponseIdentifier()
-                            + ":" + this.getResponseSerialNumber()
-                            + ":" + this.getFileTransferPort()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("upload-error")) {
-
-            messageString = ":" + this.getIdentifier()
-                            + ":" + this.getSerialNumber()
-                            + ":" + sdf.format(this.getTimestamp())
-                            + ":" + this.getPayloadType()
-                            + ":" + this.getResponseIdentifier()
-                            + ":" + this.getResponseSerialNumber()
-                            + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("delete-request")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getTargetPeerIdentifier()
-                    + ":" + this.getTargetFilePath()
-                    + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("delete-result")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getResponseIdentifier()
-                    + ":" + this.getResponseSerialNumber()
-                    + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("delete-error")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getResponseIdentifier()
-                    + ":" + this.getResponseSerialNumber()
-                    + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("download-request")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getTargetPeerIdentifier()
-                    + ":" + this.getTargetFilePath()
-                    + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("download-result")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getResponseIdentifier()
-                    + ":" + this.getResponseSerialNumber()
-                    + ":" + this.getFileTransferPort()
-                    + ":";
-
-        } else if (this.payloadType.equalsIgnoreCase("download-error")) {
-
-            messageString = ":" + this.getIdentifier()
-                    + ":" + this.getSerialNumber()
-                    + ":" + sdf.format(this.getTimestamp())
-                    + ":" + this.getPayloadType()
-                    + ":" + this.getResponseIdentifier()
-                    + ":" + this.getResponseSerialNumber()
-                    + ":";
+        if (localIdentifier == null) {
 
-        }
+            String hostname;
+            try {
+                hostname = InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                System.err.println("Message.localIdentifier() Error - Could not get hostname: " + e.getMessage());
+                hostname = "localhost";
+            }
+
+            localUsername = System.getProperty("user.name");
+            localHostname = hostname;
+            localIdentifier = localUsername + "@" + localHostname;
+
+        } // if (identifier not yet resolved).
+
+        return localIdentifier;
 
-        return messageString;
+    } // localIdentifier().
 
+
+    /**
+     * @return Calling toString on a message object will return the protocol representation of that message as a string.
+     */
+    @Override
+    public String toString() {
+        return MessageEncoder.forCurrentThread().encodeToString(this);
     }
 
 
@@ -778,7 +1089,8 @@ public class Message {
      * @return Message identifier: username@hostname.
      */
     public String getIdentifier() {
-        return username + "@" + hostname;
+        if (identifier == null) identifier = getUsername() + "@" + getHostname();
+        return identifier;
     }
 
     /**
@@ -790,6 +1102,7 @@ public class Message {
 
         this.setUsername(identifierParts[0]);
         this.setHostname(identifierParts[1]);
+        this.identifier = identifier;
 
     }
 
@@ -797,6 +1110,7 @@ public class Message {
      * @return Username.
      */
     public String getUsername() {
+        if (username == null) username = materialise(LAZY_USERNAME);
         return username;
     }
 
@@ -805,12 +1119,14 @@ public class Message {
      */
     public void setUsername(String username) {
         this.username = username;
+        this.identifier = null;
     }
 
     /**
      * @return Hostname.
      */
     public String getHostname() {
+        if (hostname == null) hostname = materialise(LAZY_HOSTNAME);
         return hostname;
     }
 
@@ -819,6 +1135,7 @@ public class Message {
      */
     public void setHostname(String hostname) {
         this.hostname = hostname;
+        this.identifier = null;
     }
 
     /**
@@ -846,6 +1163,13 @@ public class Message {
      * @return Timestamp in format: 'yyyyMMdd-HHmmss.SSS'.
      */
     public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    /**
+     * @return Timestamp as epoch milliseconds.
+     */
+    public long getTimestampMillis() {
         return timestamp;
     }
 
@@ -855,8 +1179,15 @@ public class Message {
      * @throws ParseException Could not parse timestamp string to SimpleDateFormat.
      */
     public void setTimestamp(String timestamp) throws ParseException {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-        this.timestamp = sdf.parse(timestamp);
+
+        byte[] timestampBytes = timestamp.getBytes(StandardCharsets.US_ASCII);
+        long millis = new TimestampCodec().parse(timestampBytes, 0, timestampBytes.length);
+
+        if (millis < 0) {
+            throw new ParseException("Unparseable date: \"" + timestamp + "\"", 0);
+        }
+        this.timestamp = millis;
+
     }
 
 
@@ -866,6 +1197,7 @@ public class Message {
      * @return Payload type.
      */
     public String getPayloadType() {
+        if (payloadType == null) payloadType = materialise(LAZY_PAYLOAD_TYPE);
         return payloadType;
     }
 
@@ -912,7 +1244,12 @@ public class Message {
         services += "searchMatch=" + getSearchMatch() + ", ";
         services += "download=" + isDownloadAvailable() + ", ";
         services += "upload=" + isUploadAvailable() + ", ";
-        services += "delete=" + isDeleteAvailable();
+        services += "delete=" + isDeleteAvailable() + ", ";
+        services += "batchResults=" + isBatchResultsAvailable() + ", ";
+        services += "searchStream=" + isSearchStreamAvailable() + ", ";
+        services += "catalog=" + isCatalogAvailable() + ", ";
+        services += "hashSearch=" + isHashSearchAvailable() + ", ";
+        services += "transferCheck=" + isTransferCheckAvailable();
 
         return services;
 
@@ -947,14 +1284,15 @@ public class Message {
     }
 
     /**
-     * @return searchMatch: "none", "path", "path-filename", "path-filename-substring".
+     * @return searchMatch: "none", "path", "path-filename", "path-filename-substring", "path-filename-substring-glob-regex".
      */
     public String getSearchMatch() {
+        if (searchMatch == null) searchMatch = materialise(LAZY_SEARCH_MATCH);
         return searchMatch;
     }
 
     /**
-     * @param searchMatch Set searchMatch: "none", "path", "path-filename", "path-filename-substring".
+     * @param searchMatch Set searchMatch: "none", "path", "path-filename", "path-filename-substring", "path-filename-substring-glob-regex".
      */
     public void setSearchMatch(String searchMatch) {
         this.searchMatch = searchMatch;
@@ -1002,6 +1340,135 @@ public class Message {
         this.deleteAvailable = deleteAvailable;
     }
 
+    /**
+     * @return batchResultsAvailable: true if the remote file browser accepts several results in one search-results message.
+     */
+    public boolean isBatchResultsAvailable() {
+        return batchResultsAvailable;
+    }
+
+    /**
+     * @param batchResultsAvailable Set batchResultsAvailable.
+     */
+    public void setBatchResultsAvailable(boolean batchResultsAvailable) {
+        this.batchResultsAvailable = batchResultsAvailable;
+    }
+
+    /**
+     * @return searchStreamAvailable: true if the remote file browser accepts a search-end message after the results.
+     */
+    public boolean isSearchStreamAvailable() {
+        return searchStreamAvailable;
+    }
+
+    /**
+     * @param searchStreamAvailable Set searchStreamAvailable.
+     */
+    public void setSearchStreamAvailable(boolean searchStreamAvailable) {
+        this.searchStreamAvailable = searchStreamAvailable;
+    }
+
+    /**
+     * @return catalogAvailable: true if the remote file browser sends catalog messages and reads ours.
+     */
+    public boolean isCatalogAvailable() {
+        return catalogAvailable;
+    }
+
+    /**
+     * @param catalogAvailable Set catalogAvailable.
+     */
+    public void setCatalogAvailable(boolean catalogAvailable) {
+        this.catalogAvailable = catalogAvailable;
+    }
+
+    /**
+     * @return hashSearchAvailable: true if the remote file browser answers searches of type 'hash'.
+     */
+    public boolean isHashSearchAvailable() {
+        return hashSearchAvailable;
+    }
+
+    /**
+     * @param hashSearchAvailable Set hashSearchAvailable.
+     */
+    public void setHashSearchAvailable(boolean hashSearchAvailable) {
+        this.hashSearchAvailable = hashSearchAvailable;
+    }
+
+    /**
+     * @return transferCheckAvailable: true if the remote file browser sends and verifies CRC-32C trailers on transfers.
+     */
+    public boolean isTransferCheckAvailable() {
+        return transferCheckAvailable;
+    }
+
+    /**
+     * @param transferCheckAvailable Set transferCheckAvailable.
+     */
+    public void setTransferCheckAvailable(boolean transferCheckAvailable) {
+        this.transferCheckAvailable = transferCheckAvailable;
+    }
+
+
+    // Catalog Payload:
+
+    /**
+     * @return Index of the BloomFilter block carried by a catalog message.
+     */
+    public int getCatalogBlockIndex() {
+        return catalogBlockIndex;
+    }
+
+    /**
+     * @param catalogBlockIndex Set the index of the block carried.
+     */
+    public void setCatalogBlockIndex(int catalogBlockIndex) {
+        this.catalogBlockIndex = catalogBlockIndex;
+    }
+
+    /**
+     * @return Number of blocks in the sender's BloomFilter.
+     */
+    public int getCatalogBlockCount() {
+        return catalogBlockCount;
+    }
+
+    /**
+     * @param catalogBlockCount Set the number of blocks in the sender's BloomFilter.
+     */
+    public void setCatalogBlockCount(int catalogBlockCount) {
+        this.catalogBlockCount = catalogBlockCount;
+    }
+
+    /**
+     * @return Bits set per name in the sender's BloomFilter.
+     */
+    public int getCatalogHashes() {
+        return catalogHashes;
+    }
+
+    /**
+     * @param catalogHashes Set the bits set per name in the sender's BloomFilter.
+     */
+    public void setCatalogHashes(int catalogHashes) {
+        this.catalogHashes = catalogHashes;
+    }
+
+    /**
+     * @return Bits of the BloomFilter block carried.
+     */
+    public byte[] getCatalogBlock() {
+        return catalogBlock;
+    }
+
+    /**
+     * @param catalogBlock Set the bits of the block carried.
+     */
+    public void setCatalogBlock(byte[] catalogBlock) {
+        this.catalogBlock = catalogBlock;
+    }
+
 
     // Search Payload:
 
@@ -1009,7 +1476,7 @@ public class Message {
      * @return Response ID which has format: <identifier> <serial_number>, for search-result and search-error messages.
      */
     public String getResponseIDSerialNum() {
-        return responseIdentifier + ":" + responseSerialNumber;
+        return getResponseIdentifier() + ":" + responseSerialNumber;
     }
 
     /**
@@ -1025,6 +1492,7 @@ public class Message {
      * @return Search type for search request messages, i.e. 'path', 'filename', 'substring'.
      */
     public String getSearchType() {
+        if (searchType == null) searchType = materialise(LAZY_SEARCH_TYPE);
         return searchType;
     }
 
@@ -1039,6 +1507,7 @@ public class Message {
      * @return Search String for search request: the string that queries the search.
      */
     public String getSearchString() {
+        if (searchString == null) searchString = materialise(LAZY_SEARCH_STRING);
         return searchString;
     }
 
@@ -1049,10 +1518,39 @@ public class Message {
         this.searchString = searchString;
     }
 
+    /**
+     * @return Most results wanted from each peer for a search request, or -1 for all of them.
+     */
+    public long getSearchMaxResults() {
+        return searchMaxResults;
+    }
+
+    /**
+     * @param searchMaxResults Set the most results wanted from each peer, -1 for all of them.
+     */
+    public void setSearchMaxResults(long searchMaxResults) {
+        this.searchMaxResults = searchMaxResults;
+    }
+
+    /**
+     * @return Results each peer should skip before those it sends for a search request.
+     */
+    public long getSearchOffset() {
+        return searchOffset;
+    }
+
+    /**
+     * @param searchOffset Set the results each peer should skip before those it sends.
+     */
+    public void setSearchOffset(long searchOffset) {
+        this.searchOffset = searchOffset;
+    }
+
     /**
      * @return Response Identifier: same as an identifier, but given in response to match up correct search messages.
      */
     public String getResponseIdentifier() {
+        if (responseIdentifier == null) responseIdentifier = materialise(LAZY_RESPONSE_IDENTIFIER);
         return responseIdentifier;
     }
 
@@ -1081,6 +1579,7 @@ public class Message {
      * @return File String, representing a file path to a file meeting the criteria of a search request.
      */
     public String getSearchFileString() {
+        if (searchFileString == null) searchFileString = materialise(LAZY_SEARCH_FILE_STRING);
         return searchFileString;
     }
 
@@ -1091,10 +1590,40 @@ public class Message {
         this.searchFileString = searchFileString;
     }
 
+    /**
+     * @return File strings carried by a search-results message, each a path to a file meeting the criteria of a search request.
+     */
+    public List<String> getSearchFileStrings() {
+        if (searchFileStrings == null) searchFileStrings = Arrays.asList(materialise(LAZY_SEARCH_FILE_STRINGS).split(":"));
+        return searchFileStrings;
+    }
+
+    /**
+     * @param searchFileStrings Set file strings carried by a search-results message.
+     */
+    public void setSearchFileStrings(List<String> searchFileStrings) {
+        this.searchFileStrings = searchFileStrings;
+    }
+
+    /**
+     * @return Total number of results sent in answer to a search request, carried by a search-end message.
+     */
+    public long getSearchResultCount() {
+        return searchResultCount;
+    }
+
+    /**
+     * @param searchResultCount Set the total number of results sent in answer to a search request.
+     */
+    public void setSearchResultCount(long searchResultCount) {
+        this.searchResultCount = searchResultCount;
+    }
+
     /**
      * @return Identifier (username@hostname) for the peer targeted to complete the download/upload/delete.
      */
     public String getTargetPeerIdentifier() {
+        if (targetPeerIdentifier == null) targetPeerIdentifier = materialise(LAZY_TARGET_PEER_IDENTIFIER);
         return targetPeerIdentifier;
     }
 
@@ -1109,6 +1638,7 @@ public class Message {
      * @return File path for the file involved in the download/upload/delete from the root ('/') directory.
      */
     public String getTargetFilePath() {
+        if (targetFilePath == null) targetFilePath = materialise(LAZY_TARGET_FILE_PATH);
         return targetFilePath;
     }
 
@@ -1133,5 +1663,91 @@ public class Message {
         this.fileTransferPort = fileTransferPort;
     }
 
+    /**
+     * @return Byte of the file a download/upload request asks to start from.
+     */
+    public long getTransferOffset() {
+        return transferOffset;
+    }
+
+    /**
+     * @param transferOffset Set the byte of the file a download/upload request asks to start from.
+     */
+    public void setTransferOffset(long transferOffset) {
+        this.transferOffset = transferOffset;
+    }
+
+    /**
+     * @return Bytes a download/upload request asks to transfer, -1 for the rest of the file.
+     */
+    public long getTransferLength() {
+        return transferLength;
+    }
+
+    /**
+     * @param transferLength Set the bytes a download/upload request asks to transfer, -1 for the rest of the file.
+     */
+    public void setTransferLength(long transferLength) {
+        this.transferLength = transferLength;
+    }
+
+    /**
+     * @return Size of the responder's copy of the file, given by a download/upload result, or of the file to upload,
+     *         given by an upload request; -1 if not given.
+     */
+    public long getTransferFileSize() {
+        return transferFileSize;
+    }
+
+    /**
+     * @param transferFileSize Set the size of the responder's copy of the file, or of the file to upload.
+     */
+    public void setTransferFileSize(long transferFileSize) {
+        this.transferFileSize = transferFileSize;
+    }
+
+    /**
+     * @return CRC-32C (hexadecimal) of the responder's copy of the file before the start, "" if not given.
+     */
+    public String getTransferPrefixChecksum() {
+        return transferPrefixChecksum;
+    }
+
+    /**
+     * @param transferPrefixChecksum Set the CRC-32C of the responder's copy of the file before the start.
+     */
+    public void setTransferPrefixChecksum(String transferPrefixChecksum) {
+        this.transferPrefixChecksum = transferPrefixChecksum;
+    }
+
+    /**
+     * @return SHA-256 (hexadecimal) of the responder's whole copy of the file, "" if not given.
+     */
+    public String getTransferContentDigest() {
+        return transferContentDigest;
+    }
+
+    /**
+     * @param transferContentDigest Set the SHA-256 of the responder's whole copy of the file.
+     */
+    public void setTransferContentDigest(String transferContentDigest) {
+        this.transferContentDigest = transferContentDigest;
+    }
+
+    /**
+     * @return How the transfer of a download/upload result is checked: "crc32c" if the bytes are followed by their
+     *         CRC-32C, "" if not checked.
+     */
+    public String getTransferCheck() {
+        return transferCheck;
+    }
+
+    /**
+     * @param transferCheck Set how the transfer of a download/upload result is checked.
+     */
+    public void setTransferCheck(String transferCheck) {
+        this.transferCheck = transferCheck;
+    }
+
 
 } // Message{}.
@@ -0,0 +1,354 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * MessageEncoder writes messages in their protocol representation straight into a ByteBuffer.
+ *
+ * The ":" <identifier> ":" prefix of the most recently encoded identity is cached as bytes (for outgoing messages
+ * this is always the local identity), timestamps are written by a TimestampCodec, and numbers and strings are written
+ * byte by byte, so encoding a message into a pooled buffer creates no garbage. Encoders are not thread-safe; use
+ * forCurrentThread() to obtain the calling thread's encoder.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class MessageEncoder {
+
+
+    private static final ThreadLocal<MessageEncoder> encoders = ThreadLocal.withInitial(MessageEncoder::new);
+
+    private static final int SCRATCH_SIZE = 512; // Initial bytes of the scratch buffer, about one discovery message.
+
+    private final TimestampCodec timestampCodec = new TimestampCodec(); // Timestamp writer, owned by this encoder.
+    private String cachedIdentifier; // Identifier whose prefix bytes are cached.
+    private byte[] cachedIdentifierPrefix; // ":" <identifier> ":" as bytes.
+    private ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE); // Reused by encodeToString() and encodedLength().
+
+
+    /**
+     * @return Encoder belonging to the calling thread.
+     */
+    public static MessageEncoder forCurrentThread() {
+        return encoders.get();
+    }
+
+
+    /**
+     * Encode a message into a buffer, starting at the buffer's position.
+     *
+     * @param message Message to encode.
+     * @param out Buffer to write to.
+     *
+     * @return True if the message was written, false if its payload type is not part of the protocol.
+     *
+     * @throws BufferOverflowException Message does not fit in the remaining space of the buffer.
+     */
+    public boolean encode(Message message, ByteBuffer out) {
+
+        // Method could have been made more concise, but purposefully left explicit for ease of protocol format verification.
+
+        String payloadType = message.getPayloadType();
+
+        if (payloadType.equalsIgnoreCase("beacon")) {
+
+            header(message, out);
+            putLong(out, message.getServerPort());
+            out.put((byte) ':');
+            putAscii(out, "remoteBrowse=");
+            putAscii(out, message.isRemoteBrowseAvailable() ? "true" : "false");
+            putAscii(out, ",search=");
+            putAscii(out, message.isSearchAvailable() ? "true" : "false");
+            putAscii(out, ",searchMatch=");
+            putAscii(out, message.getSearchMatch());
+            putAscii(out, ",download=");
+            putAscii(out, message.isDownloadAvailable() ? "true" : "false");
+            putAscii(out, ",upload=");
+            putAscii(out, message.isUploadAvailable() ? "true" : "false");
+            putAscii(out, ",delete=");
+            putAscii(out, message.isDeleteAvailable() ? "true" : "false");
+            putAscii(out, ",batchResults=");
+            putAscii(out, message.isBatchResultsAvailable() ? "true" : "false");
+            putAscii(out, ",searchStream=");
+            putAscii(out, message.isSearchStreamAvailable() ? "true" : "false");
+            putAscii(out, ",catalog=");
+            putAscii(out, message.isCatalogAvailable() ? "true" : "false");
+            putAscii(out, ",hashSearch=");
+            putAscii(out, message.isHashSearchAvailable() ? "true" : "false");
+            putAscii(out, ",transferCheck=");
+            putAscii(out, message.isTransferCheckAvailable() ? "true" : "false");
+            out.put((byte) ':');
+
+        } else if (payloadType.equalsIgnoreCase("catalog")) {
+
+            header(message, out);
+            putLong(out, message.getCatalogBlockIndex());
+            out.put((byte) ':');
+            putLong(out, message.getCatalogBlockCount());
+            out.put((byte) ':');
+            putLong(out, message.getCatalogHashes());
+            out.put((byte) ':');
+            putAscii(out, Base64.getEncoder().encodeToString(message.getCatalogBlock()));
+            out.put((byte) ':');
+
+        } else if (payloadType.equalsIgnoreCase("search-request")) {
+
+            header(message, out);
+            putField(out, message.getSearchType());
+            putField(out, message.getSearchString());
+            if (message.getSearchMaxResults() >= 0) { // Optional page of results.
+                putLong(out, message.getSearchMaxResults());
+                out.put((byte) ':');
+                if (message.getSearchOffset() > 0) {
+                    putLong(out, message.getSearchOffset());
+                    out.put((byte) ':');
+                }
+            }
+
+        } else if (payloadType.equalsIgnoreCase("search-result")) {
+
+            header(message, out);
+            putResponseId(message, out);
+            putField(out, message.getSearchFileString());
+
+        } else if (payloadType.equalsIgnoreCase("search-results")) {
+
+            header(message, out);
+            putResponseId(message, out);
+            putLong(out, message.getSearchFileStrings().size());
+            out.put((byte) ':');
+            for (String searchFileString : message.getSearchFileStrings()) {
+                putField(out, searchFileString);
+            }
+
+        } else if (payloadType.equalsIgnoreCase("search-end")) {
+
+            header(message, out);
+            putResponseId(message, out);
+            putLong(out, message.getSearchResultCount());
+            out.put((byte) ':');
+
+        } else if (payloadType.equalsIgnoreCase("download-request")
+                || payloadType.equalsIgnoreCase("upload-request")
+                || payloadType.equalsIgnoreCase("delete-request")) {
+
+            header(message, out);
+            putField(out, message.getTargetPeerIdentifier());
+            putField(out, message.getTargetFilePath());
+            // Optional part of the file, and the size of a file to upload (the length written empty if not given).
+            boolean size = payloadType.equalsIgnoreCase("upload-request") && message.getTransferFileSize() >= 0;
+            if (message.getTransferOffset() > 0 || message.getTransferLength() >= 0 || size) {
+                putLong(out, message.getTransferOffset());
+                out.put((byte) ':');
+                if (message.getTransferLength() >= 0) {
+                    putLong(out, message.getTransferLength());
+                    out.put((byte) ':');
+                } else if (size) {
+                    out.put((byte) ':');
+                }
+                if (size) {
+                    putLong(out, message.getTransferFileSize());
+                    out.put((byte) ':');
+                }
+            }
+
+        } else if (payloadType.equalsIgnoreCase("download-result")
+                || payloadType.equalsIgnoreCase("upload-result")) {
+
+            header(message, out);
+            putResponseId(message, out);
+            putLong(out, message.getFileTransferPort());
+            out.put((byte) ':');
+            if (message.getTransferFileSize() >= 0) { // Optional size of our copy, checksum before the start, etc.
+                putLong(out, message.getTransferFileSize());
+                out.put((byte) ':');
+                // The fields are positional, so one not given is written empty when a later one is.
+                boolean check = !message.getTransferCheck().isEmpty();
+                boolean digest = check || !message.getTransferContentDigest().isEmpty();
+                if (digest || !message.getTransferPrefixChecksum().isEmpty()) {
+                    putField(out, message.getTransferPrefixChecksum());
+                }
+                if (digest) {
+                    putField(out, message.getTransferContentDigest());
+                }
+                if (check) {
+                    putField(out, message.getTransferCheck());
+                }
+            }
+
+        } else if (payloadType.equalsIgnoreCase("search-error")
+                || payloadType.equalsIgnoreCase("download-error")
+                || payloadType.equalsIgnoreCase("upload-error")
+                || payloadType.equalsIgnoreCase("delete-result")
+                || payloadType.equalsIgnoreCase("delete-error")) {
+
+            header(message, out);
+            putResponseId(message, out);
+
+        } else {
+            return false;
+        }
+
+        return true;
+
+    } // encode().
+
+
+    /**
+     * Encode a message and return it as a String, e.g. for logging.
+     *
+     * @param message Message to encode.
+     *
+     * @return Protocol representation of the message, or "" if its payload type is not part of the protocol.
+     */
+    public String encodeToString(Message message) {
+
+        if (!encodeToScratch(message)) {
+            return "";
+        }
+
+        return new String(scratch.array(), 0, scratch.position(), StandardCharsets.US_ASCII);
+
+    } // encodeToString().
+
+
+    /**
+     * Size of a message once encoded, without building a String of it.
+     *
+     * @param message Message to measure.
+     *
+     * @return Bytes in the protocol representation of the message, or 0 if its payload type is not part of the protocol.
+     */
+    public int encodedLength(Message message) {
+        return encodeToScratch(message) ? scratch.position() : 0;
+    }
+
+
+    /**
+     * Encode a message into the scratch buffer, which is doubled (up to the largest datagram) until the message fits
+     * and kept at that size, so encoding to a String does not allocate a buffer each time.
+     *
+     * @param message Message to encode.
+     *
+     * @return True if the message was written, false if its payload type is not part of the protocol.
+     */
+    private boolean encodeToScratch(Message message) {
+
+        while (true) {
+            scratch.clear();
+            try {
+                return encode(message, scratch);
+            } catch (BufferOverflowException e) {
+                if (scratch.capacity() >= MulticastHandler.MAXIMUM_DATAGRAM_SIZE) {
+                    throw e;
+                }
+                scratch = ByteBuffer.allocate(Math.min(scratch.capacity() * 2, MulticastHandler.MAXIMUM_DATAGRAM_SIZE));
+            }
+        }
+
+    } // encodeToScratch().
+
+
+    /**
+     * Write the message header: ":" <identifier> ":" <serial-number> ":" <timestamp> ":" <payload-type> ":".
+     *
+     * @param message Message being encoded.
+     * @param out Buffer to write to.
+     */
+    private void header(Message message, ByteBuffer out) {
+
+        String identifier = message.getIdentifier();
+        if (identifier != cachedIdentifier && !identifier.equals(cachedIdentifier)) {
+            cachedIdentifier = identifier;
+            cachedIdentifierPrefix = (":" + identifier + ":").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        out.put(cachedIdentifierPrefix);
+        putLong(out, message.getSerialNumber());
+        out.put((byte) ':');
+        timestampCodec.format(message.getTimestampMillis(), out);
+        out.put((byte) ':');
+        putField(out, message.getPayloadType());
+
+    } // header().
+
+
+    /**
+     * Write the response-id of a response: <identifier> ":" <serial-number> ":".
+     *
+     * @param message Response being encoded.
+     * @param out Buffer to write to.
+     */
+    private static void putResponseId(Message message, ByteBuffer out) {
+
+        putField(out, message.getResponseIdentifier());
+        putLong(out, message.getResponseSerialNumber());
+        out.put((byte) ':');
+
+    } // putResponseId().
+
+
+    /**
+     * Write a string followed by the ':' field delimiter.
+     *
+     * @param out Buffer to write to.
+     * @param value String to write.
+     */
+    private static void putField(ByteBuffer out, String value) {
+
+        putAscii(out, value);
+        out.put((byte) ':');
+
+    } // putField().
+
+
+    /**
+     * Write a string as ASCII without creating an intermediate byte array.
+     *
+     * @param out Buffer to write to.
+     * @param value String to write.
+     */
+    static void putAscii(ByteBuffer out, String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+
+    } // putAscii().
+
+
+    /**
+     * Write a number in decimal without creating a String.
+     *
+     * @param out Buffer to write to.
+     * @param value Number to write.
+     */
+    static void putLong(ByteBuffer out, long value) {
+
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+
+        int position = out.position();
+        if (out.remaining() < digits) {
+            throw new BufferOverflowException();
+        }
+
+        for (int i = digits - 1; i >= 0; i--) {
+            out.put(position + i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+
+        out.position(position + digits);
+
+    } // putLong().
+
+
+} // MessageEncoder{}.
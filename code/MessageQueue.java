@@ -0,0 +1,92 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MessageQueue is a bounded, lock-free hand-off queue between many producers (the multicast thread and the user
+ * interface) and a single consumer (one receiver thread).
+ *
+ * Producers never block: when the queue is full the message is refused. The consumer parks in take() while the queue
+ * is empty and is unparked by the next offer, so an idle receiver uses no CPU.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class MessageQueue {
+
+
+    private final ConcurrentLinkedQueue<Message> messages; // Messages waiting for the consumer.
+    private final AtomicInteger size; // Number of messages queued, used to enforce the capacity.
+    private final int capacity; // Maximum number of queued messages.
+    private volatile Thread consumer; // Thread waiting in take(), unparked when a message arrives.
+
+
+    /**
+     * Constructor: Creates an empty queue.
+     *
+     * @param capacity Maximum number of messages that may be waiting at once.
+     */
+    MessageQueue(int capacity) {
+
+        this.messages = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger();
+        this.capacity = capacity;
+
+    } // MessageQueue().
+
+
+    /**
+     * Add a message to the queue and wake the consumer. Never blocks.
+     *
+     * @param message Message to hand to the consumer.
+     *
+     * @return True if queued, false if the queue is full.
+     */
+    public boolean offer(Message message) {
+
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+
+        messages.offer(message);
+
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+
+        return true;
+
+    } // offer().
+
+
+    /**
+     * Remove the next message, parking the calling (single consumer) thread until one is available.
+     *
+     * @return Next message in arrival order.
+     */
+    public Message take() {
+
+        consumer = Thread.currentThread();
+
+        Message message;
+        while ((message = messages.poll()) == null) {
+            LockSupport.park(this); // An offer() between poll() and park() leaves a permit, so no wake-up is lost.
+        }
+
+        size.decrementAndGet();
+
+        return message;
+
+    } // take().
+
+
+    /**
+     * @return Number of messages currently waiting.
+     */
+    public int size() {
+        return size.get();
+    }
+
+
+} // MessageQueue{}.
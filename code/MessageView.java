@@ -0,0 +1,371 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * MessageView is a reusable, mutable view over a single protocol datagram.
+ *
+ * A call to parse() copies the datagram into an internal array and records where each ':'-delimited field starts and
+ * ends in one pass. Nothing else is decoded: callers inspect fields in place (payload category, numbers, timestamps)
+ * and only create Strings for the fields they actually read. Instances are not thread-safe and are intended to be
+ * reused by the thread reading the multicast channel.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class MessageView {
+
+
+    // Field positions common to every message: ":" <identifier> ":" <serial-number> ":" <timestamp> ":" <payload-type>.
+    public static final int IDENTIFIER_FIELD = 0;
+    public static final int SERIAL_NUMBER_FIELD = 1;
+    public static final int TIMESTAMP_FIELD = 2;
+    public static final int PAYLOAD_TYPE_FIELD = 3;
+    public static final int FIRST_PAYLOAD_FIELD = 4;
+
+    // Payload categories, determined from the prefix of the payload type.
+    public static final int CATEGORY_NONE = 0;
+    public static final int CATEGORY_BEACON = 1;
+    public static final int CATEGORY_SEARCH = 2;
+    public static final int CATEGORY_DOWNLOAD = 3;
+    public static final int CATEGORY_UPLOAD = 4;
+    public static final int CATEGORY_DELETE = 5;
+    public static final int CATEGORY_CATALOG = 6;
+
+    private static final byte[][] CATEGORY_PREFIXES = {
+            null, ascii("beacon"), ascii("search"), ascii("download"), ascii("upload"), ascii("delete"),
+            ascii("catalog")
+    };
+
+    private byte[] data = new byte[1024]; // Datagram content, trimmed of surrounding whitespace/padding.
+    private int length; // Number of valid bytes in data.
+
+    private int[] fieldStarts = new int[16]; // Offset of the first byte of each field.
+    private int[] fieldEnds = new int[16]; // Offset one past the last byte of each field.
+    private int fieldCount; // Number of fields found.
+
+    private final TimestampCodec timestampCodec = new TimestampCodec(); // Timestamp parser, owned by this view.
+
+
+    /**
+     * Tokenize the datagram between the buffer's position and limit. The buffer's position is advanced to its limit.
+     *
+     * @param buffer Buffer holding the datagram.
+     *
+     * @return True if the datagram has the general form of a protocol message (header and payload type present).
+     */
+    public boolean parse(ByteBuffer buffer) {
+
+        int remaining = buffer.remaining();
+        if (remaining > data.length) {
+            data = new byte[Math.max(remaining, data.length * 2)];
+        }
+        buffer.get(data, 0, remaining);
+
+        // Trim leading and trailing whitespace and padding, as String.trim() would.
+        int start = 0;
+        int end = remaining;
+        while (start < end && (data[start] & 0xFF) <= ' ') start++;
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') end--;
+
+        if (start > 0) {
+            System.arraycopy(data, start, data, 0, end - start);
+        }
+        length = end - start;
+        fieldCount = 0;
+
+        if (length == 0 || data[0] != ':') {
+            return false;
+        }
+
+        // Single pass: every ':' closes the current field and opens the next.
+        int fieldStart = 1;
+        for (int i = 1; i < length; i++) {
+            if (data[i] == ':') {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        if (fieldStart < length) {
+            addField(fieldStart, length); // Missing closing ':'.
+        }
+
+        // Trailing empty fields carry no information (matches String.split() semantics).
+        while (fieldCount > 0 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1]) {
+            fieldCount--;
+        }
+
+        return fieldCount > PAYLOAD_TYPE_FIELD;
+
+    } // parse().
+
+
+    /**
+     * Record the bounds of a field, growing the offset arrays when needed.
+     *
+     * @param start Offset of the first byte of the field.
+     * @param end Offset one past the last byte of the field.
+     */
+    private void addField(int start, int end) {
+
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+
+    } // addField().
+
+
+    /**
+     * @return Number of fields in the current datagram.
+     */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param field Field index.
+     *
+     * @return Offset of the first byte of the field.
+     */
+    public int start(int field) {
+        return fieldStarts[field];
+    }
+
+    /**
+     * @param field Field index.
+     *
+     * @return Offset one past the last byte of the field.
+     */
+    public int end(int field) {
+        return fieldEnds[field];
+    }
+
+    /**
+     * @param index Offset of a byte in the current datagram.
+     *
+     * @return Byte at the given offset.
+     */
+    public byte byteAt(int index) {
+        return data[index];
+    }
+
+
+    /**
+     * Determine the payload category from the payload type field, without creating a String.
+     *
+     * @return One of the CATEGORY_ constants.
+     */
+    public int payloadCategory() {
+
+        if (fieldCount <= PAYLOAD_TYPE_FIELD) {
+            return CATEGORY_NONE;
+        }
+
+        for (int category = CATEGORY_BEACON; category < CATEGORY_PREFIXES.length; category++) {
+            if (regionStartsWith(fieldStarts[PAYLOAD_TYPE_FIELD], fieldEnds[PAYLOAD_TYPE_FIELD], CATEGORY_PREFIXES[category])) {
+                return category;
+            }
+        }
+
+        return CATEGORY_NONE;
+
+    } // payloadCategory().
+
+
+    /**
+     * Compare a field with a string, ignoring ASCII case.
+     *
+     * @param field Field index.
+     * @param value Value to compare with.
+     *
+     * @return True if the field holds the value.
+     */
+    public boolean fieldEquals(int field, String value) {
+        return field < fieldCount && regionEquals(fieldStarts[field], fieldEnds[field], value);
+    }
+
+    /**
+     * Compare a region of the datagram with a string, ignoring ASCII case.
+     *
+     * @param start Offset of the first byte of the region.
+     * @param end Offset one past the last byte of the region.
+     * @param value Value to compare with.
+     *
+     * @return True if the region holds the value.
+     */
+    public boolean regionEquals(int start, int end, String value) {
+
+        if (end - start != value.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toLowerCase((char) data[start + i]) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+
+    } // regionEquals().
+
+
+    /**
+     * @param start Offset of the first byte of the region.
+     * @param end Offset one past the last byte of the region.
+     * @param prefix Prefix bytes (lower case).
+     *
+     * @return True if the region starts with the prefix, ignoring ASCII case.
+     */
+    private boolean regionStartsWith(int start, int end, byte[] prefix) {
+
+        if (end - start < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toLowerCase((char) data[start + i]) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+
+    } // regionStartsWith().
+
+
+    /**
+     * Find a byte within a region of the datagram.
+     *
+     * @param b Byte to find.
+     * @param start Offset at which to start looking.
+     * @param end Offset at which to stop looking.
+     *
+     * @return Offset of the byte, or -1 if it does not occur in the region.
+     */
+    public int indexOf(byte b, int start, int end) {
+
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+
+    } // indexOf().
+
+
+    /**
+     * Parse a field as an unsigned decimal number.
+     *
+     * @param field Field index.
+     *
+     * @return Value of the field.
+     *
+     * @throws NumberFormatException Field missing, empty, or not a decimal number.
+     */
+    public long fieldLong(int field) {
+
+        if (field >= fieldCount) {
+            throw new NumberFormatException("Missing field " + field + ".");
+        }
+
+        return regionLong(fieldStarts[field], fieldEnds[field]);
+
+    } // fieldLong().
+
+
+    /**
+     * Parse a region of the datagram as a decimal number, allowing a leading '-'.
+     *
+     * @param start Offset of the first byte of the region.
+     * @param end Offset one past the last byte of the region.
+     *
+     * @return Value of the region.
+     *
+     * @throws NumberFormatException Region empty or not a decimal number.
+     */
+    public long regionLong(int start, int end) {
+
+        boolean negative = start < end && data[start] == '-';
+        if (negative) start++;
+
+        if (start >= end || end - start > 18) {
+            throw new NumberFormatException("Bad number in message: '" + new String(data, start, end - start, StandardCharsets.US_ASCII) + "'.");
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Bad number in message: '" + new String(data, start, end - start, StandardCharsets.US_ASCII) + "'.");
+            }
+            value = value * 10 + digit;
+
+        }
+
+        return negative ? -value : value;
+
+    } // regionLong().
+
+
+    /**
+     * Parse a field as a protocol timestamp.
+     *
+     * @param field Field index.
+     *
+     * @return Epoch milliseconds, or -1 if the field is missing or malformed.
+     */
+    public long fieldTimestamp(int field) {
+
+        if (field >= fieldCount) {
+            return -1;
+        }
+
+        return timestampCodec.parse(data, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+
+    } // fieldTimestamp().
+
+
+    /**
+     * @param field Field index.
+     *
+     * @return Field content as a String.
+     */
+    public String fieldString(int field) {
+        return new String(data, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return Copy of the (trimmed) datagram bytes, sized exactly.
+     */
+    public byte[] copyBytes() {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * @return The datagram as a String.
+     */
+    @Override
+    public String toString() {
+        return new String(data, 0, length, StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * @param s String to convert.
+     *
+     * @return ASCII bytes of the string.
+     */
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+
+} // MessageView{}.
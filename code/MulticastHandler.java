@@ -1,21 +1,43 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * MulticastHandler is a class used for handling control-plane communications of the remote file browser.
  *
+ * A single selector-driven event loop services both directions of the multicast channel: the loop blocks until
+ * datagrams arrive or queued messages can be written, so no CPU is spent while the LAN is idle.
+ *
  * @author 170004680, Nov 2020.
  */
 public class MulticastHandler implements Runnable {
 
 
-    private MulticastSocket multicastSocket; // Connection to Multicast group.
+    static final int MAXIMUM_DATAGRAM_SIZE = 65507; // Largest possible IPv4 UDP payload.
+
+    private DatagramChannel multicastChannel; // Connection to Multicast group.
+    private MembershipKey membershipKey; // Membership of the multicast group, dropped when leaving.
+    private Selector selector; // Selector used by the event loop to wait on the multicast channel.
+    private InetSocketAddress groupAddress; // Multicast group address and port to send to.
+    private final ByteBuffer receiveBuffer; // Reused buffer into which datagrams are received.
+    private final MessageView messageView; // Reused tokenizer for received datagrams.
+    private final ConcurrentLinkedQueue<ByteBuffer> sendQueue; // Messages waiting to be written by the event loop.
+    private final ConcurrentLinkedQueue<ByteBuffer> sendBufferPool; // Free send buffers, reused between messages.
+    private final int sendBufferSize; // Capacity of pooled send buffers.
     public final Configuration configuration; // Current FileTreeBrowser configuration.
 
     public BeaconSender beaconSender; // BeaconSender thread object for periodically sending beacons.
-    public BeaconReceiver beaconReceiver; // BeaconReceiver thread object for periodically reading beacons.
+    public BeaconReceiver beaconReceiver; // BeaconReceiver object keeping track of remote file browsers from their beacons.
 
+    public FileIndex fileIndex; // Index of the files under the root directory, used to answer searches.
+    public DigestStore digestStore; // Digests of the content of the indexed files, for hash searches; null if not offered.
+    public RequestTable requestTable; // Requests we have sent that are awaiting responses, shared by the receivers.
     public SearchReceiver searchReceiver; // SearchReceiver thread object for handing incoming search messages.
     public DownloadReceiver downloadReceiver; // FileMessageReceiver thread object handles download messages.
     public UploadReceiver uploadReceiver; // FileMessageReceiver thread object handles upload messages.
@@ -30,24 +52,46 @@ public class MulticastHandler implements Runnable {
     MulticastHandler(Configuration config) {
 
         this.configuration = config;
+        this.receiveBuffer = ByteBuffer.allocateDirect(MAXIMUM_DATAGRAM_SIZE);
+        this.messageView = new MessageView();
+        this.sendQueue = new ConcurrentLinkedQueue<>();
+        this.sendBufferPool = new ConcurrentLinkedQueue<>();
+        this.sendBufferSize = config.maximumDiscoveryMessageSize_;
 
         try {
 
-            // Get InetAddress of multicast group, and create socket for the group.
+            // Get InetAddress of multicast group, and create channel for the group.
             this.configuration.mGroup_ = InetAddress.getByName(this.configuration.mAddr_);
-            multicastSocket = new MulticastSocket(this.configuration.mPort_);
-
-            configuration.log_.writeLog("Multicast Socket Created: "
+            this.groupAddress = new InetSocketAddress(this.configuration.mGroup_, this.configuration.mPort_);
+            NetworkInterface networkInterface = multicastInterface();
+
+            // Set up multicast channel according to the configuration.
+            multicastChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+            multicastChannel.setOption(StandardSocketOptions.SO_REUSEADDR, this.configuration.reuseAddr_);
+            multicastChannel.bind(new InetSocketAddress(this.configuration.mPort_));
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, this.configuration.mTTL_);
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, !this.configuration.loopbackOff_);
+            multicastChannel.configureBlocking(false); // Readiness is reported by the selector.
+
+            configuration.log_.writeLog("Multicast Channel Created: "
                     + this.configuration.mAddr_ + ", " + this.configuration.mPort_); // Create log.
 
-            // Set up multicast socket according to the configuration.
-            multicastSocket.setTimeToLive(this.configuration.mTTL_);
-            multicastSocket.setLoopbackMode(this.configuration.loopbackOff_);
-            multicastSocket.setReuseAddress(this.configuration.reuseAddr_);
-            multicastSocket.setSoTimeout(this.configuration.soTimeout_); // Non-blocking.
+            join(networkInterface); // Join the multicast group.
+            configuration.log_.writeLog("Joined Multicast Group: " + configuration.mGroup_
+                    + " On " + networkInterface.getName()); // Create log.
+
+            selector = Selector.open();
+            multicastChannel.register(selector, SelectionKey.OP_READ);
+
+            // Create index of the root directory, built in the background, for answering searches.
+            this.fileIndex = new FileIndex(configuration);
+            if (configuration.hashSearch_) { // Digests of the indexed files, computed in the background.
+                this.digestStore = new DigestStore(configuration, fileIndex);
+            }
 
-            join(); // Join the multicast group.
-            configuration.log_.writeLog("Joined Multicast Group: " + configuration.mGroup_); // Create log.
+            // Create table used by the receivers to match responses with our requests.
+            this.requestTable = new RequestTable(configuration);
 
             // Create search message receiver for handling search messages sent over the multicast group.
             this.searchReceiver = new SearchReceiver(this);
@@ -58,7 +102,7 @@ public class MulticastHandler implements Runnable {
             // Create delete message receiver for handling messages sent over the multicast group.
             this.deleteReceiver = new DeleteReceiver(this);
 
-            // Create beacon sender and receivers, which act individually as threads.
+            // Create beacon sender (a thread) and receiver (whose peer directory expires beacons on its own timer).
             this.beaconSender = new BeaconSender(this);
             this.beaconReceiver = new BeaconReceiver(this);
 
@@ -74,126 +118,196 @@ public class MulticastHandler implements Runnable {
 
 
     /**
-     * Constantly listen for new UDP multicast messages, parse them and add them to the correct data structures.
+     * Event loop: block until the multicast channel is readable or queued messages can be written, then drain every
+     * ready datagram and flush as much of the send queue as the socket will accept.
      */
     @Override
     public void run() {
 
-        do { // Do until application terminated.
+        do { // Do until the multicast group is left.
 
-            Message message = rxMessage(); // Read message according to the specification.
+            try {
 
-            if (message != null) { // A message was read from the multicast socket.
+                selector.select(); // Blocks until there is work to do, or until woken up by tx().
 
-                // Handle message according to message type.
-                if (message.getPayloadType().contains("beacon")) {
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
 
-                    beaconReceiver.addBeacon(message);
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
 
-                } else if (message.getPayloadType().contains("search")) {
+                    if (key.isValid() && key.isReadable()) {
+                        rxMessages();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        txQueued();
+                    }
 
-                    searchReceiver.addSearchMessage(false, message);
+                } // for (all selected keys).
 
-                } else if (message.getPayloadType().contains("download")) {
+                // Only ask for write readiness whilst there are messages waiting to be sent.
+                SelectionKey channelKey = multicastChannel.keyFor(selector);
+                if (channelKey != null && channelKey.isValid()) {
+                    channelKey.interestOps(sendQueue.isEmpty()
+                            ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
 
-                    downloadReceiver.addMessage(false, message);
+            } catch (ClosedSelectorException | CancelledKeyException e) {
+                break; // Multicast group left.
+            } catch (IOException e) {
+                System.err.println("MulticastHandler.run() Error: " + e.getMessage());
+            }
 
-                } else if (message.getPayloadType().contains("upload")) {
+        } while (multicastChannel.isOpen());
 
-                    uploadReceiver.addMessage(false, message);
+    } // run().
 
-                } else if (message.getPayloadType().contains("delete")) {
 
-                    deleteReceiver.addMessage(false, message);
+    /**
+     * Read every datagram currently waiting on the multicast channel and dispatch each one.
+     *
+     * @throws IOException Error reading from the multicast channel.
+     */
+    private void rxMessages() throws IOException {
 
-                } // if (message of type).
+        // Keep reading until the channel reports that there is nothing left to read.
+        while (multicastChannel.receive(receiveBuffer) != null) {
 
-            } // if (message != null).
+            receiveBuffer.flip();
+            Message message = rxMessage(receiveBuffer);
+            receiveBuffer.clear();
 
-        } while (true);
+            if (message != null) {
+                dispatchMessage(message, messageView.payloadCategory());
+            }
 
-    } // run().
+        } // while (datagrams ready).
+
+    } // rxMessages().
 
 
     /**
-     * Method for updating message structures based on received messages from the multicast socket.
+     * Method for parsing a datagram read from the multicast channel into a message. The datagram is tokenized by the
+     * reusable message view, so datagrams that are not protocol messages are dropped without allocating.
      *
-     * @return Message object representing the message read, or null if no message read.
+     * @param buffer Buffer holding the datagram content.
+     *
+     * @return Message object representing the message read, or null if the datagram is not a protocol message.
      */
-    public Message rxMessage() {
-
-        // Discovery beacons should not exceed a given maximum number of bytes, as specified by the configuration.
-        byte[] buffer = new byte[1024];
+    public Message rxMessage(ByteBuffer buffer) {
 
-        // Read from the multicast group into buffer.
-        if (rx(buffer)) {
-
-            String message = new String(buffer, StandardCharsets.US_ASCII).trim();
-
-            Message messageObj = Message.parseMessage(message);
-
-            if (messageObj != null) {
-                configuration.log_.writeLog("Message Read: " + messageObj.toString()); // Create log.
-            }
+        if (!messageView.parse(buffer)) {
+            return null;
+        }
 
-            return messageObj;
+        Message messageObj = Message.parseMessage(messageView);
 
-        } // if (rx(buffer)).
+        if (messageObj != null) {
+            configuration.log_.writeLog("Message Read: " + messageView); // Create log.
+        }
 
-        return null; // Forced a read for message. If there aren't any, then indicate so by returning null.
+        return messageObj;
 
     } // rxMessage().
 
 
     /**
-     * Method for reading from the multicast group.
+     * Hand a received message to the receiver responsible for its payload type.
      *
-     * @param buffer Byte buffer to read into.
-     * @return Byte array containing the packet content read from the multicast socket.
+     * @param message Message read from the multicast group.
+     * @param category Payload category of the message, as given by MessageView.
      */
-    public boolean rx(byte[] buffer) {
+    private void dispatchMessage(Message message, int category) {
+
+        // Handle message according to message type.
+        switch (category) {
+            case MessageView.CATEGORY_BEACON:
+                beaconReceiver.addBeacon(message);
+                break;
+            case MessageView.CATEGORY_SEARCH:
+                searchReceiver.addSearchMessage(false, message);
+                break;
+            case MessageView.CATEGORY_DOWNLOAD:
+                downloadReceiver.addMessage(false, message);
+                break;
+            case MessageView.CATEGORY_UPLOAD:
+                uploadReceiver.addMessage(false, message);
+                break;
+            case MessageView.CATEGORY_DELETE:
+                deleteReceiver.addMessage(false, message);
+                break;
+            case MessageView.CATEGORY_CATALOG:
+                if (configuration.catalog_) {
+                    beaconReceiver.addCatalog(message);
+                }
+                break;
+        } // switch (message category).
+
+    } // dispatchMessage().
 
-        DatagramPacket datagramPacket = new DatagramPacket(buffer, buffer.length);
-        boolean done = false;
 
-        try {
+    /**
+     * Write queued messages to the multicast group until the queue is empty or the socket buffer is full.
+     *
+     * @throws IOException Error writing to the multicast channel.
+     */
+    private void txQueued() throws IOException {
 
-            multicastSocket.receive(datagramPacket);
-            done = true;
+        ByteBuffer buffer;
+        while ((buffer = sendQueue.peek()) != null) {
 
-        } catch (IOException ignored) {
-        }
+            if (multicastChannel.send(buffer, groupAddress) == 0) {
+                break; // Socket buffer full - wait until the selector reports the channel as writable again.
+            }
+
+            sendQueue.poll();
+            releaseSendBuffer(buffer);
 
-        return done;
+        } // while (messages queued).
 
-    } // rx().
+    } // txQueued().
 
 
     /**
-     * Method for sending messages to the multicast group.
+     * Method for sending messages to the multicast group. The message is encoded straight into a pooled send buffer.
+     *
+     * @param message Message to send.
      *
-     * @return Message object representing the message read, or null if no message read.
+     * @return True if the message was queued for sending, false otherwise.
      */
     public boolean txMessage(Message message) {
 
-        byte[] buffer;
+        if (message == null) {
+            System.err.println("MulticastHandler.txMessage() Error: Could not send message.");
+            return false; // Message not sent.
+        }
 
-        if (message != null) {
+        MessageEncoder encoder = MessageEncoder.forCurrentThread();
+        ByteBuffer buffer = acquireSendBuffer();
+        boolean encoded;
 
-            buffer = message.toString().getBytes(StandardCharsets.US_ASCII); // Get bytes from the beacon string to send.
+        try {
+            encoded = encoder.encode(message, buffer);
+        } catch (BufferOverflowException e) {
+            // Larger than maximumDiscoveryMessageSize: still send it, but from a one-off buffer.
+            releaseSendBuffer(buffer);
+            buffer = ByteBuffer.allocate(MAXIMUM_DATAGRAM_SIZE);
+            encoded = encoder.encode(message, buffer);
+        }
 
-            boolean sent = tx(buffer); // Send beacon.
+        if (!encoded) {
+            releaseSendBuffer(buffer);
+            System.err.println("MulticastHandler.txMessage() Error: Could not encode message of type '"
+                    + message.getPayloadType() + "'.");
+            return false;
+        }
 
-            if (sent) {
-                configuration.log_.writeLog("Message Sent: " + message.toString()); // Create log.
-            }
+        buffer.flip();
 
-            return sent;
+        // Log before handing the buffer over, as the event loop recycles it once sent.
+        configuration.log_.writeLog("Message Sent: " + StandardCharsets.US_ASCII.decode(buffer.duplicate())); // Create log.
 
-        } else {
-            System.err.println("MulticastHandler.txMessage() Error: Could not send message.");
-            return false; // Message not sent.
-        }
+        return tx(buffer);
 
     } // txMessage().
 
@@ -203,37 +317,115 @@ public class MulticastHandler implements Runnable {
      *
      * @param buffer Byte buffer to send from.
      *
-     * @return True if send successful to multicast endpoint, false if not.
+     * @return True if queued for the multicast endpoint, false if the channel is closed.
      */
     public boolean tx(byte[] buffer) {
+        return tx(ByteBuffer.wrap(buffer));
+    }
 
-        boolean done = false;
-        DatagramPacket datagramPacket;
-
-        try {
 
-            datagramPacket = new DatagramPacket(buffer, buffer.length, configuration.mGroup_, configuration.mPort_);
-            multicastSocket.send(datagramPacket);
-            done = true;
+    /**
+     * Method for sending to the multicast group. The buffer is handed to the event loop, which writes it as soon as
+     * the channel is writable.
+     *
+     * @param buffer Byte buffer to send, between its position and limit.
+     *
+     * @return True if queued for the multicast endpoint, false if the channel is closed.
+     */
+    private boolean tx(ByteBuffer buffer) {
 
-        } catch (SocketTimeoutException e) {
-            System.err.println("MulticastHandler.tx() Error: Could not send - " + e.getMessage());
-        } catch (IOException e) {
-            System.err.println("MulticastHandler.tx() error: " + e.getMessage());
+        if (multicastChannel == null || !multicastChannel.isOpen()) {
+            System.err.println("MulticastHandler.tx() Error: Could not send - multicast channel closed.");
+            return false;
         }
 
-        return done;
+        sendQueue.add(buffer);
+        selector.wakeup(); // Let the event loop register interest in writing.
+
+        return true;
 
     } // tx().
 
 
+    /**
+     * @return A cleared send buffer from the pool, or a new one if the pool is empty.
+     */
+    private ByteBuffer acquireSendBuffer() {
+
+        ByteBuffer buffer = sendBufferPool.poll();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sendBufferSize);
+        }
+
+        return buffer;
+
+    } // acquireSendBuffer().
+
+
+    /**
+     * Return a send buffer to the pool. Buffers not taken from the pool are left to the garbage collector.
+     *
+     * @param buffer Buffer that is no longer in use.
+     */
+    private void releaseSendBuffer(ByteBuffer buffer) {
+
+        if (buffer.isDirect() && buffer.capacity() == sendBufferSize) {
+            buffer.clear();
+            sendBufferPool.add(buffer);
+        }
+
+    } // releaseSendBuffer().
+
+
+    /**
+     * Choose the network interface used to join the multicast group: the interface of the local host address if it
+     * supports multicast, otherwise the first interface that is up and supports multicast.
+     *
+     * @return Network interface to use for multicast.
+     *
+     * @throws IOException Error querying the network interfaces, or no suitable interface exists.
+     */
+    private NetworkInterface multicastInterface() throws IOException {
+
+        NetworkInterface localInterface = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+        if (localInterface != null && localInterface.isUp() && localInterface.supportsMulticast()) {
+            return localInterface;
+        }
+
+        NetworkInterface loopbackInterface = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+
+            NetworkInterface currInterface = interfaces.nextElement();
+            if (!currInterface.isUp() || !currInterface.supportsMulticast()) continue;
+
+            if (!currInterface.isLoopback()) {
+                return currInterface;
+            } else if (loopbackInterface == null) {
+                loopbackInterface = currInterface;
+            }
+
+        } // for (all network interfaces).
+
+        if (loopbackInterface != null) {
+            return loopbackInterface; // Only host-local multicast is possible.
+        }
+
+        throw new IOException("No multicast capable network interface.");
+
+    } // multicastInterface().
+
+
     /**
      * Method for joining the multicast group.
+     *
+     * @param networkInterface Network interface on which to join the group.
      */
-    public void join() {
+    public void join(NetworkInterface networkInterface) {
 
         try {
-            multicastSocket.joinGroup(configuration.mGroup_);
+            membershipKey = multicastChannel.join(configuration.mGroup_, networkInterface);
         } catch (IOException e) {
             System.err.println("MulticastHandler.join() Error: " + e.getMessage());
         }
@@ -247,8 +439,11 @@ public class MulticastHandler implements Runnable {
     public void leave() {
 
         try {
-            multicastSocket.leaveGroup(configuration.mGroup_);
-            multicastSocket.close();
+            if (membershipKey != null) {
+                membershipKey.drop();
+            }
+            multicastChannel.close();
+            selector.close(); // Wakes the event loop, which then exits.
         } catch (IOException e) {
             System.err.println("MulticastHandler.leave() Error: " + e.getMessage());
         }
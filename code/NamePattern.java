@@ -0,0 +1,528 @@
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * NamePattern is the pattern of a glob or regex search, compiled once per search request and matched against the
+ * case-folded names of files and directories.
+ *
+ * A glob matches a whole name: '*' matches any run of characters, '?' any one character, '[...]' (or '[!...]') one
+ * character of (or not of) a set, and '{a,b}' either alternative. A regex (java.util.regex syntax) matches if it is
+ * found anywhere in a name. Both match case-insensitively.
+ *
+ * Before any name is matched, the longest literal every match must contain is extracted from the pattern, so a search
+ * need only match the names the TrigramIndex finds containing it. Extraction is conservative: where a regex has
+ * alternation at its top level, inline flags or quoting, nothing is taken to be required, and every name is matched.
+ *
+ * A regex may take time exponential in the length of a name to fail (catastrophic backtracking), so matching is given
+ * a budget of time per search. Names are handed to the matcher through a CharSequence that checks the clock as it is
+ * read, so even a single runaway match is cut short. Once the budget is spent, exhausted() is true and no further name
+ * matches, so the search stops with the results found so far.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class NamePattern {
+
+
+    private static final String REGEX_META = "\\^$.|?*+()[]{}"; // Characters that are not literals in a regex.
+    private static final int CLOCK_INTERVAL = 1024; // Characters read by the matcher between checks of the clock.
+
+
+    /**
+     * Thrown from within the matcher once the budget is spent, to abandon the match.
+     */
+    private static final class BudgetExceeded extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceeded() {
+            super(null, null, false, false); // No stack trace; thrown as flow control.
+        }
+
+    } // BudgetExceeded{}.
+
+
+    /**
+     * A name read by the matcher, checking the clock every CLOCK_INTERVAL characters.
+     */
+    private final class BudgetedName implements CharSequence {
+
+        private final String name; // Name being matched.
+        private int reads; // Characters read since the clock was last checked.
+
+        BudgetedName(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public char charAt(int index) {
+
+            if (++reads >= CLOCK_INTERVAL) {
+                reads = 0;
+                if (System.nanoTime() - deadline > 0) {
+                    throw new BudgetExceeded();
+                }
+            }
+            return name.charAt(index);
+
+        }
+
+        @Override
+        public int length() {
+            return name.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BudgetedName(name.substring(start, end));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    } // BudgetedName{}.
+
+
+    private final Pattern pattern; // Compiled pattern.
+    private final boolean whole; // Whether the pattern must match the whole name (a glob), or be found in it (a regex).
+    private final String literal; // Folded literal every matching name contains, "" if there is none.
+    private final long budget; // ns, time matching may take.
+    private final long deadline; // System.nanoTime() by which matching must finish.
+    private volatile boolean exhausted; // Whether the budget has been spent.
+
+
+    /**
+     * Constructor: Creates a pattern whose budget starts now.
+     *
+     * @param pattern Compiled pattern.
+     * @param whole Whether the pattern must match the whole name.
+     * @param literal Folded literal every matching name contains.
+     * @param budget ns, time matching may take.
+     */
+    private NamePattern(Pattern pattern, boolean whole, String literal, long budget) {
+
+        this.pattern = pattern;
+        this.whole = whole;
+        this.literal = literal;
+        this.budget = budget;
+        this.deadline = System.nanoTime() + budget;
+
+    } // NamePattern().
+
+
+    /**
+     * Compile the pattern of a glob or regex search.
+     *
+     * @param searchType Type of search: glob or regex.
+     * @param searchString Glob or regex.
+     * @param budgetMillis ms, time matching names against the pattern may take, starting now.
+     *
+     * @return The pattern, or null if the search is of another type or the pattern is malformed.
+     */
+    public static NamePattern compile(String searchType, String searchString, long budgetMillis) {
+
+        long budget = budgetMillis * 1_000_000L;
+        int flags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+        try {
+
+            if (searchType.equalsIgnoreCase("glob")) {
+                return new NamePattern(Pattern.compile(globToRegex(searchString), flags), true,
+                        globLiteral(searchString), budget);
+            } else if (searchType.equalsIgnoreCase("regex")) {
+                return new NamePattern(Pattern.compile(searchString, flags), false,
+                        regexLiteral(searchString), budget);
+            }
+
+        } catch (PatternSyntaxException e) {
+            return null; // Malformed, so nothing matches.
+        }
+
+        return null;
+
+    } // compile().
+
+
+    /**
+     * @param type Search type.
+     *
+     * @return True if the search type is one whose search string is a pattern.
+     */
+    public static boolean isPatternType(String type) {
+        return type.equalsIgnoreCase("glob") || type.equalsIgnoreCase("regex");
+    }
+
+
+    /**
+     * @param budgetMillis ms, time matching may take, starting now.
+     *
+     * @return This pattern with a budget of its own, e.g. for use after this one's search has finished.
+     */
+    public NamePattern withBudget(long budgetMillis) {
+        return new NamePattern(pattern, whole, literal, budgetMillis * 1_000_000L);
+    }
+
+
+    /**
+     * Match a name against the pattern, unless the budget has been spent.
+     *
+     * @param name Folded name of a file or directory.
+     *
+     * @return True if the name matches, false if it does not or the budget has been spent.
+     */
+    public boolean matches(String name) {
+
+        if (exhausted) {
+            return false;
+        }
+        if (System.nanoTime() - deadline > 0) {
+            exhausted = true;
+            return false;
+        }
+
+        try {
+            Matcher matcher = pattern.matcher(new BudgetedName(name));
+            return whole ? matcher.matches() : matcher.find();
+        } catch (BudgetExceeded | StackOverflowError e) { // Out of time, or backtracking nested too deeply.
+            exhausted = true;
+            return false;
+        }
+
+    } // matches().
+
+
+    /**
+     * @return True once the budget has been spent, so results may be missing.
+     */
+    public boolean exhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return Folded literal every matching name contains, "" if there is none.
+     */
+    public String literal() {
+        return literal;
+    }
+
+    /**
+     * @return ms, the budget matching was given.
+     */
+    public long budgetMillis() {
+        return budget / 1_000_000L;
+    }
+
+
+    /**
+     * Translate a glob into a regex matching the same names.
+     *
+     * @param glob Glob.
+     *
+     * @return Regex.
+     */
+    static String globToRegex(String glob) {
+
+        StringBuilder regex = new StringBuilder();
+        int braces = 0; // Depth of '{' alternatives.
+
+        for (int i = 0; i < glob.length(); i++) {
+
+            char c = glob.charAt(i);
+            switch (c) {
+
+                case '*': regex.append(".*"); break;
+                case '?': regex.append('.'); break;
+
+                case '[': {
+
+                    int close = classEnd(glob, i);
+                    if (close < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+
+                    regex.append('[');
+                    int j = i + 1;
+                    if (glob.charAt(j) == '!' || glob.charAt(j) == '^') {
+                        regex.append('^');
+                        j++;
+                    }
+                    for (; j < close; j++) {
+                        char member = glob.charAt(j);
+                        if (member == '\\' || member == '[' || member == ']' || member == '&' || member == '^') {
+                            regex.append('\\');
+                        }
+                        regex.append(member);
+                    }
+                    regex.append(']');
+                    i = close;
+                    break;
+
+                }
+
+                case '{': braces++; regex.append("(?:"); break;
+                case '}': if (braces > 0) { braces--; regex.append(')'); } else { regex.append("\\}"); } break;
+                case ',': regex.append(braces > 0 ? "|" : ","); break;
+
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        c = glob.charAt(++i);
+                    }
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+
+                default:
+                    regex.append(REGEX_META.indexOf(c) >= 0 ? "\\" + c : String.valueOf(c));
+
+            }
+
+        } // for (all characters).
+
+        while (braces-- > 0) {
+            regex.append(')'); // Unclosed alternatives run to the end.
+        }
+
+        return regex.toString();
+
+    } // globToRegex().
+
+
+    /**
+     * @param glob Glob.
+     * @param open Index of a '[' in the glob.
+     *
+     * @return Index of the ']' closing the set, or -1 if it is not closed. A ']' first in the set is a member.
+     */
+    private static int classEnd(String glob, int open) {
+
+        int j = open + 1;
+        if (j < glob.length() && (glob.charAt(j) == '!' || glob.charAt(j) == '^')) j++;
+        if (j < glob.length() && glob.charAt(j) == ']') j++;
+
+        return glob.indexOf(']', j);
+
+    } // classEnd().
+
+
+    /**
+     * Find the longest literal every name matching a glob contains: the longest run of plain characters outside any
+     * set or alternatives.
+     *
+     * @param glob Glob.
+     *
+     * @return Folded literal, "" if there is none.
+     */
+    static String globLiteral(String glob) {
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int braces = 0;
+
+        for (int i = 0; i < glob.length(); i++) {
+
+            char c = glob.charAt(i);
+            boolean literal = false;
+
+            if (c == '{') {
+                braces++;
+            } else if (c == '}' && braces > 0) {
+                braces--;
+            } else if (c == '[' && classEnd(glob, i) >= 0) {
+                i = classEnd(glob, i);
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                c = glob.charAt(++i);
+                literal = braces == 0;
+            } else {
+                literal = braces == 0 && c != '*' && c != '?';
+            }
+
+            if (literal) {
+                run.append(c);
+            } else {
+                if (run.length() > longest.length()) longest = run.toString();
+                run.setLength(0);
+            }
+
+        } // for (all characters).
+
+        if (run.length() > longest.length()) longest = run.toString();
+        return FileIndex.fold(longest);
+
+    } // globLiteral().
+
+
+    /**
+     * Find the longest literal every name a regex is found in contains: the longest run of plain (or escaped
+     * punctuation) characters outside any group, set or alternation, leaving out characters a quantifier makes
+     * optional.
+     *
+     * @param regex Regex.
+     *
+     * @return Folded literal, "" if there is none or the regex is not one whose literals can safely be found.
+     */
+    static String regexLiteral(String regex) {
+
+        if (regex.contains("(?") || regex.contains("\\Q") || topLevelAlternation(regex)) {
+            return ""; // Inline flags (e.g. comments mode), quoting and alternatives change what is required.
+        }
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0; // Depth of groups.
+
+        for (int i = 0; i < regex.length(); i++) {
+
+            char c = regex.charAt(i);
+            boolean literal = false;
+
+            if (c == '\\' && i + 1 < regex.length()) {
+                c = regex.charAt(++i);
+                literal = depth == 0 && !Character.isLetterOrDigit(c); // \d, \w, \t, \1 and so on end the run.
+                if (!literal) {
+                    i = regexEscapeEnd(regex, i); // Not the hex digits of \x2e, the name of \p{L} and so on either.
+                }
+            } else if (c == '[') {
+                i = regexClassEnd(regex, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == '{') {
+                int close = regex.indexOf('}', i);
+                i = close < 0 ? i : close;
+            } else {
+                literal = depth == 0 && REGEX_META.indexOf(c) < 0;
+            }
+
+            if (literal) {
+
+                char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+                if (next == '?' || next == '*' || next == '{') { // May be left out, so not required.
+                    literal = false;
+                } else {
+                    run.append(c);
+                    if (next == '+') { // Required, but may be repeated, so ends the run.
+                        literal = false;
+                    }
+                }
+
+            } // if (literal).
+
+            if (!literal) {
+                if (run.length() > longest.length()) longest = run.toString();
+                run.setLength(0);
+            }
+
+        } // for (all characters).
+
+        if (run.length() > longest.length()) longest = run.toString();
+        return FileIndex.fold(longest);
+
+    } // regexLiteral().
+
+
+    /**
+     * @param regex Regex.
+     * @param open Index of a '[' in the regex.
+     *
+     * @return Index of the ']' closing the class (nested classes included), or the end of the regex.
+     */
+    private static int regexClassEnd(String regex, int open) {
+
+        int depth = 0;
+        for (int i = open; i < regex.length(); i++) {
+
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') i++;
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') i++; // ']' first is a member.
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+
+        }
+        return regex.length();
+
+    } // regexClassEnd().
+
+
+    /**
+     * Find the end of the argument of a regex escape, e.g. the "2e" of "\\x2e" or the "{Lu}" of "\\p{Lu}".
+     *
+     * @param regex Regex.
+     * @param letter Index of the letter or digit following the backslash.
+     *
+     * @return Index of the last character of the escape, letter if it takes no argument.
+     */
+    private static int regexEscapeEnd(String regex, int letter) {
+
+        char c = regex.charAt(letter);
+        int i = letter + 1;
+
+        if (i < regex.length() && regex.charAt(i) == '{') { // \x{...}, \p{...}, \N{...}, \b{g}.
+            int close = regex.indexOf('}', i);
+            return close < 0 ? regex.length() - 1 : close;
+        }
+
+        int max; // Most characters in the argument.
+        String allowed; // Characters the argument may be made of, null for any.
+        switch (c) {
+            case 'x': max = 2; allowed = "0123456789abcdefABCDEF"; break;
+            case 'u': max = 4; allowed = "0123456789abcdefABCDEF"; break;
+            case '0': max = 3; allowed = "01234567"; break;
+            case 'c': case 'p': case 'P': max = 1; allowed = null; break;
+            case 'k':
+                int close = regex.indexOf('>', i);
+                return close < 0 ? regex.length() - 1 : close;
+            default:
+                if (c >= '1' && c <= '9') { // A back reference takes as many digits as name a group.
+                    max = Integer.MAX_VALUE;
+                    allowed = "0123456789";
+                } else {
+                    return letter;
+                }
+        }
+
+        while (max-- > 0 && i < regex.length() && (allowed == null || allowed.indexOf(regex.charAt(i)) >= 0)) {
+            i++;
+        }
+        return i - 1;
+
+    } // regexEscapeEnd().
+
+
+    /**
+     * @param regex Regex.
+     *
+     * @return True if the regex has a '|' outside any group or class.
+     */
+    private static boolean topLevelAlternation(String regex) {
+
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                i = regexClassEnd(regex, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth = Math.max(0, depth - 1);
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+
+        }
+        return false;
+
+    } // topLevelAlternation().
+
+
+} // NamePattern{}.
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * ParallelDownload fetches one large file from a peer over several TCP connections at once, so a link that one stream
+ * cannot fill (per-flow limits, long round trips) is used fully.
+ *
+ * The file is split into byte ranges, one per stream. Each range is asked for with its own download request (offset and
+ * length), is served by its own TCP server on an ephemeral port, and is written into the file at its own position
+ * by its own thread. The file is sized first, so the ranges can be written in any order.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class ParallelDownload {
+
+
+    DownloadReceiver downloadReceiver; // Receiver the range requests are made and answered through.
+    Configuration configuration; // Configuration of the receiver.
+
+    Message initialRequest; // The download request for the whole file.
+    String filePathToSaveTo; // Local file being downloaded to.
+    Path partFile; // File the parts are written to, moved over filePathToSaveTo once all are in.
+    long fileSize; // Size of the file at the peer.
+
+    long rangeSize; // Bytes in each range but the last.
+    int streams; // Number of ranges, and so of concurrent connections.
+    AtomicInteger rangesLeft; // Ranges not yet downloaded.
+    AtomicBoolean finished = new AtomicBoolean(false); // Whether the download has succeeded or been given up on.
+
+
+    /**
+     * A byte range of the file, as asked for by one download request.
+     */
+    class Range implements DownloadReceiver.Part {
+
+        final long start; // First byte of the range.
+        final long length; // Bytes in the range.
+        final int attempts; // Times the range has been asked for again after failing.
+
+        Range(long start, long length, int attempts) {
+            this.start = start;
+            this.length = length;
+            this.attempts = attempts;
+        }
+
+
+        /**
+         * Called by the receiver with the answer to the request for this range: download it in a thread of its own.
+         *
+         * @param response The download result or error, or null if the request timed out.
+         */
+        @Override
+        public void answered(Message response) {
+
+            if (response == null || !response.getPayloadType().equalsIgnoreCase("download-result")) {
+                failed(this, 0);
+            } else if (response.getTransferFileSize() != fileSize) {
+                fail("File changed at " + initialRequest.getTargetPeerIdentifier() + " during the download.");
+            } else {
+                Thread thread = new Thread(() -> transfer(this, response));
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+        } // answered().
+
+    } // Range{}.
+
+
+    /**
+     * Constructor: Creates a download of a file in parallel byte ranges; start() begins it.
+     *
+     * @param downloadReceiver Receiver the range requests are made and answered through.
+     * @param initialRequest The download request for the whole file.
+     * @param filePathToSaveTo Local file to download to.
+     * @param fileSize Size of the file at the peer.
+     */
+    ParallelDownload(DownloadReceiver downloadReceiver, Message initialRequest, String filePathToSaveTo, long fileSize) {
+
+        this.downloadReceiver = downloadReceiver;
+        this.configuration = downloadReceiver.configuration;
+
+        this.initialRequest = initialRequest;
+        this.filePathToSaveTo = filePathToSaveTo;
+        this.partFile = FileTransfer.partPath(configuration, Paths.get(filePathToSaveTo), FileTransfer.DOWNLOADS);
+        this.fileSize = fileSize;
+
+        // Ranges of equal size, the last shorter; a small file may need fewer than there are streams.
+        long rangeSize = (fileSize + configuration.downloadStreams_ - 1) / Math.max(1, configuration.downloadStreams_);
+        this.rangeSize = Math.max(1, rangeSize);
+        this.streams = (int) ((fileSize + this.rangeSize - 1) / this.rangeSize);
+        this.rangesLeft = new AtomicInteger(streams);
+
+    } // ParallelDownload().
+
+
+    /**
+     * Size the local file and ask for every range.
+     *
+     * @return True if the download has begun, false if the local file could not be sized.
+     */
+    public boolean start() {
+
+        try {
+            FileTransfer.preallocate(partFile, fileSize);
+        } catch (IOException e) {
+            System.err.println("ParallelDownload.start() IO Exception: " + e.getMessage());
+            return false;
+        }
+
+        for (long start = 0; start < fileSize; start += rangeSize) {
+            request(new Range(start, Math.min(rangeSize, fileSize - start), 0));
+        }
+
+        return true;
+
+    } // start().
+
+
+    /**
+     * Send a download request for a range, registered with the receiver so the answer comes back to the range.
+     *
+     * @param range The range to ask for.
+     */
+    private void request(Range range) {
+
+        if (finished.get()) {
+            return; // Given up on.
+        }
+
+        Message rangeRequest = Message.downloadRequestMessage(initialRequest.getTargetPeerIdentifier(),
+                initialRequest.getTargetFilePath(), range.start, range.length);
+        downloadReceiver.parts.put(rangeRequest.getSerialNumber(), range);
+
+        downloadReceiver.multicastHandler.txMessage(rangeRequest);
+        downloadReceiver.addMessage(true, rangeRequest);
+
+    } // request().
+
+
+    /**
+     * Download a range from the TCP server set up for it, writing it into the file at its position.
+     *
+     * @param range The range to download.
+     * @param response The download result naming the server.
+     */
+    private void transfer(Range range, Message response) {
+
+        TCPClient tcpClient = new TCPClient(configuration, response.getHostname(), response.getFileTransferPort());
+        boolean checked = FileTransfer.CHECK_CRC32C.equalsIgnoreCase(response.getTransferCheck());
+        long received = tcpClient.processFile(partFile.toString(), true, range.start, range.length, checked);
+
+        if (received == range.length) {
+            if (rangesLeft.decrementAndGet() == 0) {
+                finish();
+            }
+        } else {
+            failed(range, Math.max(received, 0));
+        }
+
+    } // transfer().
+
+
+    /**
+     * Ask again for the part of a range not received, unless it has been asked for too many times.
+     *
+     * @param range The range that failed.
+     * @param received Bytes at the start of the range that were received.
+     */
+    private void failed(Range range, long received) {
+
+        if (range.attempts < configuration.transferRetries_) {
+            request(new Range(range.start + received, range.length - received, range.attempts + 1));
+        } else {
+            fail("Could not download the file, byte range " + range.start + "-" + (range.start + range.length) + " failed.");
+        }
+
+    } // failed().
+
+
+    /**
+     * Once every range is in, replace the destination with the file and output the download having succeeded.
+     */
+    private void finish() {
+
+        if (finished.get()) {
+            return; // Given up on.
+        }
+
+        try {
+            FileTransfer.commit(partFile, Paths.get(filePathToSaveTo));
+        } catch (IOException e) {
+            fail("Could not save the file: " + e.getMessage());
+            return;
+        }
+
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        System.out.println("----------------------------------------------");
+        System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
+                + ", File To Download: " + initialRequest.getTargetFilePath());
+        System.out.println("Download Result: Successfully downloaded " + initialRequest.getTargetFilePath()
+                + " From " + initialRequest.getTargetPeerIdentifier() + " over " + streams + " streams");
+
+        String rootDirName = FileTreeBrowser.getRootDirName();
+        String fileToSaveToRootPath = filePathToSaveTo.split(rootDirName)[1];
+        System.out.println("File Saved To: " + fileToSaveToRootPath + ".");
+        System.out.println("----------------------------------------------");
+
+    } // finish().
+
+
+    /**
+     * Give up on the download, letting the user know why; ranges still in flight are not asked for again.
+     *
+     * @param reason Why the download failed.
+     */
+    private void fail(String reason) {
+
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        System.out.println("----------------------------------------------");
+        System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
+                + ", File To Download: " + initialRequest.getTargetFilePath());
+        System.out.println("Download Result: " + reason);
+        System.out.println("----------------------------------------------");
+
+    } // fail().
+
+
+} // ParallelDownload{}.
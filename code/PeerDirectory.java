@@ -0,0 +1,194 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * PeerDirectory holds the remote file browsers currently heard from, keyed by "identifier:port".
+ *
+ * Liveness is judged by the local time at which each beacon was received, never by the timestamp the peer wrote, so
+ * clock differences between hosts do not matter. Each peer has a single timeout on a TimingWheel: receiving a beacon
+ * only records the time, and when the timeout fires it either drops the peer or, if a beacon arrived meanwhile,
+ * schedules itself again for the remaining time. Readers are given an immutable snapshot, rebuilt only after the
+ * directory has changed, so they never hold up the multicast thread.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class PeerDirectory {
+
+
+    /**
+     * A remote file browser and the last beacon received from it.
+     */
+    private static final class Peer {
+
+        final String key; // identifier:port.
+        volatile Message beacon; // Last beacon received.
+        volatile long lastHeard; // System.nanoTime() when the last beacon was received.
+
+        Peer(String key, Message beacon, long lastHeard) {
+            this.key = key;
+            this.beacon = beacon;
+            this.lastHeard = lastHeard;
+        }
+
+    } // Peer{}.
+
+
+    /**
+     * Beacons as they were at one version of the directory.
+     */
+    private static final class Snapshot {
+
+        final long version; // Directory version the beacons were read at.
+        final Map<String, Message> beacons; // Beacons by identifier:port.
+
+        Snapshot(long version, Map<String, Message> beacons) {
+            this.version = version;
+            this.beacons = beacons;
+        }
+
+    } // Snapshot{}.
+
+
+    private final ConcurrentHashMap<String, Peer> peers; // Active peers by identifier:port.
+    private final TimingWheel<Peer> timingWheel; // One pending timeout per peer.
+    private final IntSupplier beaconTimeout; // Current beacon timeout in ms, which grows with the group.
+    private final Configuration configuration; // Configuration, used for logging.
+    private final AtomicLong version; // Incremented whenever a beacon is received or a peer is dropped.
+    private volatile Snapshot snapshot; // Most recently built snapshot, possibly of an older version.
+
+
+    /**
+     * Constructor: Creates an empty directory.
+     *
+     * @param configuration Configuration of the file browser.
+     * @param beaconTimeout Supplies the time in ms after which a silent peer is dropped.
+     */
+    PeerDirectory(Configuration configuration, IntSupplier beaconTimeout) {
+
+        this.configuration = configuration;
+        this.beaconTimeout = beaconTimeout;
+        this.peers = new ConcurrentHashMap<>();
+        this.version = new AtomicLong();
+        this.timingWheel = new TimingWheel<>("PeerDirectory", 100, 512, this::timeout);
+
+    } // PeerDirectory().
+
+
+    /**
+     * Record a beacon, adding its sender to the directory if it is new.
+     *
+     * @param beacon Beacon received.
+     */
+    public void beaconReceived(Message beacon) {
+
+        long now = System.nanoTime();
+        String key = beacon.getIdentifier() + ":" + beacon.getServerPort();
+
+        peers.compute(key, (k, peer) -> {
+
+            if (peer == null) { // New peer, so give it a timeout.
+                peer = new Peer(k, beacon, now);
+                timingWheel.schedule(peer, beaconTimeout.getAsInt());
+            } else { // Known peer: its timeout notices the new receive time when it fires.
+                peer.beacon = beacon;
+                peer.lastHeard = now;
+            }
+
+            return peer;
+
+        });
+
+        version.incrementAndGet();
+
+    } // beaconReceived().
+
+
+    /**
+     * Called by the timing wheel when a peer's timeout fires.
+     *
+     * @param peer Peer whose timeout has fired.
+     */
+    private void timeout(Peer peer) {
+
+        long timeout = beaconTimeout.getAsInt();
+
+        boolean[] expired = {false};
+        peers.computeIfPresent(peer.key, (k, current) -> {
+
+            if (current != peer) {
+                return current;
+            }
+
+            long silence = (System.nanoTime() - peer.lastHeard) / 1_000_000L;
+            if (silence < timeout) { // Heard from since the timeout was set, so wait for the rest of the time.
+                timingWheel.schedule(peer, timeout - silence);
+                return peer;
+            }
+
+            expired[0] = true;
+            return null;
+
+        });
+
+        if (expired[0]) {
+
+            version.incrementAndGet();
+            configuration.log_.writeLog("Peer Expired: " + peer.key); // Create log.
+
+        }
+
+    } // timeout().
+
+
+    /**
+     * @return Immutable view of the active beacons, keyed and ordered by identifier:port.
+     */
+    public Map<String, Message> snapshot() {
+
+        long currentVersion = version.get();
+        Snapshot current = snapshot;
+
+        if (current == null || current.version != currentVersion) {
+
+            // Read the version first: a change made while copying bumps it, so this copy is rebuilt on the next call.
+            TreeMap<String, Message> beacons = new TreeMap<>();
+            for (Peer peer : peers.values()) {
+                beacons.put(peer.key, peer.beacon);
+            }
+
+            current = new Snapshot(currentVersion, Collections.unmodifiableMap(beacons));
+            snapshot = current;
+
+        }
+
+        return current.beacons;
+
+    } // snapshot().
+
+
+    /**
+     * @param key identifier:port of a peer.
+     *
+     * @return Last beacon from the peer, or null if it is not active.
+     */
+    public Message get(String key) {
+
+        Peer peer = peers.get(key);
+        return peer == null ? null : peer.beacon;
+
+    } // get().
+
+
+    /**
+     * @return Number of active peers.
+     */
+    public int size() {
+        return peers.size();
+    }
+
+
+} // PeerDirectory{}.
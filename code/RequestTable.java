@@ -0,0 +1,352 @@
+import java.util.Arrays;
+
+/**
+ * RequestTable correlates responses with the requests this file browser has sent, across all receivers.
+ *
+ * Requests are keyed by their serial number (unique for this file browser, see Message) in an open addressing table
+ * of primitive longs, so a lookup neither builds a key String nor boxes a number. Every request carries a deadline on
+ * a shared TimingWheel; when it passes, the request is removed and its listener is told that it has completed. The
+ * table therefore only ever holds requests that can still be answered.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class RequestTable {
+
+
+    /**
+     * Receives completion callbacks for requests registered with the table.
+     */
+    public interface Listener {
+
+        /**
+         * Called exactly once per registered request: when it is completed by a response, or when its deadline passes.
+         *
+         * @param request Request that has completed.
+         * @param responseCount Number of responses matched to the request, 0 if it went unanswered.
+         */
+        void requestCompleted(Message request, int responseCount);
+
+    } // Listener{}.
+
+
+    /**
+     * An outstanding request.
+     */
+    private static final class Entry {
+
+        final Message request; // Request as sent.
+        final Listener listener; // Listener to notify on completion.
+        TimingWheel.Timeout<Entry> deadline; // Deadline of the request.
+        int responseCount; // Number of responses matched so far.
+
+        Entry(Message request, Listener listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+    } // Entry{}.
+
+
+    private static final long FREE = Long.MIN_VALUE; // Key of an unused slot (serial numbers are never negative).
+
+    private long[] keys; // Serial numbers, FREE where unused.
+    private Entry[] entries; // Entry for each used slot.
+    private int size; // Number of outstanding requests.
+    private final TimingWheel<Entry> timingWheel; // Deadlines of the outstanding requests.
+    private final Configuration configuration; // Configuration, used for logging.
+
+
+    /**
+     * Constructor: Creates an empty table.
+     *
+     * @param configuration Configuration of the file browser.
+     */
+    RequestTable(Configuration configuration) {
+
+        this.configuration = configuration;
+        this.keys = new long[64];
+        this.entries = new Entry[64];
+        Arrays.fill(keys, FREE);
+
+        this.timingWheel = new TimingWheel<>("RequestTable", 100, 512, this::expire);
+
+    } // RequestTable().
+
+
+    /**
+     * Register a request that has been sent, so responses to it can be matched. Should a request with the same serial
+     * number still be outstanding, it is completed first, so its listener is still told exactly once.
+     *
+     * @param request Request as sent (its serial number is the key).
+     * @param timeout Milliseconds after which the request is completed if not answered.
+     * @param listener Listener to notify when the request completes.
+     */
+    public void register(Message request, int timeout, Listener listener) {
+
+        Entry entry = new Entry(request, listener);
+        Entry replaced;
+
+        synchronized (this) {
+
+            replaced = remove(request.getSerialNumber());
+            if (replaced != null) {
+                timingWheel.cancel(replaced.deadline);
+            }
+
+            put(request.getSerialNumber(), entry);
+            entry.deadline = timingWheel.schedule(entry, timeout);
+
+        } // synchronized (this).
+
+        if (replaced != null) {
+
+            configuration.log_.writeLog("Request Replaced: " + replaced.request.getPayloadType() + " "
+                    + replaced.request.getSerialNumber() + ", Responses: " + replaced.responseCount); // Create log.
+
+            replaced.listener.requestCompleted(replaced.request, replaced.responseCount);
+
+        }
+
+    } // register().
+
+
+    /**
+     * Match a response to an outstanding request, leaving the request outstanding for further responses.
+     *
+     * @param response Response received.
+     * @param listener Listener the request was registered with, so responses of the wrong kind are not matched.
+     *
+     * @return Request the response answers, or null if it does not answer one of our outstanding requests.
+     */
+    public synchronized Message match(Message response, Listener listener) {
+
+        Entry entry = find(response, listener);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.responseCount++;
+        return entry.request;
+
+    } // match().
+
+
+    /**
+     * Match a response to an outstanding request and complete the request, so later responses are not matched.
+     *
+     * @param response Response received.
+     * @param listener Listener the request was registered with, so responses of the wrong kind are not matched.
+     *
+     * @return Request the response answers, or null if it does not answer one of our outstanding requests.
+     */
+    public Message complete(Message response, Listener listener) {
+
+        Entry entry;
+
+        synchronized (this) {
+
+            entry = find(response, listener);
+            if (entry == null) {
+                return null;
+            }
+
+            entry.responseCount++;
+            remove(entry.request.getSerialNumber());
+            timingWheel.cancel(entry.deadline);
+
+        } // synchronized (this).
+
+        entry.listener.requestCompleted(entry.request, entry.responseCount);
+
+        return entry.request;
+
+    } // complete().
+
+
+    /**
+     * @return Number of outstanding requests.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+
+    /**
+     * Called by the timing wheel when a request's deadline passes.
+     *
+     * @param entry Entry whose deadline has passed.
+     */
+    private void expire(Entry entry) {
+
+        synchronized (this) {
+
+            if (get(entry.request.getSerialNumber()) != entry) {
+                return; // Completed by a response while the wheel was expiring it.
+            }
+            remove(entry.request.getSerialNumber());
+
+        } // synchronized (this).
+
+        configuration.log_.writeLog("Request Expired: " + entry.request.getPayloadType() + " "
+                + entry.request.getSerialNumber() + ", Responses: " + entry.responseCount); // Create log.
+
+        entry.listener.requestCompleted(entry.request, entry.responseCount);
+
+    } // expire().
+
+
+    /**
+     * Find the outstanding request a response answers. Caller must hold the table's lock.
+     *
+     * @param response Response received.
+     * @param listener Listener the request must have been registered with.
+     *
+     * @return Entry of the request, or null if there is none.
+     */
+    private Entry find(Message response, Listener listener) {
+
+        // Responses to other file browsers' requests share the multicast group; only look up those addressed to us.
+        if (!Message.localIdentifier().equals(response.getResponseIdentifier())) {
+            return null;
+        }
+
+        Entry entry = get(response.getResponseSerialNumber());
+        if (entry == null || entry.listener != listener) {
+            return null;
+        }
+
+        return entry;
+
+    } // find().
+
+
+    // Open addressing (linear probing) over primitive keys:
+
+    /**
+     * @param key Serial number.
+     *
+     * @return Home slot of the key.
+     */
+    private int slot(long key) {
+
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads consecutive serial numbers.
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+
+    } // slot().
+
+
+    /**
+     * @param key Serial number.
+     *
+     * @return Entry stored under the key, or null.
+     */
+    private Entry get(long key) {
+
+        for (int i = slot(key); keys[i] != FREE; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                return entries[i];
+            }
+        }
+
+        return null;
+
+    } // get().
+
+
+    /**
+     * Store an entry under a key that is not already present, growing the table when it becomes half full.
+     *
+     * @param key Serial number.
+     * @param entry Entry to store.
+     */
+    private void put(long key, Entry entry) {
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+
+        int i = slot(key);
+        while (keys[i] != FREE) {
+            i = (i + 1) & (keys.length - 1);
+        }
+
+        keys[i] = key;
+        entries[i] = entry;
+        size++;
+
+    } // put().
+
+
+    /**
+     * Remove the entry stored under a key, shifting later entries of the probe sequence back so no tombstones are left.
+     *
+     * @param key Serial number.
+     *
+     * @return Entry that was removed, or null if the key was not present.
+     */
+    private Entry remove(long key) {
+
+        int mask = keys.length - 1;
+
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == FREE) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+
+        Entry removed = entries[i];
+
+        // Backward shift: move up any entry whose home slot does not lie (cyclically) between the gap and itself.
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                entries[gap] = entries[j];
+                gap = j;
+            }
+
+        }
+
+        keys[gap] = FREE;
+        entries[gap] = null;
+        size--;
+
+        // Give memory back after a burst of requests.
+        if (keys.length > 64 && size * 8 < keys.length) {
+            resize(keys.length / 2);
+        }
+
+        return removed;
+
+    } // remove().
+
+
+    /**
+     * Rehash every entry into arrays of a new capacity.
+     *
+     * @param capacity New capacity, a power of two.
+     */
+    private void resize(int capacity) {
+
+        long[] oldKeys = keys;
+        Entry[] oldEntries = entries;
+
+        keys = new long[capacity];
+        entries = new Entry[capacity];
+        Arrays.fill(keys, FREE);
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldEntries[i]);
+            }
+        }
+
+    } // resize().
+
+
+} // RequestTable{}.
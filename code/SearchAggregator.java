@@ -0,0 +1,309 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SearchAggregator gathers the responses to each of our search requests into one set of results, rather than each
+ * response being shown as it arrives.
+ *
+ * A request's results are collected from when it is sent until it completes: when its deadline (searchDeadline_, kept
+ * by the RequestTable) passes, or sooner, once every peer offering search (whose catalog does not rule out a match)
+ * has said it is done, by search-end or search-error. A search-end gives the number of results the peer sent, and the
+ * peer is only done once that many have arrived, as a search-results datagram may be lost or overtaken by the
+ * search-end; results still missing when the request completes are shown as such. Peers whose catalog rules out a
+ * match are not waited for, but their results are kept if they arrive in time, as a catalog may not yet list a file
+ * just added. A path reported more than once by the same peer (e.g. by a peer answering a retransmitted request) is
+ * kept once. The results are then handed over whole, and can be rendered as a single table.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class SearchAggregator {
+
+
+    /**
+     * Results gathered for one search request.
+     */
+    public static final class Results {
+
+        private final Message request; // Search request the results answer.
+        private final TreeMap<String, LinkedHashSet<String>> paths; // Paths found, by peer identifier.
+        private final TreeSet<String> finished; // Peers that have said they are done, with all their results in.
+        private final TreeMap<String, Long> received; // Paths received, duplicates included, by peer identifier.
+        private final TreeMap<String, Long> announced; // Results sent, as given by search-end, by peer identifier.
+        private final TreeSet<String> empty; // Peers that answered with search-error.
+        private final TreeSet<String> ruledOut; // Peers not waited for, as their catalog rules out a match.
+        private int duplicates; // Paths dropped as already reported by the same peer.
+
+        Results(Message request, Collection<String> ruledOut) {
+            this.request = request;
+            this.paths = new TreeMap<>();
+            this.finished = new TreeSet<>();
+            this.received = new TreeMap<>();
+            this.announced = new TreeMap<>();
+            this.empty = new TreeSet<>();
+            this.ruledOut = new TreeSet<>(ruledOut);
+        }
+
+
+        /**
+         * Add the paths of a search response.
+         *
+         * @param response search-result, search-results, search-end or search-error from a peer.
+         */
+        synchronized void add(Message response) {
+
+            String peer = response.getIdentifier();
+            String type = response.getPayloadType().toLowerCase();
+
+            if (type.equals("search-result")) {
+                addPath(peer, response.getSearchFileString());
+            } else if (type.equals("search-results")) {
+                for (String path : response.getSearchFileStrings()) {
+                    addPath(peer, path);
+                }
+            } else if (type.equals("search-end")) {
+                announced.put(peer, response.getSearchResultCount());
+            } else if (type.equals("search-error")) {
+                finished.add(peer);
+                empty.add(peer);
+            }
+
+            // Done once every result the peer's search-end counted has arrived, in whichever order.
+            Long count = announced.get(peer);
+            if (count != null && received.getOrDefault(peer, 0L) >= count) {
+                finished.add(peer);
+            }
+
+        } // add().
+
+
+        /**
+         * @param peer Peer identifier.
+         * @param path Path found by the peer.
+         */
+        private void addPath(String peer, String path) {
+
+            received.merge(peer, 1L, Long::sum);
+            if (!paths.computeIfAbsent(peer, p -> new LinkedHashSet<>()).add(path)) {
+                duplicates++;
+            }
+
+        } // addPath().
+
+
+        /**
+         * @param peers Identifiers of the peers expected to answer.
+         *
+         * @return True if every one of them has said it is done.
+         */
+        synchronized boolean finished(Collection<String> peers) {
+            return !peers.isEmpty() && finished.containsAll(peers);
+        }
+
+
+        /**
+         * @return The search request the results answer.
+         */
+        public Message getRequest() {
+            return request;
+        }
+
+        /**
+         * @return Paths found, by peer identifier (in order), each in the order the peer sent them.
+         */
+        public synchronized Map<String, List<String>> getPaths() {
+
+            TreeMap<String, List<String>> copy = new TreeMap<>();
+            for (Map.Entry<String, LinkedHashSet<String>> peer : paths.entrySet()) {
+                copy.put(peer.getKey(), Collections.unmodifiableList(new ArrayList<>(peer.getValue())));
+            }
+            return Collections.unmodifiableMap(copy);
+
+        } // getPaths().
+
+        /**
+         * @return Number of distinct (peer, path) results.
+         */
+        public synchronized int size() {
+
+            int size = 0;
+            for (LinkedHashSet<String> peerPaths : paths.values()) {
+                size += peerPaths.size();
+            }
+            return size;
+
+        } // size().
+
+        /**
+         * @return Number of results dropped as duplicates.
+         */
+        public synchronized int getDuplicates() {
+            return duplicates;
+        }
+
+
+        /**
+         * Render the results as a table of peer and path, one row per result. Each peer is shown up to the page size
+         * it was asked for, so no row cut from the table falls in a page :more skips over.
+         *
+         * @param maximumRows Most rows to show of each peer (at least the page size); the number left out is given
+         *                    instead.
+         *
+         * @return The table, ready to print.
+         */
+        public synchronized String render(int maximumRows) {
+
+            int peerRows = (int) Math.max(maximumRows, Math.min(Integer.MAX_VALUE, request.getSearchMaxResults()));
+
+            StringBuilder table = new StringBuilder();
+            String rule = "----------------------------------------------\n";
+
+            table.append(rule);
+            table.append("Search Request: Search Type: '").append(request.getSearchType())
+                    .append("', Search String: '").append(request.getSearchString()).append("'");
+            if (request.getSearchMaxResults() >= 0) {
+                long page = request.getSearchMaxResults() == 0 ? 1
+                        : request.getSearchOffset() / request.getSearchMaxResults() + 1;
+                table.append(", Page ").append(page);
+            }
+            table.append(".\n");
+
+            int width = "Peer".length();
+            for (String peer : paths.keySet()) {
+                width = Math.max(width, peer.length());
+            }
+
+            int size = size();
+            if (size == 0) {
+
+                table.append(!empty.isEmpty() ? "Search Result: No results.\n"
+                        : !ruledOut.isEmpty() ? "Search Result: No responses; every catalog rules out a match.\n"
+                        : "Search Result: No responses.\n");
+
+            } else {
+
+                table.append(String.format("%-" + width + "s  %s%n", "Peer", "Path"));
+
+                for (Map.Entry<String, LinkedHashSet<String>> peer : paths.entrySet()) {
+
+                    int rows = 0;
+                    for (String path : peer.getValue()) {
+                        if (rows++ < peerRows) {
+                            table.append(String.format("%-" + width + "s  %s%n", peer.getKey(), path));
+                        }
+                    }
+                    if (rows > peerRows) {
+                        table.append(String.format("%-" + width + "s  ... %d more.%n", peer.getKey(), rows - peerRows));
+                    }
+
+                } // for (each peer).
+
+            } // if (results or not).
+
+            table.append(size).append(size == 1 ? " result" : " results").append(" from ").append(paths.size())
+                    .append(paths.size() == 1 ? " peer" : " peers");
+            if (duplicates > 0) {
+                table.append(", ").append(duplicates).append(" duplicates dropped");
+            }
+            table.append(".\n");
+            if (!empty.isEmpty()) {
+                table.append("No results at: ").append(String.join(", ", empty)).append(".\n");
+            }
+            List<String> missing = new ArrayList<>();
+            for (Map.Entry<String, Long> peer : announced.entrySet()) {
+                long peerReceived = received.getOrDefault(peer.getKey(), 0L);
+                if (peerReceived < peer.getValue()) {
+                    missing.add(peer.getKey() + " (" + (peer.getValue() - peerReceived) + " of " + peer.getValue() + ")");
+                }
+            }
+            if (!missing.isEmpty()) {
+                table.append("Results not received from: ").append(String.join(", ", missing)).append(".\n");
+            }
+            if (!ruledOut.isEmpty()) {
+                table.append("Not waited for (ruled out by catalog): ").append(String.join(", ", ruledOut))
+                        .append(".\n");
+            }
+
+            // A peer that sent a full page may have more.
+            long maxResults = request.getSearchMaxResults();
+            for (LinkedHashSet<String> peerPaths : paths.values()) {
+                if (maxResults > 0 && peerPaths.size() >= maxResults) {
+                    table.append("More results may follow: :more shows the next page.\n");
+                    break;
+                }
+            }
+
+            table.append(rule);
+            return table.toString();
+
+        } // render().
+
+    } // Results{}.
+
+
+    private final ConcurrentHashMap<Long, Results> outstanding; // Results being gathered, by request serial number.
+
+
+    /**
+     * Constructor: Creates an aggregator with no outstanding requests.
+     */
+    SearchAggregator() {
+        this.outstanding = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Start gathering the results of a search request that has been sent.
+     *
+     * @param request Search request as sent.
+     * @param ruledOut Identifiers of the peers whose catalog rules out a match, so are not expected to answer.
+     */
+    public void start(Message request, Collection<String> ruledOut) {
+        outstanding.put(request.getSerialNumber(), new Results(request, ruledOut));
+    }
+
+
+    /**
+     * Add a response to one of our outstanding search requests.
+     *
+     * @param request Request the response answers, as matched by the RequestTable.
+     * @param response Response received.
+     * @param peers Identifiers of the peers expected to answer.
+     *
+     * @return True if every expected peer has now said it is done, so the request can be completed early.
+     */
+    public boolean add(Message request, Message response, Collection<String> peers) {
+
+        Results results = outstanding.get(request.getSerialNumber());
+        if (results == null) {
+            return false;
+        }
+
+        results.add(response);
+        return results.finished(peers);
+
+    } // add().
+
+
+    /**
+     * Stop gathering the results of a search request.
+     *
+     * @param request Search request that has completed.
+     *
+     * @return Results gathered, or null if the request was not being gathered.
+     */
+    public Results complete(Message request) {
+        return outstanding.remove(request.getSerialNumber());
+    }
+
+
+    /**
+     * @param serialNumber Serial number of an outstanding search request.
+     *
+     * @return Results gathered so far, or null if the request is not outstanding.
+     */
+    public Results results(long serialNumber) {
+        return outstanding.get(serialNumber);
+    }
+
+
+} // SearchAggregator{}.
@@ -0,0 +1,218 @@
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * SearchCache keeps the results of recent searches, so a search repeated by several peers is answered by one lookup.
+ *
+ * Searches are keyed by type and normalised search string (case-folded, and for a path search with a leading '/' and
+ * without a trailing one), so equivalent searches share an entry. The least recently used searches are evicted once
+ * the total number of cached results exceeds the capacity.
+ *
+ * The cache listens to the FileIndex, and when a file or directory is added or removed it drops exactly the searches
+ * whose results it could change: the path search for it, the filename search for its name, the substring searches its
+ * name contains, and the glob and regex searches its name matches (each given a budget of its own, see NamePattern).
+ * Results computed while a change is being made are not cached, as they may be stale.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class SearchCache implements FileIndex.Listener {
+
+
+    /**
+     * Results of one search.
+     */
+    private static final class CachedResults {
+
+        final String type; // Search type, lower case.
+        final String searchString; // Normalised search string.
+        final List<String> results; // Paths matching the search.
+        final NamePattern pattern; // Compiled pattern of a glob or regex search, null for other searches.
+
+        CachedResults(String type, String searchString, List<String> results, NamePattern pattern) {
+            this.type = type;
+            this.searchString = searchString;
+            this.results = results;
+            this.pattern = pattern;
+        }
+
+    } // CachedResults{}.
+
+
+    private final LinkedHashMap<String, CachedResults> cache; // Cached searches by key, least recently used first.
+    private final int capacity; // Most results held in total.
+    private final long patternBudget; // ms, time matching a changed name against one cached pattern may take.
+    private int size; // Results currently held in total.
+    private long changes; // Number of index changes seen, so results computed across a change are not cached.
+
+
+    /**
+     * Constructor: Creates an empty cache.
+     *
+     * @param capacity Most results (paths) to hold in total, across all searches.
+     * @param patternBudget ms, time matching a changed name against the pattern of a cached search may take.
+     */
+    SearchCache(int capacity, long patternBudget) {
+
+        this.cache = new LinkedHashMap<>(64, 0.75f, true); // Access order, for least recently used eviction.
+        this.capacity = capacity;
+        this.patternBudget = patternBudget;
+
+    } // SearchCache().
+
+
+    /**
+     * @return Stamp to give put(), taken before the search is performed.
+     */
+    public synchronized long stamp() {
+        return changes;
+    }
+
+
+    /**
+     * Find the cached results of a search.
+     *
+     * @param type Search type.
+     * @param searchString Search string.
+     *
+     * @return Unmodifiable list of results, or null if the search is not cached.
+     */
+    public synchronized List<String> get(String type, String searchString) {
+
+        CachedResults cached = cache.get(key(type, searchString));
+        return cached == null ? null : cached.results;
+
+    } // get().
+
+
+    /**
+     * Cache the results of a search, unless the index has changed since they were computed.
+     *
+     * @param type Search type.
+     * @param searchString Search string.
+     * @param results Paths matching the search.
+     * @param stamp Value of stamp() taken before the search was performed.
+     *
+     * @return Unmodifiable list of the results.
+     */
+    public synchronized List<String> put(String type, String searchString, List<String> results, long stamp) {
+
+        List<String> unmodifiable = Collections.unmodifiableList(results);
+
+        if (stamp != changes || results.size() + 1 > capacity) {
+            return unmodifiable; // Possibly stale, or too large to be worth evicting everything else for.
+        }
+
+        String foldedType = FileIndex.fold(type);
+        String normalised = normalise(foldedType, searchString);
+        CachedResults previous = cache.put(foldedType + ":" + normalised, new CachedResults(foldedType, normalised,
+                unmodifiable, NamePattern.compile(foldedType, normalised, patternBudget)));
+        if (previous != null) {
+            size -= previous.results.size() + 1;
+        }
+        size += results.size() + 1; // Counted as one more, so empty results still take up room.
+
+        Iterator<CachedResults> leastRecent = cache.values().iterator();
+        while (size > capacity) {
+            size -= leastRecent.next().results.size() + 1;
+            leastRecent.remove();
+        }
+
+        return unmodifiable;
+
+    } // put().
+
+
+    /**
+     * Called by the file index when a file or directory is added or removed: drop the searches it may change.
+     *
+     * @param path Path of the file or directory from the root directory.
+     * @param directory Whether it is a directory.
+     */
+    @Override
+    public synchronized void indexChanged(String path, boolean directory) {
+
+        changes++;
+
+        if (cache.isEmpty()) {
+            return;
+        }
+
+        String foldedPath = FileIndex.fold(path);
+        String name = foldedPath.substring(foldedPath.lastIndexOf('/') + 1);
+
+        Iterator<CachedResults> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+
+            CachedResults cached = iterator.next();
+
+            boolean affected;
+            if (cached.type.equals("path")) {
+                affected = cached.searchString.equals(foldedPath);
+            } else if (cached.type.equals("filename")) {
+                affected = cached.searchString.equals(name);
+            } else if (cached.type.equals("substring")) {
+                affected = name.contains(cached.searchString);
+            } else if (cached.pattern != null) { // Glob or regex; a match that runs out of time cannot rule it out.
+                NamePattern pattern = cached.pattern.withBudget(patternBudget);
+                affected = pattern.matches(name) || pattern.exhausted();
+            } else {
+                affected = true; // Unknown type, so it cannot be said to be unaffected.
+            }
+
+            if (affected) {
+                size -= cached.results.size() + 1;
+                iterator.remove();
+            }
+
+        } // while (cached searches remain).
+
+    } // indexChanged().
+
+
+    /**
+     * @param type Search type.
+     * @param searchString Search string.
+     *
+     * @return Key of the search in the cache.
+     */
+    private static String key(String type, String searchString) {
+
+        String foldedType = FileIndex.fold(type);
+        return foldedType + ":" + normalise(foldedType, searchString);
+
+    } // key().
+
+
+    /**
+     * @param type Search type, lower case.
+     * @param searchString Search string.
+     *
+     * @return Search string in the form it is cached under.
+     */
+    private static String normalise(String type, String searchString) {
+
+        if (type.equals("regex")) {
+            return searchString; // Folding would change its meaning, e.g. \W to \w.
+        }
+
+        String normalised = FileIndex.fold(searchString);
+
+        if (type.equals("path")) { // Paths match with or without the leading '/' and a directory's trailing '/'.
+
+            if (normalised.isEmpty() || normalised.charAt(0) != '/') {
+                normalised = "/" + normalised;
+            }
+            while (normalised.length() > 1 && normalised.charAt(normalised.length() - 1) == '/') {
+                normalised = normalised.substring(0, normalised.length() - 1);
+            }
+
+        } // if (path search).
+
+        return normalised;
+
+    } // normalise().
+
+
+} // SearchCache{}.
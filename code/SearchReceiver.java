@@ -1,16 +1,47 @@
 import java.io.File;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-
-public class SearchReceiver implements Runnable {
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * SearchReceiver answers the search requests of remote file browsers, and shows the responses to our own.
+ *
+ * Its own thread only sorts incoming search messages: responses to our requests are gathered by a SearchAggregator,
+ * and shown together as one table once the request completes, and requests are queued by requester in a FairQueue. A
+ * pool of searchThreads_ workers performs the searches, taking requesters in turn, so one peer's slow substring
+ * searches do not hold up another's path lookups. Results are sent as they are found (see SearchResultStream). The
+ * multicast thread only ever hands messages over, so it never waits on the disk.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class SearchReceiver implements Runnable, RequestTable.Listener {
 
 
     MulticastHandler multicastHandler; // Instance of MulticastHandler used.
     Configuration configuration; // Configuration of MulticastHandler.
-    HashMap<String, Message> outgoingSearchRequests; // HashMap of active search requests that have been sent.
-    HashMap<String, Message> incomingSearchMessages; // HashMap of incoming messages pending processing.
+    MessageQueue incomingSearchMessages; // Incoming search messages pending processing.
+    SearchCache searchCache; // Results of recent searches, dropped as the files they match change.
+    FairQueue<String, Message> searchRequests; // Search requests waiting for a worker, by requester identifier.
+    SearchAggregator searchAggregator; // Responses to our search requests, gathered until each request completes.
+    Map<Long, Consumer<SearchAggregator.Results>> resultHandlers = new ConcurrentHashMap<>(); // Handed results, not shown.
+
+    static final int SHOWN_RESULTS = 100; // Most results of each peer shown in the table, if more than a page.
+    static final int REQUESTER_SHARE = 4; // One requester may fill at most 1/REQUESTER_SHARE of the search queue.
+
+    private volatile Message lastSearchRequest; // Our last search request, whose next page :more asks for.
+
+    // Walks searches before the index is ready; not shared with the index build, which would hold them up until done.
+    private static final ForkJoinPool walkPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
 
     /**
@@ -22,26 +53,52 @@ public class SearchReceiver implements Runnable {
 
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
-        this.outgoingSearchRequests = new HashMap<>(); // HashMap of active search requests that have been sent.
-        this.incomingSearchMessages = new HashMap<>(); // HashMap of incoming messages pending processing.
+        this.incomingSearchMessages = new MessageQueue(configuration.receiverQueueCapacity_); // Incoming messages pending processing.
+        this.searchCache = new SearchCache(configuration.searchCacheSize_, configuration.patternBudget_);
+        multicastHandler.fileIndex.addListener(searchCache); // Keep the cache current as files change.
+        this.searchRequests = new FairQueue<>(Math.max(1, configuration.receiverQueueCapacity_ / REQUESTER_SHARE),
+                configuration.receiverQueueCapacity_);
+        this.searchAggregator = new SearchAggregator();
 
         // Create thread for managing handling search messages from multicast group.
         Thread thread = new Thread(this);
         thread.setPriority(7);
         thread.start();
 
+        // Create worker threads for performing searches.
+        for (int i = 0; i < Math.max(1, configuration.searchThreads_); i++) {
+            Thread worker = new Thread(this::performSearches, "SearchWorker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
     } // SearchReceiver().
 
 
     /**
-     * Process incoming search messages.
+     * Process incoming search messages: queue search requests for the workers, and show responses to our requests.
      */
     @Override
     public void run() {
 
         do { // Do until application terminated.
 
-            processIncomingSearchMessages();
+            // Sleeps until the multicast thread hands over a message.
+            Message message = incomingSearchMessages.take();
+
+            if (message.getPayloadType().equalsIgnoreCase("search-request")) {
+
+                // Queued behind the requester's own earlier requests only.
+                if (!searchRequests.offer(message.getIdentifier(), message)) {
+                    configuration.log_.writeLog("SearchReceiver Search Queue Full - Dropped: search-request From "
+                            + message.getIdentifier() + ":" + message.getSerialNumber()); // Create log.
+                }
+
+            } else {
+
+                processIncomingSearchMessage(message);
+
+            }
 
         } while (true);
 
@@ -49,86 +106,114 @@ public class SearchReceiver implements Runnable {
 
 
     /**
-     * Process incoming search messages.
+     * Worker loop: perform queued search requests, taking requesters in turn.
      */
-    public synchronized void processIncomingSearchMessages() {
+    private void performSearches() {
 
-        LinkedList<String> messagesToRemove = new LinkedList<>();
+        do { // Do until application terminated.
 
-        // Loop over incoming messages and process them.
-        Iterator<Map.Entry<String, Message>> messageIterator = incomingSearchMessages.entrySet().iterator();
-        while (messageIterator.hasNext()) {
+            try {
+                processIncomingSearchMessage(searchRequests.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) { // A bad request must not stop the worker.
+                System.err.println("SearchReceiver.performSearches() Error: " + e.getMessage());
+            }
 
-            // Get current message to process.
-            Map.Entry<String, Message> entry = messageIterator.next();
-            String messageIdentifier = entry.getKey();
-            Message message = entry.getValue();
+        } while (true);
 
-            // If search request, then process the search request.
-            if (message.getPayloadType().equalsIgnoreCase("search-request")) {
+    } // performSearches().
 
-                // Determine the type of search to do.
-                String searchType = message.getSearchType();
 
-                // Perform the search, returning a list of strings that are all results.
-                LinkedList<String> searchResults = new LinkedList<>();
-                if (searchType.equalsIgnoreCase("path")) {
+    /**
+     * Process an incoming search message.
+     *
+     * @param message Message handed over by the multicast thread.
+     */
+    public void processIncomingSearchMessage(Message message) {
 
-                    searchResults = pathSearch(message.getSearchString());
+        // If search request, then process the search request.
+        if (message.getPayloadType().equalsIgnoreCase("search-request")) {
 
-                } else if (searchType.equalsIgnoreCase("filename")) {
+            // Perform the search, sending results as they are found.
+            Message requesterBeacon = multicastHandler.beaconReceiver.getBeaconFrom(message.getIdentifier());
+            SearchResultStream searchResults = new SearchResultStream(multicastHandler, message,
+                    configuration.batchResults_ && requesterAcceptsBatches(requesterBeacon),
+                    configuration.searchStream_ && requesterAcceptsEnd(requesterBeacon));
 
-                    searchResults = filenameSearch(message.getSearchString());
+            search(message.getSearchType(), message.getSearchString(), message.getSearchOffset(),
+                    message.getSearchMaxResults(), searchResults::add);
+            searchResults.close(); // Sends search-error if there were no results.
 
-                } else if (searchType.equalsIgnoreCase("substring")) {
+        } else { // Otherwise, a search-result, search-results, search-end or search-error.
 
-                    searchResults = substringSearch(message.getSearchString());
+            // Check response-id and serial number match one of our outstanding requests.
+            Message initialRequest = multicastHandler.requestTable.match(message, this);
+            if (initialRequest != null) { // Match for one of our requests.
 
+                // Gather the result, completing the request now if no other peer has anything left to send.
+                if (searchAggregator.add(initialRequest, message, searchPeers(initialRequest, true))) {
+                    multicastHandler.requestTable.complete(message, this);
                 }
 
+            } // If not a result for one of our outstanding requests, then ignore.
 
-                if (searchResults.isEmpty()) { // There are no search results.
+        } // Anything else does not conform to the protocol so ignore.
 
-                    // If no results, then send a search-error message.
-                    Message searchError = Message.searchErrorMessage(message.getIdentifier(), message.getSerialNumber());
-                    multicastHandler.txMessage(searchError);
+    } // processIncomingSearchMessage().
 
-                } else {
 
-                    // For each result, create a search-result message and send over multicast.
-                    for (String currResult : searchResults) {
+    /**
+     * Send one of our search requests over the multicast group, and gather the responses to it. The request is sent
+     * even if every peer's catalog rules out a match, as a catalog may lag behind the peer's files; catalogs only
+     * decide which peers are not waited for.
+     *
+     * @param searchRequest Search request to send.
+     */
+    public void sendSearchRequest(Message searchRequest) {
 
-                        // Create and send a searchResult message.
-                        Message searchResult = Message.searchResultMessage(message.getIdentifier(), message.getSerialNumber(), currResult);
-                        multicastHandler.txMessage(searchResult);
+        lastSearchRequest = searchRequest;
 
-                    } // for (all search results).
+        multicastHandler.txMessage(searchRequest);
+        addSearchMessage(true, searchRequest);
 
-                } // if (there are search results), else.
+    } // sendSearchRequest().
 
-            } else { // Otherwise, a search-result or search-error.
 
-                String incomingMessageIdentifier = message.getResponseIDSerialNum();
+    /**
+     * Send a search request made by another part of the browser (e.g. a swarm download looking for copies of a file),
+     * handing its results over once it completes instead of showing them.
+     *
+     * @param searchRequest Search request to send.
+     * @param resultsHandler Given the results gathered when the request completes.
+     */
+    public void sendSearchRequest(Message searchRequest, Consumer<SearchAggregator.Results> resultsHandler) {
 
-                // Check response-id and serial number matches a message in the outgoing structure.
-                if (outgoingSearchRequests.containsKey(incomingMessageIdentifier)) { // Match for one of our requests.
+        resultHandlers.put(searchRequest.getSerialNumber(), resultsHandler);
 
-                    // Extract result and display to the user.
-                    Message initialRequest = outgoingSearchRequests.get(incomingMessageIdentifier);
-                    showSearchResponse(initialRequest, message);
+        multicastHandler.txMessage(searchRequest);
+        addSearchMessage(true, searchRequest);
 
-                } // If not a result for one of our requests, then ignore.
+    } // sendSearchRequest().
 
-            } // Anything else does not conform to the protocol so ignore.
 
-            messagesToRemove.add(messageIdentifier);
+    /**
+     * Send a search request for the page of results after that of our last search request.
+     *
+     * @return True if sent, false if there was no last search request, or it asked for every result at once.
+     */
+    public boolean sendNextSearchPage() {
 
-        } // for (all incoming messages).
+        Message last = lastSearchRequest;
+        if (last == null || last.getSearchMaxResults() <= 0) {
+            return false;
+        }
 
-        // Remove incoming messages once processed.
-        removeSearchMessages(incomingSearchMessages, messagesToRemove);
+        sendSearchRequest(Message.searchRequestMessage(last.getSearchType(), last.getSearchString(),
+                last.getSearchMaxResults(), last.getSearchOffset() + last.getSearchMaxResults()));
+        return true;
 
-    } // processIncomingSearchMessages().
+    } // sendNextSearchPage().
 
 
     /**
@@ -137,9 +222,7 @@ public class SearchReceiver implements Runnable {
      * @param outgoing Whether to add the message to the outgoing or incoming messages structure.
      * @param searchMessage Message to add to the search message structures.
      */
-    public synchronized void addSearchMessage(boolean outgoing, Message searchMessage) {
-
-        // Synchronised to prevent simultaneous adding and removing issues due to threading.
+    public void addSearchMessage(boolean outgoing, Message searchMessage) {
 
         // Create key for message structures.
         String messageIdentifier = searchMessage.getIdentifier() + ":" + searchMessage.getSerialNumber();
@@ -147,21 +230,18 @@ public class SearchReceiver implements Runnable {
         // Determine which structure to add message to.
         if (!outgoing) {
 
-            // Incoming search messages are messages from other peers to respond to.
-            if (incomingSearchMessages.get(messageIdentifier) == null) { // Add if new.
-                incomingSearchMessages.put(messageIdentifier, searchMessage);
-            } else { // Updates the message if it exists already.
-                incomingSearchMessages.replace(messageIdentifier, searchMessage);
+            // Incoming search messages are messages from other peers to respond to, handed to this receiver's thread.
+            if (!incomingSearchMessages.offer(searchMessage)) {
+                configuration.log_.writeLog("SearchReceiver Queue Full - Dropped: " + searchMessage.getPayloadType() + " From " + messageIdentifier); // Create log.
             }
 
         } else {
 
-            // Outgoing search messages are messages that have been sent out and are awaiting answers.
-            if (outgoingSearchRequests.get(messageIdentifier) == null) { // Add if new.
-                outgoingSearchRequests.put(messageIdentifier, searchMessage);
-            } else { // Updates the message if it exists already.
-                outgoingSearchRequests.replace(messageIdentifier, searchMessage);
-            }
+            // Outgoing search messages are awaiting answers, which are gathered until the search deadline.
+            List<String> ruledOut = searchPeers(searchMessage, false);
+            ruledOut.removeAll(searchPeers(searchMessage, true));
+            searchAggregator.start(searchMessage, ruledOut);
+            multicastHandler.requestTable.register(searchMessage, configuration.searchDeadline_, this);
 
         } // if (outgoing or not).
 
@@ -169,45 +249,296 @@ public class SearchReceiver implements Runnable {
 
 
     /**
-     * Remove processed messages from list of search messages to process.
+     * Check whether the peer that sent a search request has advertised that it accepts search-results messages.
+     * Peers we have not heard a beacon from are assumed not to, so they are sent one search-result per result.
+     *
+     * @param requesterBeacon Latest beacon from the requester, or null if none is active.
+     *
+     * @return True if the results may be batched.
+     */
+    private static boolean requesterAcceptsBatches(Message requesterBeacon) {
+        return requesterBeacon != null && requesterBeacon.isBatchResultsAvailable();
+    }
+
+    /**
+     * Check whether the peer that sent a search request has advertised that it accepts a search-end message.
+     *
+     * @param requesterBeacon Latest beacon from the requester, or null if none is active.
+     *
+     * @return True if search-end may be sent after the results.
+     */
+    private static boolean requesterAcceptsEnd(Message requesterBeacon) {
+        return requesterBeacon != null && requesterBeacon.isSearchStreamAvailable();
+    }
+
+
+    /**
+     * Find the remote file browsers expected to answer one of our search requests.
      *
-     * @param incomingMessages Structure of incoming messages to be processed.
-     * @param messagesToRemove List of messages that have been processed and should be removed from incomingMessages.
+     * @param searchRequest Our search request.
+     * @param possible Whether to leave out those whose catalog rules out a match for a filename or path search.
+     *
+     * @return Identifiers of the remote file browsers with active beacons offering search (and possibly matching), and
+     *         for a glob, regex or hash search, offering searches of that type.
+     */
+    private List<String> searchPeers(Message searchRequest, boolean possible) {
+
+        String name = null; // Name every result must have, if the search type gives one.
+        if (possible && configuration.catalog_) {
+
+            String searchString = searchRequest.getSearchString();
+            if (searchRequest.getSearchType().equalsIgnoreCase("filename")) {
+                name = searchString;
+            } else if (searchRequest.getSearchType().equalsIgnoreCase("path")) {
+                while (searchString.endsWith("/")) {
+                    searchString = searchString.substring(0, searchString.length() - 1);
+                }
+                name = searchString.isEmpty() ? null : searchString.substring(searchString.lastIndexOf('/') + 1);
+            }
+
+        } // if (catalogs to consult).
+
+        String searchType = FileIndex.fold(searchRequest.getSearchType());
+        boolean hash = searchType.equals("hash");
+        boolean pattern = NamePattern.isPatternType(searchType);
+
+        List<String> peers = new ArrayList<>();
+        for (Message beacon : multicastHandler.beaconReceiver.peerDirectory.snapshot().values()) {
+            if (beacon.isSearchAvailable() && (!hash || beacon.isHashSearchAvailable())
+                    && (!pattern || beacon.getSearchMatch().contains(searchType))
+                    && !peers.contains(beacon.getIdentifier())
+                    && (name == null || multicastHandler.beaconReceiver.mightHave(beacon.getIdentifier(), name))) {
+                peers.add(beacon.getIdentifier());
+            }
+        }
+        return peers;
+
+    } // searchPeers().
+
+
+    /**
+     * Called by the request table when one of our search requests completes, i.e. its deadline passes, or every peer
+     * has finished answering it. Shows the results gathered, as a single table.
+     *
+     * @param request The search request that has completed.
+     * @param responseCount Number of responses received for the request.
+     */
+    @Override
+    public void requestCompleted(Message request, int responseCount) {
+
+        SearchAggregator.Results results = searchAggregator.complete(request);
+        if (results == null) {
+            return;
+        }
+
+        configuration.log_.writeLog("Search Completed: " + request.getSerialNumber() + ", Results: " + results.size()
+                + ", Duplicates: " + results.getDuplicates() + ", Responses: " + responseCount); // Create log.
+
+        Consumer<SearchAggregator.Results> resultsHandler = resultHandlers.remove(request.getSerialNumber());
+        if (resultsHandler != null) {
+            resultsHandler.accept(results);
+        } else {
+            System.out.print(results.render(SHOWN_RESULTS));
+        }
+
+    } // requestCompleted().
+
+
+    /**
+     * Hands over one page of a search's results: skips the first offset results, then passes on up to maxResults.
+     * Searches check full() to stop looking once the page is complete. Results may be given from several threads.
      */
-    public synchronized void removeSearchMessages(HashMap<String, Message> incomingMessages, LinkedList<String> messagesToRemove) {
+    private static final class ResultWindow implements Consumer<String> {
+
+        private final long offset; // Results to skip.
+        private final long maxResults; // Most results to pass on, -1 for all.
+        private final Consumer<String> results; // Given the results in the page.
+        private long seen; // Results given so far, including those skipped.
+        private volatile boolean full; // Whether the page is complete.
+
+        ResultWindow(long offset, long maxResults, Consumer<String> results) {
+            this.offset = offset;
+            this.maxResults = maxResults;
+            this.results = results;
+            this.full = maxResults == 0;
+        }
+
+        @Override
+        public void accept(String result) {
+
+            synchronized (this) {
+
+                if (full || seen++ < offset) {
+                    return;
+                }
+                if (maxResults >= 0 && seen - offset >= maxResults) {
+                    full = true;
+                }
+
+            } // synchronized (this).
+
+            results.accept(result);
+
+        } // accept().
+
+        /**
+         * @return True once every result of the page has been passed on.
+         */
+        boolean full() {
+            return full;
+        }
+
+        /**
+         * @return Results the search must find for the page to be complete, or Integer.MAX_VALUE for all of them.
+         */
+        int wanted() {
+            return maxResults < 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, offset + maxResults);
+        }
+
+    } // ResultWindow{}.
 
-        incomingMessages.entrySet().removeIf(entry -> messagesToRemove.contains(entry.getKey()));
 
-    } // removeSearchMessages().
+    /**
+     * Perform a search of the type requested, handing over all of its results as they are found.
+     *
+     * @param searchType Type of search: path, filename, substring, glob, regex or hash.
+     * @param searchString Query string.
+     * @param results Given each file string path matching the search; must be thread-safe.
+     */
+    public void search(String searchType, String searchString, Consumer<String> results) {
+        search(searchType, searchString, 0, -1, results);
+    }
 
 
     /**
-     * Method for outputting results to stdout for search responses that match one of our search requests.
+     * Perform a search of the type requested, handing over one page of its results as they are found, and looking no
+     * further once the page is complete. Once the file index is ready, complete results are kept in the search cache,
+     * so a search repeated before the files it matches change is answered without being performed again; a page of a
+     * cached search is cut from the cached results. Until then, the directory tree is walked and matches are handed
+     * over as the walk finds them, possibly from several threads at once, so pages of a walk may overlap. The pattern
+     * of a glob or regex search is compiled once, and matching stops once its budget is spent.
      *
-     * @param initialRequest The initial request, showing the search type and query string.
-     * @param searchResponse The request response, showing the resulting file string (if any) and where.
+     * @param searchType Type of search: path, filename, substring, glob, regex or hash.
+     * @param searchString Query string.
+     * @param offset Results to skip, those of earlier pages.
+     * @param maxResults Most results to hand over, -1 for all of them.
+     * @param results Given each file string path matching the search in the page; must be thread-safe.
      */
-    public void showSearchResponse(Message initialRequest, Message searchResponse) {
+    public void search(String searchType, String searchString, long offset, long maxResults,
+                       Consumer<String> results) {
+
+        ResultWindow window = new ResultWindow(offset, maxResults, results);
+        if (window.full()) {
+            return; // No results wanted.
+        }
+
+        if (searchType.equalsIgnoreCase("hash")) { // Digests are added in the background, so are not cached.
+
+            for (String result : hashSearch(searchString)) {
+                if (window.full()) {
+                    break;
+                }
+                window.accept(result);
+            }
+            return;
+
+        } // if (hash search).
+
+        NamePattern pattern = null; // Compiled pattern of a glob or regex search.
+        if (NamePattern.isPatternType(searchType)) {
+            pattern = NamePattern.compile(searchType, searchString, configuration.patternBudget_);
+            if (pattern == null) {
+                return; // Malformed, so no results.
+            }
+        }
+
+        if (!multicastHandler.fileIndex.isReady()) { // Results of walking the tree are not kept current, so not cached.
+
+            if (searchType.equalsIgnoreCase("path")) {
+                pathSearch(searchString).forEach(window);
+            } else if (searchType.equalsIgnoreCase("filename")) {
+                walk(searchString, false, window, window::full);
+            } else if (searchType.equalsIgnoreCase("substring")) {
+                walk(searchString, true, window, window::full);
+            } else if (pattern != null) {
+                NamePattern walkPattern = pattern;
+                walk(walkPattern::matches, window, () -> window.full() || walkPattern.exhausted());
+                budgetSpent(searchType, searchString, walkPattern);
+            }
+            return;
+
+        } // if (index not ready).
+
+        List<String> searchResults = searchCache.get(searchType, searchString);
+        if (searchResults == null) {
+
+            long stamp = searchCache.stamp(); // Taken first, so results that a change overtakes are not cached.
 
-        System.out.println("----------------------------------------------");
+            // One more result than the page needs is looked for, so that finding fewer shows the results are complete.
+            int limit = window.wanted() == Integer.MAX_VALUE ? Integer.MAX_VALUE : window.wanted() + 1;
 
-        System.out.println("Search Request: Search Type: '" + initialRequest.getSearchType()
-                                        + "', Search String: '" + initialRequest.getSearchString() + "'.");
+            boolean complete = true; // Whether nothing was left unmatched, e.g. when a pattern ran out of time.
+            LinkedList<String> foundResults;
+            if (searchType.equalsIgnoreCase("path")) {
 
-        if (searchResponse.getPayloadType().equalsIgnoreCase("search-result")) {
+                foundResults = pathSearch(searchString);
 
-            System.out.println("Search Result: '" + searchResponse.getSearchFileString()
-                    + "' At " + searchResponse.getIdentifier());
+            } else if (searchType.equalsIgnoreCase("filename")) {
 
-        } else { // search-error.
+                foundResults = filenameSearch(searchString);
 
-            System.out.println("Search Result: No Result At " + searchResponse.getIdentifier());
+            } else if (searchType.equalsIgnoreCase("substring")) {
 
+                foundResults = substringSearch(searchString, limit);
+
+            } else if (pattern != null) {
+
+                foundResults = new LinkedList<>(multicastHandler.fileIndex.findByPattern(pattern, limit));
+                complete = !budgetSpent(searchType, searchString, pattern);
+
+            } else {
+
+                return; // Unknown search type, so no results.
+
+            }
+
+            // Only complete results are cached, as a later page would need the results left out.
+            searchResults = complete && foundResults.size() < limit
+                    ? searchCache.put(searchType, searchString, foundResults, stamp)
+                    : foundResults;
+
+        } // if (not cached).
+
+        for (String result : searchResults) {
+            if (window.full()) {
+                break;
+            }
+            window.accept(result);
         }
 
-        System.out.println("----------------------------------------------");
+    } // search().
 
-    } // showSearchResponse().
+
+    /**
+     * Log a glob or regex search whose pattern ran out of time, so its results may be missing.
+     *
+     * @param searchType Type of search: glob or regex.
+     * @param searchString Pattern searched for.
+     * @param pattern Compiled pattern of the search.
+     *
+     * @return True if the budget of the pattern was spent.
+     */
+    private boolean budgetSpent(String searchType, String searchString, NamePattern pattern) {
+
+        if (!pattern.exhausted()) {
+            return false;
+        }
+
+        configuration.log_.writeLog("Search Budget Spent: " + searchType + " '" + searchString + "' Stopped After "
+                + pattern.budgetMillis() + "ms"); // Create log.
+        return true;
+
+    } // budgetSpent().
 
 
     /**
@@ -221,6 +552,19 @@ public class SearchReceiver implements Runnable {
 
         LinkedList<String> results = new LinkedList<>();
 
+        FileIndex fileIndex = multicastHandler.fileIndex;
+        if (fileIndex.isReady()) { // Look the path up in the index.
+
+            FileIndex.Entry entry = fileIndex.findByPath(searchString);
+            if (entry != null) {
+                // Add "/" to indicate result is a directory, when this is the case.
+                results.add(entry.directory ? entry.path + "/" : entry.path);
+            }
+
+            return results;
+
+        } // if (index ready), otherwise look at the file system.
+
         // Search string should be relative to the root directory indicated by "/" at start. If not present, add it.
         String missingDirSeparator = "";
         if ('/' != searchString.charAt(0)) {
@@ -256,6 +600,7 @@ public class SearchReceiver implements Runnable {
 
     /**
      * Performs a search of the filename on all files in the root directory hierarchy, adding results as found.
+     * Answered from the file index once it is built.
      *
      * @param searchString Query string used in filename search.
      *
@@ -263,70 +608,132 @@ public class SearchReceiver implements Runnable {
      */
     public LinkedList<String> filenameSearch(String searchString) {
 
-        LinkedList<String> results = new LinkedList<>();
-
-        walk(configuration.rootDir_, results, searchString, false);
+        FileIndex fileIndex = multicastHandler.fileIndex;
+        if (fileIndex.isReady()) {
+            return new LinkedList<>(fileIndex.findByName(searchString));
+        }
 
-        return results; // If results found, return linked list of file string to result file, else return empty list.
+        // Index not built yet, so search the directory tree.
+        ConcurrentLinkedQueue<String> matches = new ConcurrentLinkedQueue<>(); // Filled by the walker's threads.
+        walk(searchString, false, matches::add, () -> false);
+        return new LinkedList<>(matches);
 
     } // pathSearch().
 
 
     /**
      * Performs a search of the substring on all files in the root directory hierarchy, adding results as found.
+     * Answered from the file index once it is built.
      *
      * @param searchString Query string used in filename search.
      *
      * @return LinkedList containing all file string paths for the result, otherwise, empty linked list.
      */
     public LinkedList<String> substringSearch(String searchString) {
+        return substringSearch(searchString, Integer.MAX_VALUE);
+    }
 
-        LinkedList<String> results = new LinkedList<>();
 
-        walk(configuration.rootDir_, results, searchString, true);
+    /**
+     * Performs a search of the substring on all files in the root directory hierarchy, stopping once enough results
+     * are found. Answered from the file index once it is built.
+     *
+     * @param searchString Query string used in filename search.
+     * @param limit Most results to find.
+     *
+     * @return LinkedList containing up to limit file string paths for the result, otherwise, empty linked list.
+     */
+    public LinkedList<String> substringSearch(String searchString, int limit) {
 
-        return results; // If results found, return linked list of file string to result file, else return empty list.
+        FileIndex fileIndex = multicastHandler.fileIndex;
+        if (fileIndex.isReady()) {
+            return new LinkedList<>(fileIndex.findBySubstring(searchString, limit));
+        }
+
+        // Index not built yet, so search the directory tree.
+        ConcurrentLinkedQueue<String> matches = new ConcurrentLinkedQueue<>(); // Filled by the walker's threads.
+        AtomicInteger found = new AtomicInteger();
+        walk(searchString, true, match -> {
+            if (found.getAndIncrement() < limit) {
+                matches.add(match);
+            }
+        }, () -> found.get() >= limit);
+        return new LinkedList<>(matches);
 
     } // pathSearch().
 
 
     /**
-     * Method used to recursively explore the full root directory hierarchy to perform search.
+     * Performs a search for files whose content has the given SHA-256 digest, answered from the digest store. Files
+     * not yet digested are not found.
+     *
+     * @param searchString Hexadecimal SHA-256 digest of the content.
+     *
+     * @return LinkedList containing all file string paths for the result, otherwise, empty linked list.
+     */
+    public LinkedList<String> hashSearch(String searchString) {
+
+        DigestStore digestStore = multicastHandler.digestStore;
+        if (digestStore == null) {
+            return new LinkedList<>(); // Hash searches not offered.
+        }
+
+        return new LinkedList<>(digestStore.find(searchString));
+
+    } // hashSearch().
+
+
+    /**
+     * Method used to explore the full root directory hierarchy to perform search, listing directories in parallel.
+     * Used until the file index is ready. Matches are handed over as they are found, from the walker's threads.
      *
-     * @param path Initially the root directory path, otherwise, the current directory path in the recursive search.
-     * @param results LinkedList of file paths that match the search.
      * @param searchString Query string when performing search.
      * @param isSubstring Whether a substring match or exact filename match is required.
+     * @param matches Given the file path (from the root directory) of each match; must be thread-safe.
+     * @param done Checked as the walk goes; once true, the walk stops early (e.g. enough matches have been found).
      */
-    public void walk(String path, LinkedList<String> results, String searchString, boolean isSubstring) {
+    public void walk(String searchString, boolean isSubstring, Consumer<String> matches, BooleanSupplier done) {
 
-        File root = new File(path);
-        File[] fileList = root.listFiles();
+        String foldedSearchString = FileIndex.fold(searchString);
+        walk(name -> isSubstring ? name.contains(foldedSearchString) : name.equals(foldedSearchString), matches, done);
 
-        if (fileList == null) return;
+    } // walk().
 
-        for (File currFile : fileList) {
 
-            if (currFile.isDirectory()) {
-                walk(currFile.getAbsolutePath(), results, searchString, isSubstring);
-            }
+    /**
+     * Method used to explore the full root directory hierarchy to perform search, listing directories in parallel.
+     * Used until the file index is ready. Matches are handed over as they are found, from the walker's threads.
+     *
+     * @param names Given the folded name of each file and directory, true if it is a match; must be thread-safe.
+     * @param matches Given the file path (from the root directory) of each match; must be thread-safe.
+     * @param done Checked as the walk goes; once true, the walk stops early (e.g. enough matches have been found).
+     */
+    public void walk(Predicate<String> names, Consumer<String> matches, BooleanSupplier done) {
+
+        DirectoryWalker directoryWalker = new DirectoryWalker(Paths.get(configuration.rootDir_), walkPool);
+        directoryWalker.walk(Paths.get(configuration.rootDir_), new DirectoryWalker.Visitor() {
+
+            @Override
+            public void visit(Path file, boolean directory) {
 
-            if (isSubstring) {
-                if (currFile.getName().contains(searchString)) {
-                    String rootDirName = FileTreeBrowser.getRootDirName();
-                    String rootRelativePath = currFile.getAbsolutePath().split(rootDirName)[1];
-                    results.add(rootRelativePath);
+                Path fileName = file.getFileName();
+                String rootRelativePath = directoryWalker.relativePath(file);
+                if (fileName == null || rootRelativePath == null) {
+                    return; // The root directory itself is not a result.
                 }
-            } else {
-                if (currFile.getName().equals(searchString)) {
-                    String rootDirName = FileTreeBrowser.getRootDirName();
-                    String rootRelativePath = currFile.getAbsolutePath().split(rootDirName)[1];
-                    results.add(rootRelativePath);
+
+                if (names.test(FileIndex.fold(fileName.toString()))) {
+                    matches.accept(rootRelativePath);
                 }
-            }
 
+            } // visit().
+
+            @Override
+            public boolean stopped() {
+                return done.getAsBoolean();
+            }
 
-        } // for (all files in current directory).
+        });
 
     } // walk().
 
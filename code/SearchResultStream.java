@@ -0,0 +1,160 @@
+import java.util.LinkedList;
+
+/**
+ * SearchResultStream sends the results of one search request as they are found, rather than once the search is done.
+ *
+ * To a requester that accepts search-results messages, results are packed as many to a message as fit within
+ * maximumDiscoveryMessageSize_; a message is sent as soon as it is full, or FLUSH_MILLIS after its first result, so a
+ * slow walk of the directory tree still delivers its first results within milliseconds. Other requesters are sent a
+ * search-result message per result, straight away. When the search is done, close() sends what is left and, to a
+ * requester that advertises searchStream, a search-end message giving the total, so it knows this peer has finished;
+ * a search without results is answered with search-error, as before.
+ *
+ * Results may be added from several threads at once (e.g. those of a DirectoryWalker).
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class SearchResultStream {
+
+
+    static final int FLUSH_MILLIS = 20; // Longest a result waits for others to share its message.
+
+    // Flushes part-filled messages when they are due; shared by all streams, and idle while none are part-filled.
+    private static final TimingWheel<SearchResultStream> flushWheel
+            = new TimingWheel<>("SearchResultStream", 5, 64, SearchResultStream::flush);
+
+    private final MulticastHandler multicastHandler; // Used to send the results.
+    private final int maximumMessageSize; // Largest search-results message to send.
+    private final String requesterIdentifier; // Identifier of the peer that sent the search request.
+    private final long requestSerialNumber; // Serial number of the search request.
+    private final boolean batch; // Whether results are packed into search-results messages.
+    private final boolean end; // Whether search-end is sent after the last result.
+    private final int overhead; // Size of a search-results message without any paths.
+
+    private LinkedList<String> pending; // Results waiting to be sent in the next search-results message.
+    private int pendingSize; // Size of the next search-results message so far.
+    private TimingWheel.Timeout<SearchResultStream> flushTimeout; // When the pending results must be sent by.
+    private long count; // Results added so far.
+    private boolean closed; // Whether close() has been called.
+
+
+    /**
+     * Constructor: Creates a stream of results for one search request.
+     *
+     * @param multicastHandler Instance of MulticastHandler, used for sending messages.
+     * @param searchRequest Search request being answered.
+     * @param batch Whether the requester accepts search-results messages.
+     * @param end Whether the requester accepts a search-end message.
+     */
+    SearchResultStream(MulticastHandler multicastHandler, Message searchRequest, boolean batch, boolean end) {
+
+        this.multicastHandler = multicastHandler;
+        this.maximumMessageSize = multicastHandler.configuration.maximumDiscoveryMessageSize_;
+        this.requesterIdentifier = searchRequest.getIdentifier();
+        this.requestSerialNumber = searchRequest.getSerialNumber();
+        this.batch = batch;
+        this.end = end;
+
+        // Size of a search-results message without any paths; the count is given room for its largest value, and a
+        // couple of bytes are spare in case the serial number gains a digit between messages.
+        Message emptyResults = Message.searchResultsMessage(requesterIdentifier, requestSerialNumber, new LinkedList<>());
+        this.overhead = MessageEncoder.forCurrentThread().encodedLength(emptyResults)
+                + String.valueOf(maximumMessageSize).length() + 2;
+
+        this.pending = new LinkedList<>();
+        this.pendingSize = overhead;
+
+    } // SearchResultStream().
+
+
+    /**
+     * Send a result, or add it to the next search-results message.
+     *
+     * @param result Path (from the root directory) matching the search.
+     */
+    public synchronized void add(String result) {
+
+        if (closed) {
+            return;
+        }
+
+        count++;
+
+        if (!batch) {
+            multicastHandler.txMessage(Message.searchResultMessage(requesterIdentifier, requestSerialNumber, result));
+            return;
+        }
+
+        int resultSize = result.length() + 1; // Path and its ':' delimiter (paths are written as ASCII).
+
+        // Send the message when the next path will not fit; a path too long for any message is sent on its own.
+        if (!pending.isEmpty() && pendingSize + resultSize > maximumMessageSize) {
+            send();
+        }
+
+        pending.add(result);
+        pendingSize += resultSize;
+
+        if (flushTimeout == null) { // First result of the message, so it is sent within FLUSH_MILLIS.
+            flushTimeout = flushWheel.schedule(this, FLUSH_MILLIS);
+        }
+
+    } // add().
+
+
+    /**
+     * Called by the flush wheel when pending results are due: send them, however few.
+     */
+    private synchronized void flush() {
+
+        if (!pending.isEmpty()) {
+            send();
+        }
+
+    } // flush().
+
+
+    /**
+     * Send the pending results in a search-results message.
+     */
+    private void send() {
+
+        multicastHandler.txMessage(Message.searchResultsMessage(requesterIdentifier, requestSerialNumber, pending));
+
+        pending = new LinkedList<>();
+        pendingSize = overhead;
+
+        flushWheel.cancel(flushTimeout);
+        flushTimeout = null;
+
+    } // send().
+
+
+    /**
+     * The search is done: send any pending results, then search-end (or search-error if there were no results).
+     *
+     * @return Number of results sent.
+     */
+    public synchronized long close() {
+
+        if (closed) {
+            return count;
+        }
+        closed = true;
+
+        if (!pending.isEmpty()) {
+            send();
+        }
+
+        if (count == 0) {
+            multicastHandler.txMessage(Message.searchErrorMessage(requesterIdentifier, requestSerialNumber));
+        } else if (end) {
+            multicastHandler.txMessage(Message.searchEndMessage(requesterIdentifier, requestSerialNumber, count));
+        }
+
+        return count;
+
+    } // close().
+
+
+} // SearchResultStream{}.
@@ -0,0 +1,681 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/**
+ * SwarmDownload fetches one large file from every peer found to hold an identical copy of it, so popular files
+ * download many times faster and no one peer serves the whole file.
+ *
+ * The peer first asked for the file gives the SHA-256 digest of its copy in its download result. A hash search for the
+ * digest finds the other peers with that content, under any path; each is used once its own download results give the
+ * same size and digest, and is dropped as soon as one does not. The file is split into chunks of swarmChunkSize_
+ * bytes. Every peer keeps up to downloadStreams_ chunks in flight, each asked for with a download request (offset and
+ * length) and written into the file at its position, and takes the next chunk as each one finishes, so faster peers
+ * are given more chunks. Once no chunks are left to hand out, a peer with a free stream asks for the chunk that has
+ * been in flight longest elsewhere as well; whichever copy arrives first is kept and the other connection is closed,
+ * so a straggling peer does not hold up the end of the download. Only one copy of a chunk is ever written into the
+ * file's range for it: a second copy is received into a scratch file, and copied in only if it arrives whole, once the
+ * first has stopped writing. Peers are trusted only as far as their download results, and chunks from peers that do
+ * not check transfers are not checked at all, so once every chunk is in, the SHA-256 of the assembled file is computed
+ * and it replaces the destination only if that matches the digest.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class SwarmDownload {
+
+
+    DownloadReceiver downloadReceiver; // Receiver the chunk requests are made and answered through.
+    Configuration configuration; // Configuration of the receiver.
+
+    Message initialRequest; // The download request for the whole file.
+    String filePathToSaveTo; // Local file being downloaded to.
+    Path partFile; // File the parts are written to, moved over filePathToSaveTo once all are in.
+    long fileSize; // Size of the file.
+    String digest; // SHA-256 of the file, which every peer's copy must have.
+
+    private final List<Chunk> chunks = new ArrayList<>(); // Every chunk of the file, in order.
+    private final Deque<Chunk> pending = new ArrayDeque<>(); // Chunks not yet asked for, or to be asked for again.
+    private final List<Fetch> inFlight = new ArrayList<>(); // Chunks asked for and not yet received or failed.
+    private final Map<String, Source> sources = new LinkedHashMap<>(); // Peers used, by identifier.
+    private int chunksLeft; // Chunks not yet received.
+    private boolean searching; // Whether the search for more peers is still to complete.
+    private boolean finished; // Whether the download has succeeded or been given up on.
+
+
+    /**
+     * A byte range of the file, downloaded as one piece.
+     */
+    private static final class Chunk {
+
+        final long start; // First byte of the chunk.
+        final long length; // Bytes in the chunk.
+        boolean received; // Whether the chunk has been received from some peer.
+        Fetch writer; // Fetch writing the chunk's range of the part file, null if none.
+        Fetch replacement; // Second copy received whole while the writer was still writing, copied in once it stops.
+
+        Chunk(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+
+    } // Chunk{}.
+
+
+    /**
+     * A peer holding a copy of the file.
+     */
+    private static final class Source {
+
+        final String peer; // Identifier of the peer.
+        final String path; // Path to its copy of the file.
+        int inFlight; // Chunks asked of it and not yet received or failed.
+        int received; // Chunks received from it.
+        int failures; // Chunks asked of it that failed.
+        boolean dropped; // Whether it is no longer used.
+
+        Source(String peer, String path) {
+            this.peer = peer;
+            this.path = path;
+        }
+
+    } // Source{}.
+
+
+    /**
+     * A chunk asked of a peer, told of the answer to the request for it.
+     */
+    private final class Fetch implements DownloadReceiver.Part {
+
+        final Source source; // Peer asked.
+        final Chunk chunk; // Chunk asked for.
+        final long started = System.nanoTime(); // When it was asked for.
+        TCPClient tcpClient; // Connection the chunk is received over, once the peer has answered.
+        Path scratch; // File a second copy of the chunk is received into, null if received into the part file.
+
+        Fetch(Source source, Chunk chunk) {
+            this.source = source;
+            this.chunk = chunk;
+        }
+
+
+        /**
+         * Called by the receiver with the answer to the request for the chunk: if the peer's copy is still the file
+         * being downloaded, receive the chunk in a thread of its own.
+         *
+         * @param response The download result or error, or null if the request timed out.
+         */
+        @Override
+        public void answered(Message response) {
+
+            if (response == null || !response.getPayloadType().equalsIgnoreCase("download-result")) {
+                failed(this, false);
+            } else if (response.getTransferFileSize() != fileSize
+                    || !digest.equalsIgnoreCase(response.getTransferContentDigest())) {
+                abandon(response);
+                failed(this, true); // Not, or no longer, an identical copy.
+            } else {
+                Thread thread = new Thread(() -> transfer(this, response));
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+        } // answered().
+
+    } // Fetch{}.
+
+
+    /**
+     * Constructor: Creates a swarm download of a file; start() begins it.
+     *
+     * @param downloadReceiver Receiver the chunk requests are made and answered through.
+     * @param initialRequest The download request for the whole file, to the first peer.
+     * @param filePathToSaveTo Local file to download to.
+     * @param fileSize Size of the file, given by the first peer.
+     * @param digest SHA-256 of the file, given by the first peer.
+     */
+    SwarmDownload(DownloadReceiver downloadReceiver, Message initialRequest, String filePathToSaveTo, long fileSize,
+                  String digest) {
+
+        this.downloadReceiver = downloadReceiver;
+        this.configuration = downloadReceiver.configuration;
+
+        this.initialRequest = initialRequest;
+        this.filePathToSaveTo = filePathToSaveTo;
+        this.partFile = FileTransfer.partPath(configuration, Paths.get(filePathToSaveTo), FileTransfer.DOWNLOADS);
+        this.fileSize = fileSize;
+        this.digest = digest;
+
+        long chunkSize = Math.max(1, configuration.swarmChunkSize_);
+        for (long start = 0; start < fileSize; start += chunkSize) {
+            Chunk chunk = new Chunk(start, Math.min(chunkSize, fileSize - start));
+            chunks.add(chunk);
+            pending.add(chunk);
+        }
+        this.chunksLeft = chunks.size();
+
+    } // SwarmDownload().
+
+
+    /**
+     * Size the local file, start downloading from the first peer, and search for other peers with the same content.
+     *
+     * @return True if the download has begun, false if the local file could not be sized.
+     */
+    public boolean start() {
+
+        try {
+            FileTransfer.preallocate(partFile, fileSize);
+        } catch (IOException e) {
+            System.err.println("SwarmDownload.start() IO Exception: " + e.getMessage());
+            return false;
+        }
+
+        synchronized (this) {
+            searching = true;
+            addSource(initialRequest.getTargetPeerIdentifier(), initialRequest.getTargetFilePath());
+        }
+
+        Message hashSearch = Message.searchRequestMessage("hash", digest);
+        downloadReceiver.multicastHandler.searchReceiver.sendSearchRequest(hashSearch, this::peersFound);
+
+        return true;
+
+    } // start().
+
+
+    /**
+     * Called with the results of the hash search: use every other peer with a copy of the file.
+     *
+     * @param results Paths of the files with the same digest, by peer identifier.
+     */
+    private synchronized void peersFound(SearchAggregator.Results results) {
+
+        searching = false;
+
+        for (Map.Entry<String, List<String>> peerPaths : results.getPaths().entrySet()) {
+            if (!peerPaths.getKey().equals(Message.localIdentifier()) && !peerPaths.getValue().isEmpty()) {
+                addSource(peerPaths.getKey(), peerPaths.getValue().get(0));
+            }
+        }
+
+        configuration.log_.writeLog("Swarm Download: " + initialRequest.getTargetFilePath() + ", Peers: "
+                + sources.keySet()); // Create log.
+
+        checkSources();
+
+    } // peersFound().
+
+
+    /**
+     * Start using a peer, unless it is already used, and give it as many chunks as it has streams for.
+     *
+     * @param peer Identifier of the peer.
+     * @param path Path to its copy of the file.
+     */
+    private void addSource(String peer, String path) {
+
+        if (!sources.containsKey(peer)) {
+            Source source = new Source(peer, path);
+            sources.put(peer, source);
+            fill(source);
+        }
+
+    } // addSource().
+
+
+    /**
+     * Ask a peer for chunks while it has streams free and there are chunks to ask for.
+     *
+     * @param source The peer.
+     */
+    private void fill(Source source) {
+
+        while (!finished && !source.dropped && source.inFlight < configuration.downloadStreams_) {
+
+            Chunk chunk = next(source);
+            if (chunk == null) {
+                return;
+            }
+
+            Fetch fetch = new Fetch(source, chunk);
+            inFlight.add(fetch);
+            source.inFlight++;
+
+            Message chunkRequest = Message.downloadRequestMessage(source.peer, source.path, chunk.start, chunk.length);
+            downloadReceiver.parts.put(chunkRequest.getSerialNumber(), fetch);
+
+            downloadReceiver.multicastHandler.txMessage(chunkRequest);
+            downloadReceiver.addMessage(true, chunkRequest);
+
+        } // while (streams free).
+
+    } // fill().
+
+
+    /**
+     * Choose the next chunk to ask a peer for: the next not asked for, or else the one in flight longest elsewhere and
+     * not yet asked of a second peer.
+     *
+     * @param source The peer to ask.
+     *
+     * @return The chunk, or null if there is none it could help with.
+     */
+    private Chunk next(Source source) {
+
+        Chunk chunk;
+        while ((chunk = pending.poll()) != null) {
+            if (!chunk.received) {
+                return chunk;
+            }
+        }
+
+        Fetch straggler = null;
+        for (Fetch fetch : inFlight) {
+            if (fetch.source != source && (straggler == null || fetch.started < straggler.started)
+                    && fetchers(fetch.chunk) == 1) {
+                straggler = fetch;
+            }
+        }
+        return straggler == null ? null : straggler.chunk;
+
+    } // next().
+
+
+    /**
+     * @param chunk A chunk.
+     *
+     * @return Number of peers the chunk is being asked of.
+     */
+    private int fetchers(Chunk chunk) {
+
+        int fetchers = 0;
+        for (Fetch fetch : inFlight) {
+            if (fetch.chunk == chunk) {
+                fetchers++;
+            }
+        }
+        return fetchers;
+
+    } // fetchers().
+
+
+    /**
+     * Receive a chunk from the TCP server set up for it, writing it into the file at its position.
+     *
+     * @param fetch The chunk asked for.
+     * @param response The download result naming the server.
+     */
+    private void transfer(Fetch fetch, Message response) {
+
+        TCPClient tcpClient = new TCPClient(configuration, response.getHostname(), response.getFileTransferPort());
+        boolean wanted;
+        boolean writer;
+        synchronized (this) {
+            wanted = !finished && !fetch.chunk.received && fetch.chunk.replacement == null;
+            writer = wanted && fetch.chunk.writer == null;
+            if (writer) {
+                fetch.chunk.writer = fetch;
+            }
+            fetch.tcpClient = tcpClient;
+        }
+
+        if (!wanted) { // Received from another peer meanwhile.
+            tcpClient.closeClient();
+            failed(fetch, false);
+            return;
+        }
+
+        // A second copy goes to a scratch file, so the chunk's range is never written by two connections at once.
+        Path file = partFile;
+        long start = fetch.chunk.start;
+        if (!writer) {
+            try {
+                fetch.scratch = Files.createTempFile(partFile.toAbsolutePath().getParent(), partFile.getFileName() + ".", ".chunk");
+            } catch (IOException e) {
+                System.err.println("SwarmDownload.transfer() IO Exception: " + e.getMessage());
+                tcpClient.closeClient();
+                failed(fetch, false);
+                return;
+            }
+            file = fetch.scratch;
+            start = 0;
+        }
+
+        boolean checked = FileTransfer.CHECK_CRC32C.equalsIgnoreCase(response.getTransferCheck());
+        long received = tcpClient.processFile(file.toString(), true, start, fetch.chunk.length, checked);
+
+        transferred(fetch, received == fetch.chunk.length);
+
+    } // transfer().
+
+
+    /**
+     * A chunk's transfer has ended. A copy received into the part file is kept if it arrived whole. A whole copy in a
+     * scratch file is kept if the chunk is still wanted: it is copied in straight away if nothing is writing the
+     * chunk's range, or else the writer is closed and it is copied in once the writer has stopped.
+     *
+     * @param fetch The chunk asked for.
+     * @param whole Whether every byte of the chunk was received (and verified, if the transfer is checked).
+     */
+    private void transferred(Fetch fetch, boolean whole) {
+
+        Fetch install = null; // Second copy to copy into the part file, now nothing else writes the chunk's range.
+
+        synchronized (this) {
+
+            Chunk chunk = fetch.chunk;
+
+            if (fetch.scratch == null) { // The writer.
+
+                chunk.writer = null;
+                if (whole) {
+                    received(fetch);
+                } else if (chunk.replacement != null && !chunk.received && !finished) {
+                    install = chunk.replacement; // Closed as a second copy arrived first, so that is copied in.
+                    chunk.replacement = null;
+                    chunk.writer = install;
+                    settle(fetch);
+                    fill(fetch.source);
+                } else {
+                    failed(fetch, false);
+                }
+
+                if ((chunk.received || finished) && chunk.replacement != null) {
+                    discard(chunk.replacement);
+                    chunk.replacement = null;
+                }
+
+            } else if (!whole || chunk.received || finished) {
+
+                discard(fetch);
+                if (whole) {
+                    received(fetch);
+                } else {
+                    failed(fetch, false);
+                }
+
+            } else if (chunk.writer != null) {
+
+                // Arrived first, but the first copy may still be writing; stop it and copy this in once it has.
+                chunk.replacement = fetch;
+                settle(fetch);
+                chunk.writer.tcpClient.closeClient();
+                fill(fetch.source);
+
+            } else {
+
+                install = fetch; // The first copy failed already, so nothing writes the range.
+                chunk.writer = fetch;
+
+            }
+
+        } // synchronized (this).
+
+        if (install != null) {
+
+            boolean copied = copyIn(install);
+            synchronized (this) {
+                install.chunk.writer = null;
+            }
+            discard(install);
+
+            if (copied) {
+                received(install);
+            } else {
+                failed(install, false);
+            }
+
+        } // if (second copy to copy in).
+
+    } // transferred().
+
+
+    /**
+     * Copy a chunk received into a scratch file into its range of the part file.
+     *
+     * @param fetch The chunk asked for.
+     *
+     * @return True if copied.
+     */
+    private boolean copyIn(Fetch fetch) {
+
+        try (FileChannel in = FileChannel.open(fetch.scratch, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(partFile, StandardOpenOption.WRITE)) {
+
+            out.position(fetch.chunk.start);
+            long position = 0;
+            while (position < fetch.chunk.length) {
+                long copied = in.transferTo(position, fetch.chunk.length - position, out);
+                if (copied <= 0) {
+                    return false;
+                }
+                position += copied;
+            }
+            return true;
+
+        } catch (IOException e) {
+            System.err.println("SwarmDownload.copyIn() IO Exception: " + e.getMessage());
+            return false;
+        }
+
+    } // copyIn().
+
+
+    /**
+     * Delete the scratch file a second copy of a chunk was received into.
+     *
+     * @param fetch The chunk asked for.
+     */
+    private static void discard(Fetch fetch) {
+
+        try {
+            Files.deleteIfExists(fetch.scratch);
+        } catch (IOException e) {
+            System.err.println("SwarmDownload.discard() IO Exception: " + e.getMessage());
+        }
+
+    } // discard().
+
+
+    /**
+     * A chunk asked for is no longer in flight, so its peer has a stream free. Does nothing if already settled.
+     *
+     * @param fetch The chunk asked for.
+     */
+    private void settle(Fetch fetch) {
+
+        if (inFlight.remove(fetch)) {
+            fetch.source.inFlight--;
+        }
+
+    } // settle().
+
+
+    /**
+     * A chunk has been received: close any other connection it is being received over, and give the peer another.
+     *
+     * @param fetch The chunk asked for.
+     */
+    private synchronized void received(Fetch fetch) {
+
+        settle(fetch);
+        if (finished) {
+            return;
+        }
+
+        if (!fetch.chunk.received) {
+
+            fetch.chunk.received = true;
+            fetch.source.received++;
+            chunksLeft--;
+
+            for (Fetch other : inFlight) {
+                if (other.chunk == fetch.chunk && other.tcpClient != null) {
+                    other.tcpClient.closeClient();
+                }
+            }
+
+        } // if (first copy of the chunk).
+
+        if (chunksLeft == 0) {
+            finish();
+        } else {
+            fill(fetch.source);
+        }
+
+    } // received().
+
+
+    /**
+     * A chunk could not be received from a peer: hand it out again, and drop the peer if it fails too often or its copy
+     * is not the file being downloaded.
+     *
+     * @param fetch The chunk asked for.
+     * @param differs Whether the peer's copy is not, or is no longer, identical.
+     */
+    private synchronized void failed(Fetch fetch, boolean differs) {
+
+        settle(fetch);
+
+        if (!fetch.chunk.received) { // Not closed because another peer sent the chunk first.
+
+            // Asked for again unless still being received, or a copy of it is being copied in.
+            if (!pending.contains(fetch.chunk) && fetchers(fetch.chunk) == 0 && fetch.chunk.writer == null
+                    && fetch.chunk.replacement == null) {
+                pending.addFirst(fetch.chunk);
+            }
+            fetch.source.failures++;
+
+        } // if (chunk still needed).
+
+        if (!fetch.source.dropped && (differs || fetch.source.failures > configuration.transferRetries_)) {
+            fetch.source.dropped = true;
+            configuration.log_.writeLog("Swarm Download: Dropped " + fetch.source.peer
+                    + (differs ? ", Copy Differs" : ", Failed " + fetch.source.failures + " Times")); // Create log.
+        }
+
+        for (Source source : sources.values()) {
+            fill(source); // Another peer may take the chunk.
+        }
+        checkSources();
+
+    } // failed().
+
+
+    /**
+     * Give up on the download if chunks remain and no peer is left to ask for them.
+     */
+    private void checkSources() {
+
+        if (finished || searching) {
+            return;
+        }
+
+        for (Source source : sources.values()) {
+            if (!source.dropped) {
+                return;
+            }
+        }
+
+        finished = true;
+
+        System.out.println("----------------------------------------------");
+        System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
+                + ", File To Download: " + initialRequest.getTargetFilePath());
+        System.out.println("Download Result: Could not download the file, no peer with a copy could send "
+                + chunksLeft + " of " + chunks.size() + " chunks.");
+        System.out.println("----------------------------------------------");
+
+    } // checkSources().
+
+
+    /**
+     * Once every chunk is in, close any connections still open, and check the file on its own thread, so reading it
+     * does not hold up the receiver while the download is locked.
+     */
+    private void finish() {
+
+        finished = true;
+
+        for (Fetch fetch : inFlight) {
+            if (fetch.tcpClient != null) {
+                fetch.tcpClient.closeClient();
+            }
+        }
+
+        StringBuilder peers = new StringBuilder();
+        for (Source source : sources.values()) {
+            if (source.received > 0) {
+                peers.append(peers.length() == 0 ? "" : ", ").append(source.peer).append(" (").append(source.received)
+                        .append(source.received == 1 ? " chunk)" : " chunks)");
+            }
+        }
+
+        Thread thread = new Thread(() -> verify(peers.toString()));
+        thread.setDaemon(true);
+        thread.start();
+
+    } // finish().
+
+
+    /**
+     * Replace the destination with the assembled file if its SHA-256 is the digest, and output the result. A file that
+     * does not match is deleted, as some peer sent bytes that are not the file.
+     *
+     * @param peers The peers chunks were received from, and how many from each.
+     */
+    private void verify(String peers) {
+
+        try {
+
+            String received = DigestStore.sha256(partFile);
+            if (!received.equalsIgnoreCase(digest)) {
+                Files.deleteIfExists(partFile);
+                System.out.println("----------------------------------------------");
+                System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
+                        + ", File To Download: " + initialRequest.getTargetFilePath());
+                System.out.println("Download Result: Could not download the file, the chunks received from " + peers
+                        + " do not make up the file (SHA-256 " + received + ", not " + digest + ").");
+                System.out.println("----------------------------------------------");
+                return;
+            }
+
+            FileTransfer.commit(partFile, Paths.get(filePathToSaveTo));
+
+        } catch (IOException e) {
+            System.out.println("----------------------------------------------");
+            System.out.println("Download Result: Could not save " + initialRequest.getTargetFilePath() + ": " + e.getMessage());
+            System.out.println("----------------------------------------------");
+            return;
+        }
+
+        System.out.println("----------------------------------------------");
+        System.out.println("Download Request: Download From: " + initialRequest.getTargetPeerIdentifier()
+                + ", File To Download: " + initialRequest.getTargetFilePath());
+        System.out.println("Download Result: Successfully downloaded " + initialRequest.getTargetFilePath()
+                + " From " + peers);
+
+        String rootDirName = FileTreeBrowser.getRootDirName();
+        String fileToSaveToRootPath = filePathToSaveTo.split(rootDirName)[1];
+        System.out.println("File Saved To: " + fileToSaveToRootPath + ".");
+        System.out.println("----------------------------------------------");
+
+    } // verify().
+
+
+    /**
+     * Connect to a TCP server set up for us and close the connection straight away, so the server stops waiting.
+     *
+     * @param response The download result naming the server.
+     */
+    private void abandon(Message response) {
+        new TCPClient(configuration, response.getHostname(), response.getFileTransferPort()).closeClient();
+    }
+
+
+} // SwarmDownload{}.
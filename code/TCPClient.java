@@ -1,8 +1,12 @@
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 /**
  * TCPClient is a class that works with FileTreeBrowser to send remote browsing commands to a given server, so that the
@@ -39,7 +43,8 @@ public class TCPClient {
 
             InetAddress address = InetAddress.getByName(hostname);
 
-            this.socket = new Socket(address, port); // Connect to server.
+            // Connect to server, through a channel so files can be transferred with it (see FileTransfer).
+            this.socket = SocketChannel.open(new InetSocketAddress(address, port)).socket();
             this.inFromServer = new DataInputStream(socket.getInputStream());
             this.outToServer = new DataOutputStream(socket.getOutputStream());
 
@@ -112,62 +117,74 @@ public class TCPClient {
      *
      * @return True if successful, false otherwise.
      */
-    public void processFile(String fileToSaveTo, boolean download) {
+    public boolean processFile(String fileToSaveTo, boolean download) {
+        return processFile(fileToSaveTo, download, 0, -1) >= 0;
+    }
+
+
+    /**
+     * Given a valid file path, transfer part of the file over the TCP connection, e.g. to resume a transfer: when
+     * downloading, the contents read are written from the start; when uploading, the file is sent from the start.
+     *
+     * @param fileToSaveTo File path of the file to download to or upload from.
+     * @param download Which of downloading or uploading is taking place.
+     * @param start Byte of the file the transfer starts from; bytes before it are kept when downloading.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     *
+     * @return Bytes transferred if the transfer ran to the end of the connection, -1 if it failed part way.
+     */
+    public long processFile(String fileToSaveTo, boolean download, long start, long length) {
+        return processFile(fileToSaveTo, download, start, length, false);
+    }
+
+
+    /**
+     * Given a valid file path, transfer part of the file over the TCP connection, checked by a CRC-32C trailer if the
+     * peer has agreed to it (see FileTransfer).
+     *
+     * @param fileToSaveTo File path of the file to download to or upload from.
+     * @param download Which of downloading or uploading is taking place.
+     * @param start Byte of the file the transfer starts from; bytes before it are kept when downloading.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     * @param checked Whether the transfer is followed by its CRC-32C, verified by the receiver.
+     *
+     * @return Bytes transferred if the transfer ran to the end of the connection (and was verified, if checked), -1 if
+     *         it failed part way.
+     */
+    public long processFile(String fileToSaveTo, boolean download, long start, long length, boolean checked) {
+
+        if (socket == null) {
+            return -1; // Could not connect.
+        }
+
+        long transferred = -1;
 
         try {
 
             if (download) { // When downloading, read the requested file from the server.
 
                 // Read file from TCP connection.
-                OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(fileToSaveTo));
-                int bytesSent = copyToOut(socket.getInputStream(), fileOut);
-                configuration.log_.writeLog("TCP Client Wrote " + bytesSent + " bytes to file."); // Write log.
+                transferred = FileTransfer.receive(socket, Paths.get(fileToSaveTo), start, length, checked);
+                configuration.log_.writeLog("TCP Client Wrote " + transferred + " bytes to file."); // Write log.
 
             } else { // When uploading, read the file from the client.
 
                 // Send file over TCP connection.
-                InputStream fileIn = new BufferedInputStream(new FileInputStream(fileToSaveTo));
-                int bytesSent = copyToOut(fileIn, socket.getOutputStream());
-                configuration.log_.writeLog("TCP Client Sent (" + hostname + ":" + port + "): " + bytesSent + " bytes to server."); // Write log.
+                transferred = FileTransfer.send(Paths.get(fileToSaveTo), socket, start, length, checked);
+                configuration.log_.writeLog("TCP Client Sent (" + hostname + ":" + port + "): " + transferred + " bytes to server."); // Write log.
 
             }
 
-        } catch (FileNotFoundException ignored) {
+        } catch (FileNotFoundException | NoSuchFileException ignored) {
             // Should not occur as file existence is checked.
         } catch (IOException e) {
             System.err.println("TCPClient.processFileTransfer() IO Exception: " + e.getMessage());
         }
 
         closeClient();
+        return transferred;
 
-    } // readFile().
-
-
-    /**
-     * Method to send all bytes from an input stream to an output stream.
-     *
-     * @param in Input stream to read bytes from.
-     * @param out Output stream to send bytes to.
-     *
-     * @return numberOfBytes sent, used for debugging.
-     *
-     * @throws IOException Error interacting with the streams.
-     */
-    public static int copyToOut(InputStream in, OutputStream out) throws IOException {
-
-        byte[] buf = new byte[2048];
-        int bytesRead = 0;
-        int totalBytes = 0;
-
-        while ((bytesRead = in.read(buf)) != -1) { // While still bytes in file to send.
-            totalBytes += bytesRead;
-            out.write(buf, 0, bytesRead); // Write current chunk of bytes to output stream.
-        }
-        out.flush();
-
-        return totalBytes;
-
-    } // copyToOut().
+    } // processFile().
 
 
     /**
@@ -175,6 +192,10 @@ public class TCPClient {
      */
     public void closeClient() {
 
+        if (socket == null) {
+            return; // Never connected.
+        }
+
         try {
             inFromServer.close();
             outToServer.close();
@@ -1,6 +1,11 @@
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  *
@@ -17,6 +22,11 @@ public class TCPFileServer implements Runnable {
 
     String filePath; // Path to file to download/upload.
     boolean download; // Whether the server is sending a file (download) or receiving a file (upload).
+    FileIndex fileIndex; // Index to add an uploaded file to once it is written.
+    long start; // Byte of the file the transfer starts from.
+    long length; // Bytes to transfer, -1 for the rest of the file.
+    boolean checked; // Whether the transfer is followed by its CRC-32C, verified by the receiver.
+    long uploadSize; // Size of the file being uploaded, given by the uploader, -1 if not given.
 
 
     /**
@@ -26,17 +36,81 @@ public class TCPFileServer implements Runnable {
      * @param configuration FileTreeBrowser program configuration.
      * @param filePath Exact file path string to the location to download/upload the file to (must exist).
      * @param download Which of downloading or uploading is taking place.
+     * @param fileIndex Index of the root directory, to add an uploaded file to.
      */
-    TCPFileServer(Configuration configuration, String filePath, boolean download) {
+    TCPFileServer(Configuration configuration, String filePath, boolean download, FileIndex fileIndex) {
+        this(configuration, filePath, download, fileIndex, 0, -1);
+    }
+
+
+    /**
+     * Overloaded Constructor: Creates an instance of TCPServer as a separate thread, for the purpose of downloading
+     * or uploading part of a file, e.g. to resume a transfer.
+     *
+     * @param configuration FileTreeBrowser program configuration.
+     * @param filePath Exact file path string to the location to download/upload the file to (must exist).
+     * @param download Which of downloading or uploading is taking place.
+     * @param fileIndex Index of the root directory, to add an uploaded file to.
+     * @param start Byte of the file the transfer starts from; bytes before it are kept when uploading.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     */
+    TCPFileServer(Configuration configuration, String filePath, boolean download, FileIndex fileIndex,
+                  long start, long length) {
+        this(configuration, filePath, download, fileIndex, start, length, false);
+    }
+
+
+    /**
+     * Overloaded Constructor: Creates an instance of TCPServer as a separate thread, for the purpose of downloading
+     * or uploading part of a file, checked by a CRC-32C trailer (see FileTransfer). An upload is received into the
+     * part file beside filePath, which is moved over it once the whole file is in.
+     *
+     * @param configuration FileTreeBrowser program configuration.
+     * @param filePath Exact file path string to the location to download/upload the file to (must exist).
+     * @param download Which of downloading or uploading is taking place.
+     * @param fileIndex Index of the root directory, to add an uploaded file to.
+     * @param start Byte of the file the transfer starts from; bytes before it are kept when uploading.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     * @param checked Whether the transfer is followed by its CRC-32C, verified by the receiver.
+     */
+    TCPFileServer(Configuration configuration, String filePath, boolean download, FileIndex fileIndex,
+                  long start, long length, boolean checked) {
+        this(configuration, filePath, download, fileIndex, start, length, checked, -1);
+    }
+
+
+    /**
+     * Overloaded Constructor: Creates an instance of TCPServer as a separate thread, for the purpose of receiving an
+     * upload of a file of known size. The part file is only moved over filePath once the transfer is verified by its
+     * CRC-32C, or as many bytes as the file holds have been received; otherwise it is kept for the upload to resume.
+     *
+     * @param configuration FileTreeBrowser program configuration.
+     * @param filePath Exact file path string to the location to download/upload the file to (must exist).
+     * @param download Which of downloading or uploading is taking place.
+     * @param fileIndex Index of the root directory, to add an uploaded file to.
+     * @param start Byte of the file the transfer starts from; bytes before it are kept when uploading.
+     * @param length Bytes to transfer, -1 for the rest of the file.
+     * @param checked Whether the transfer is followed by its CRC-32C, verified by the receiver.
+     * @param uploadSize Size of the file being uploaded, -1 if not known.
+     */
+    TCPFileServer(Configuration configuration, String filePath, boolean download, FileIndex fileIndex,
+                  long start, long length, boolean checked, long uploadSize) {
 
         this.configuration = configuration;
         this.filePath = filePath;
         this.download = download;
+        this.fileIndex = fileIndex;
+        this.start = start;
+        this.length = length;
+        this.checked = checked;
+        this.uploadSize = uploadSize;
 
         // Create server socket, etc.
         try {
 
-            serverSocket = new ServerSocket(0); // Assigns an ephemeral port that is available for use.
+            // Opened through a channel, so the connection accepted has one to transfer the file with (see FileTransfer).
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(0)); // Assigns an ephemeral port that is available for use.
             this.hostname = serverSocket.getInetAddress().toString();
             this.port = serverSocket.getLocalPort();
             serverSocket.setSoTimeout(configuration.soTimeout_);
@@ -69,6 +143,10 @@ public class TCPFileServer implements Runnable {
      */
     public void processFileTransfer() {
 
+        // An uploader that has not connected by the time its request would have timed out is not coming (e.g. it found
+        // our copy differs from its file), so stop waiting; the part file is left as it is.
+        long acceptDeadline = System.nanoTime() + configuration.requestTimeout_ * 1_000_000L;
+
         Socket clientSocket = null;
         do { // While loop to continue listening until client connects to the server.
 
@@ -79,28 +157,52 @@ public class TCPFileServer implements Runnable {
                 // Nothing to do - non-blocking socket.
             }
 
+            if (clientSocket == null && !download && System.nanoTime() - acceptDeadline > 0) {
+                configuration.log_.writeLog("TCP Server (" + hostname + ":" + port + "): No upload, stopped waiting."); // Write log.
+                closeServerSocket();
+                return;
+            }
+
         } while (clientSocket == null);
 
 
-        try {
+        try (Socket connection = clientSocket) { // Closed once done, which tells the client the file has ended.
 
             if (download) { // When downloading, send the requested file to the client.
 
                 // Send file over TCP connection.
-                InputStream fileIn = new BufferedInputStream(new FileInputStream(filePath));
-                int bytesSent = copyToOut(fileIn, clientSocket.getOutputStream());
+                long bytesSent = FileTransfer.send(Paths.get(filePath), connection, start, length, checked);
                 configuration.log_.writeLog("TCP Server Sent (" + hostname + ":" + port + "): " + bytesSent + " bytes to client."); // Write log.
 
             } else { // When uploading, read the file from the client.
 
-                // Read file from TCP connection.
-                OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(filePath));
-                int bytesSent = copyToOut(clientSocket.getInputStream(), fileOut);
+                // Read file from TCP connection into the part file, kept if the connection fails so the upload can resume.
+                Path part = FileTransfer.partPath(configuration, Paths.get(filePath), FileTransfer.UPLOADS);
+                long bytesSent = FileTransfer.receive(connection, part, start, length, checked);
                 configuration.log_.writeLog("TCP Server Wrote " + bytesSent + " bytes to file."); // Write log.
 
+                // The end of the connection alone does not mean the file has ended: the uploader may have stopped part
+                // way. Only a transfer that was verified (receive() throws otherwise) or that reached the size the
+                // uploader gave is whole; anything else stays in the part file for the upload to resume.
+                long received = start + bytesSent;
+                boolean whole = uploadSize >= 0 ? received == uploadSize : checked;
+
+                if (whole) {
+
+                    // Whole file in, so replace the destination with it.
+                    FileTransfer.commit(part, Paths.get(filePath), received);
+
+                    // Index the file now, so searches find it straight away.
+                    fileIndex.created(Paths.get(filePath));
+
+                } else {
+                    configuration.log_.writeLog("TCP Server Kept Part File: " + received + " of "
+                            + (uploadSize >= 0 ? uploadSize + " bytes." : "an unknown number of bytes.")); // Write log.
+                }
+
             }
 
-        } catch (FileNotFoundException ignored) {
+        } catch (FileNotFoundException | NoSuchFileException ignored) {
             // Should not occur as file existence is checked.
         } catch (IOException e) {
             System.err.println("TCPFileServer.processFileTransfer() IO Exception: " + e.getMessage());
@@ -111,33 +213,6 @@ public class TCPFileServer implements Runnable {
     } // processFileTransfer().
 
 
-    /**
-     * Method to send all bytes from an input stream to an output stream.
-     *
-     * @param in Input stream to read bytes from.
-     * @param out Output stream to send bytes to.
-     *
-     * @return numberOfBytes sent, used for debugging.
-     *
-     * @throws IOException Error interacting with the streams.
-     */
-    public static int copyToOut(InputStream in, OutputStream out) throws IOException {
-
-        byte[] buf = new byte[2048];
-        int bytesRead = 0;
-        int totalBytes = 0;
-
-        while ((bytesRead = in.read(buf)) != -1) { // While still bytes in file to send.
-            totalBytes += bytesRead;
-            out.write(buf, 0, bytesRead); // Write current chunk of bytes to output stream.
-        }
-        out.flush();
-
-        return totalBytes;
-
-    } // copyToOut().
-
-
     /**
      * Close the server socket.
      */
@@ -0,0 +1,172 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * TimestampCodec converts protocol timestamps ("yyyyMMdd-HHmmss.SSS") to and from epoch milliseconds without creating
+ * a SimpleDateFormat per call.
+ *
+ * The local time of the start of the most recently used hour is cached, so only the first timestamp of each hour goes
+ * through the time zone rules; every other timestamp is plain arithmetic. Instances are not thread-safe, so each
+ * thread (or each reusable parser) should keep its own.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class TimestampCodec {
+
+
+    public static final int TIMESTAMP_LENGTH = 19; // Length of "yyyyMMdd-HHmmss.SSS".
+
+    private final ZoneId zone = ZoneId.systemDefault(); // Protocol timestamps are in local time.
+
+    private long cachedHourKey = -1; // yyyyMMddHH of the cached hour, as a number.
+    private long cachedHourStart; // Epoch milliseconds at the start of the cached hour.
+
+    private final byte[] formatHourPrefix = new byte[11]; // "yyyyMMdd-HH" of the hour being formatted.
+    private long formatHourStart = Long.MAX_VALUE; // Epoch milliseconds at the start of the formatted hour.
+    private long formatHourEnd = Long.MIN_VALUE; // Epoch milliseconds at the end of the formatted hour.
+
+
+    /**
+     * Parse a protocol timestamp held as ASCII bytes.
+     *
+     * @param bytes Bytes holding the timestamp.
+     * @param offset Offset of the first timestamp byte.
+     * @param length Number of bytes making up the timestamp.
+     *
+     * @return Epoch milliseconds represented by the timestamp, or -1 if the timestamp is malformed.
+     */
+    public long parse(byte[] bytes, int offset, int length) {
+
+        if (length != TIMESTAMP_LENGTH || bytes[offset + 8] != '-' || bytes[offset + 15] != '.') {
+            return -1;
+        }
+
+        int year = digits(bytes, offset, 4);
+        int month = digits(bytes, offset + 4, 2);
+        int day = digits(bytes, offset + 6, 2);
+        int hour = digits(bytes, offset + 9, 2);
+        int minutes = digits(bytes, offset + 11, 2);
+        int seconds = digits(bytes, offset + 13, 2);
+        int millis = digits(bytes, offset + 16, 3);
+
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59 || millis < 0) {
+            return -1;
+        }
+
+        long hourKey = ((year * 100L + month) * 100L + day) * 100L + hour;
+        if (hourKey != cachedHourKey) {
+
+            try {
+                cachedHourStart = LocalDateTime.of(year, month, day, hour, 0).atZone(zone).toInstant().toEpochMilli();
+                cachedHourKey = hourKey;
+            } catch (RuntimeException e) { // e.g. 31st of a 30 day month.
+                return -1;
+            }
+
+        } // if (different hour to the cached one).
+
+        return cachedHourStart + minutes * 60_000L + seconds * 1_000L + millis;
+
+    } // parse().
+
+
+    /**
+     * Write a protocol timestamp as ASCII bytes. Within an hour this is pure arithmetic and allocates nothing.
+     *
+     * @param millis Epoch milliseconds to format.
+     * @param out Buffer to write the 19 timestamp bytes into.
+     */
+    public void format(long millis, ByteBuffer out) {
+
+        if (millis < formatHourStart || millis >= formatHourEnd) {
+
+            // New hour: let the time zone rules give the local time of the instant itself, so the offset in effect is
+            // kept (e.g. in the second of two repeated hours as clocks go back). The hour starts that many minutes and
+            // seconds earlier, and the cached hour also ends at any change of offset within it.
+            Instant instant = Instant.ofEpochMilli(millis);
+            LocalDateTime local = LocalDateTime.ofInstant(instant, zone);
+            LocalDateTime hour = local.truncatedTo(ChronoUnit.HOURS);
+            formatHourStart = millis - ChronoUnit.MILLIS.between(hour, local);
+            formatHourEnd = formatHourStart + 3_600_000L;
+            ZoneOffsetTransition transition = zone.getRules().nextTransition(instant);
+            if (transition != null) {
+                formatHourEnd = Math.min(formatHourEnd, transition.toEpochSecond() * 1_000L);
+            }
+
+            String prefix = String.format("%04d%02d%02d-%02d",
+                    hour.getYear(), hour.getMonthValue(), hour.getDayOfMonth(), hour.getHour());
+            System.arraycopy(prefix.getBytes(StandardCharsets.US_ASCII), 0, formatHourPrefix, 0, formatHourPrefix.length);
+
+        } // if (outside of the cached hour).
+
+        int withinHour = (int) (millis - formatHourStart);
+
+        out.put(formatHourPrefix);
+        putDigits(out, withinHour / 60_000, 2);
+        putDigits(out, (withinHour / 1_000) % 60, 2);
+        out.put((byte) '.');
+        putDigits(out, withinHour % 1_000, 3);
+
+    } // format().
+
+
+    /**
+     * Write a number as a fixed number of decimal digits, with leading zeros.
+     *
+     * @param out Buffer to write to.
+     * @param value Non-negative value to write.
+     * @param count Number of digits to write.
+     */
+    private static void putDigits(ByteBuffer out, int value, int count) {
+
+        int position = out.position();
+        if (out.remaining() < count) {
+            throw new BufferOverflowException();
+        }
+
+        for (int i = count - 1; i >= 0; i--) {
+            out.put(position + i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+
+        out.position(position + count);
+
+    } // putDigits().
+
+
+    /**
+     * Read a fixed number of decimal digits.
+     *
+     * @param bytes Bytes holding the digits.
+     * @param offset Offset of the first digit.
+     * @param count Number of digits to read.
+     *
+     * @return Value of the digits, or -1 if any byte is not a digit.
+     */
+    private static int digits(byte[] bytes, int offset, int count) {
+
+        int value = 0;
+
+        for (int i = offset; i < offset + count; i++) {
+
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+
+        }
+
+        return value;
+
+    } // digits().
+
+
+} // TimestampCodec{}.
@@ -0,0 +1,243 @@
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * TimingWheel is a hashed timing wheel: a ring of slots, each holding the timeouts that fall due in one tick.
+ *
+ * Scheduling and cancelling are O(1) regardless of how many timeouts are pending, and the wheel's own thread only
+ * looks at one slot per tick. Timeouts further away than one revolution stay in their slot until their tick comes
+ * round. Expired items are handed to the expiry handler on the wheel's thread, outside of the wheel's lock. While no
+ * timeouts are pending the thread waits instead of ticking, so an idle wheel uses no CPU however short its tick.
+ *
+ * @param <T> Type of item that times out.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class TimingWheel<T> implements Runnable {
+
+
+    /**
+     * A scheduled timeout, which can be used to cancel it.
+     *
+     * @param <T> Type of item that times out.
+     */
+    public static final class Timeout<T> {
+
+        private final T item; // Item handed to the expiry handler.
+        private final long deadlineTick; // Tick at (or after) which the item expires.
+        private Timeout<T> previous; // Previous timeout in the same slot.
+        private Timeout<T> next; // Next timeout in the same slot.
+        private boolean scheduled; // Whether the timeout is still in the wheel.
+
+        private Timeout(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * @return Item that times out.
+         */
+        public T getItem() {
+            return item;
+        }
+
+    } // Timeout{}.
+
+
+    private final Timeout<T>[] slots; // Head of the timeout list of each slot.
+    private final int mask; // slots.length - 1, slots.length being a power of two.
+    private final long tickNanos; // Duration of one tick.
+    private final long startNanos; // Time at which tick 0 began.
+    private long currentTick; // Last tick processed by the wheel's thread.
+    private int size; // Number of scheduled timeouts.
+    private final Consumer<T> expiryHandler; // Called with each item as it expires.
+
+
+    /**
+     * Constructor: Creates an empty wheel and starts its (daemon) thread.
+     *
+     * @param name Name of the wheel's thread.
+     * @param tickMillis Duration of one tick, i.e. the resolution of the wheel.
+     * @param slotCount Number of slots, rounded up to a power of two.
+     * @param expiryHandler Called with each item as it expires.
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(String name, long tickMillis, int slotCount, Consumer<T> expiryHandler) {
+
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.slots = (Timeout<T>[]) new Timeout<?>[capacity];
+        this.mask = capacity - 1;
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+        this.startNanos = System.nanoTime();
+        this.expiryHandler = expiryHandler;
+
+        // Create thread for advancing the wheel; it must not keep the application alive.
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+
+    } // TimingWheel().
+
+
+    /**
+     * Advance the wheel one tick at a time, expiring the timeouts in each slot as it is reached.
+     */
+    @Override
+    public void run() {
+
+        ArrayList<T> expired = new ArrayList<>();
+
+        do { // Do until application terminated.
+
+            long nextTickNanos;
+
+            // Wait for a timeout to be scheduled; schedule() moves the wheel on to the present first.
+            synchronized (this) {
+                while (size == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+            } // synchronized (this).
+
+            // Sleep until the start of the next tick.
+            long wait = nextTickNanos - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            synchronized (this) {
+
+                if (System.nanoTime() - startNanos < (currentTick + 1) * tickNanos) {
+                    continue; // schedule() moved the wheel on while it slept, so the tick is not yet due.
+                }
+                currentTick++;
+
+                // Unlink every timeout in this slot that is now due; later revolutions stay put.
+                Timeout<T> timeout = slots[(int) (currentTick & mask)];
+                while (timeout != null) {
+
+                    Timeout<T> next = timeout.next;
+                    if (timeout.deadlineTick <= currentTick) {
+                        unlink(timeout);
+                        expired.add(timeout.item);
+                    }
+                    timeout = next;
+
+                }
+
+            } // synchronized (this).
+
+            for (T item : expired) {
+
+                try {
+                    expiryHandler.accept(item);
+                } catch (RuntimeException e) {
+                    System.err.println("TimingWheel.run() Error: " + e.getMessage());
+                }
+
+            }
+            expired.clear();
+
+        } while (true);
+
+    } // run().
+
+
+    /**
+     * Schedule an item to expire after a delay.
+     *
+     * @param item Item to hand to the expiry handler.
+     * @param delayMillis Delay before the item expires.
+     *
+     * @return Timeout that can be passed to cancel().
+     */
+    public synchronized Timeout<T> schedule(T item, long delayMillis) {
+
+        long nowNanos = System.nanoTime() - startNanos;
+
+        if (size == 0) { // The wheel has been waiting: skip the (empty) ticks it missed, and wake it.
+            currentTick = Math.max(currentTick, nowNanos / tickNanos);
+            notify();
+        }
+
+        // Round up, so an item never expires early; and never schedule into the slot already being processed.
+        long deadlineNanos = nowNanos + Math.max(0, delayMillis) * 1_000_000L;
+        long deadlineTick = Math.max(currentTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+
+        Timeout<T> timeout = new Timeout<>(item, deadlineTick);
+
+        int slot = (int) (deadlineTick & mask);
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.scheduled = true;
+        size++;
+
+        return timeout;
+
+    } // schedule().
+
+
+    /**
+     * Cancel a timeout, so that its item never reaches the expiry handler.
+     *
+     * @param timeout Timeout returned by schedule().
+     *
+     * @return True if cancelled, false if the timeout had already expired or been cancelled.
+     */
+    public synchronized boolean cancel(Timeout<T> timeout) {
+
+        if (timeout == null || !timeout.scheduled) {
+            return false;
+        }
+
+        unlink(timeout);
+        return true;
+
+    } // cancel().
+
+
+    /**
+     * Remove a scheduled timeout from its slot. Caller must hold the wheel's lock.
+     *
+     * @param timeout Timeout to remove.
+     */
+    private void unlink(Timeout<T> timeout) {
+
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+
+    } // unlink().
+
+
+    /**
+     * @return Number of timeouts waiting to expire.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+
+} // TimingWheel{}.
@@ -0,0 +1,294 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * TrigramIndex finds the names that contain a substring without comparing the substring against every name.
+ *
+ * Every name is given an int id, and for every three-character sequence (trigram) the ids of the names containing it
+ * are kept as a sorted int array. A query of three or more characters intersects the posting lists of its trigrams,
+ * smallest first, and only the surviving candidates are compared with the query. Shorter queries have no trigrams, so
+ * they fall back to a scan of the names. Names are expected to be case-folded by the caller.
+ *
+ * Queries may run concurrently with each other; changes take the write lock.
+ *
+ * @author 170004680, Nov 2020.
+ */
+public class TrigramIndex {
+
+
+    /**
+     * Sorted ids of the names containing one trigram.
+     */
+    private static final class Postings {
+
+        int[] ids = new int[4]; // Sorted name ids, valid up to size.
+        int size; // Number of ids.
+
+        void add(int id) {
+
+            int i = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0 && i < size) {
+                return; // Already present.
+            }
+            if (i < 0) i = -i - 1;
+
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+
+        }
+
+        boolean remove(int id) {
+
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+            }
+            return size == 0;
+
+        }
+
+    } // Postings{}.
+
+
+    private final HashMap<Long, Postings> postings; // Posting list of each trigram, keyed by its packed characters.
+    private final HashMap<String, Integer> ids; // Id of each indexed name.
+    private String[] names; // Name of each id, null where the id is free.
+    private int nextId; // Lowest id never used.
+    private final ArrayDeque<Integer> freeIds; // Ids of removed names, available for reuse.
+    private final ReentrantReadWriteLock lock; // Queries share the read lock; changes take the write lock.
+
+
+    /**
+     * Constructor: Creates an empty index.
+     */
+    TrigramIndex() {
+
+        this.postings = new HashMap<>();
+        this.ids = new HashMap<>();
+        this.names = new String[1024];
+        this.freeIds = new ArrayDeque<>();
+        this.lock = new ReentrantReadWriteLock();
+
+    } // TrigramIndex().
+
+
+    /**
+     * Add a name to the index.
+     *
+     * @param name Case-folded name.
+     */
+    public void add(String name) {
+
+        lock.writeLock().lock();
+        try {
+
+            if (ids.containsKey(name)) {
+                return;
+            }
+
+            int id = freeIds.isEmpty() ? nextId++ : freeIds.poll();
+            if (id == names.length) {
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            names[id] = name;
+            ids.put(name, id);
+
+            for (int i = 0; i + 3 <= name.length(); i++) {
+                postings.computeIfAbsent(trigram(name, i), k -> new Postings()).add(id);
+            }
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    } // add().
+
+
+    /**
+     * Remove a name from the index.
+     *
+     * @param name Case-folded name.
+     */
+    public void remove(String name) {
+
+        lock.writeLock().lock();
+        try {
+
+            Integer id = ids.remove(name);
+            if (id == null) {
+                return;
+            }
+
+            for (int i = 0; i + 3 <= name.length(); i++) {
+
+                Long key = trigram(name, i);
+                Postings list = postings.get(key);
+                if (list != null && list.remove(id)) {
+                    postings.remove(key);
+                }
+
+            }
+
+            names[id] = null;
+            freeIds.add(id);
+
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+    } // remove().
+
+
+    /**
+     * Find every indexed name containing a substring.
+     *
+     * @param substring Case-folded substring.
+     *
+     * @return Names containing the substring.
+     */
+    public List<String> search(String substring) {
+        return search(substring, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Find indexed names containing a substring, stopping once enough are found.
+     *
+     * @param substring Case-folded substring.
+     * @param limit Most names to return.
+     *
+     * @return Names containing the substring, at most limit of them.
+     */
+    public List<String> search(String substring, int limit) {
+
+        List<String> results = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+
+            if (substring.length() < 3) { // No trigrams to narrow the search, so compare every name.
+
+                for (String name : ids.keySet()) {
+                    if (results.size() >= limit) {
+                        break;
+                    }
+                    if (name.contains(substring)) {
+                        results.add(name);
+                    }
+                }
+                return results;
+
+            } // if (short query).
+
+            // Gather the posting list of each distinct trigram; a trigram no name has means there are no results.
+            HashMap<Long, Postings> queryPostings = new HashMap<>();
+            for (int i = 0; i + 3 <= substring.length(); i++) {
+
+                Long key = trigram(substring, i);
+                Postings list = postings.get(key);
+                if (list == null) {
+                    return results;
+                }
+                queryPostings.put(key, list);
+
+            }
+
+            // Intersect, smallest list first, so the candidate set starts small and only shrinks.
+            List<Postings> lists = new ArrayList<>(queryPostings.values());
+            lists.sort(Comparator.comparingInt(list -> list.size));
+
+            int[] candidates = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+            int count = candidates.length;
+            for (int l = 1; l < lists.size() && count > 0; l++) {
+                count = intersect(candidates, count, lists.get(l));
+            }
+
+            // Trigrams can all be present without being adjacent, so check each candidate.
+            for (int c = 0; c < count && results.size() < limit; c++) {
+
+                String name = names[candidates[c]];
+                if (name.contains(substring)) {
+                    results.add(name);
+                }
+
+            }
+
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return results;
+
+    } // search().
+
+
+    /**
+     * Keep only the candidates that also appear in a posting list.
+     *
+     * @param candidates Sorted candidate ids, overwritten with the intersection.
+     * @param count Number of candidate ids.
+     * @param list Posting list to intersect with.
+     *
+     * @return Number of candidate ids remaining.
+     */
+    private static int intersect(int[] candidates, int count, Postings list) {
+
+        int kept = 0;
+        int j = 0;
+
+        for (int i = 0; i < count && j < list.size; i++) {
+
+            int id = candidates[i];
+
+            // Gallop ahead, then binary search, so a long list is not stepped through one id at a time.
+            int step = 1;
+            while (j + step < list.size && list.ids[j + step] < id) {
+                j += step;
+                step <<= 1;
+            }
+            int found = Arrays.binarySearch(list.ids, j, Math.min(j + step + 1, list.size), id);
+            j = found >= 0 ? found : -found - 1;
+
+            if (j < list.size && list.ids[j] == id) {
+                candidates[kept++] = id;
+            }
+
+        }
+
+        return kept;
+
+    } // intersect().
+
+
+    /**
+     * @param s String.
+     * @param i Offset of the first character of the trigram.
+     *
+     * @return The three characters from offset i, packed into a long.
+     */
+    private static Long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+
+    /**
+     * @return Number of indexed names.
+     */
+    public int size() {
+
+        lock.readLock().lock();
+        try {
+            return ids.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+
+    } // size().
+
+
+} // TrigramIndex{}.
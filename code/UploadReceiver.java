@@ -1,25 +1,23 @@
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * UploadReceiver is a class for handling incoming upload messages given by MulticastHandler in a separate thread.
  *
  * @author 170004680, Nov 2020.
  */
-public class UploadReceiver implements Runnable {
+public class UploadReceiver implements Runnable, RequestTable.Listener {
 
 
     MulticastHandler multicastHandler; // Instance of MulticastHandler used.
     Configuration configuration; // Configuration of MulticastHandler.
 
-    HashMap<String, Message> outgoingUploadRequests; // HashMap of active upload requests that have been sent.
-    HashMap<String, Message> incomingUploadMessages; // HashMap of incoming download messages pending processing.
+    MessageQueue incomingUploadMessages; // Incoming upload messages pending processing.
+    Map<Long, FileTransfer.Resume> resumes = new ConcurrentHashMap<>(); // Our resume requests, by serial number.
 
 
     /**
@@ -32,8 +30,7 @@ public class UploadReceiver implements Runnable {
         this.multicastHandler = multicastHandler;
         this.configuration = multicastHandler.configuration;
 
-        this.outgoingUploadRequests = new HashMap<>(); // HashMap of active download requests that have been sent.
-        this.incomingUploadMessages = new HashMap<>(); // HashMap of incoming messages pending processing.
+        this.incomingUploadMessages = new MessageQueue(configuration.receiverQueueCapacity_); // Incoming messages pending processing.
 
         // Create thread for managing handling search messages from multicast group.
         Thread thread = new Thread(this);
@@ -51,7 +48,8 @@ public class UploadReceiver implements Runnable {
 
         do { // Do until application terminated.
 
-            processIncomingUploadMessages();
+            // Sleeps until the multicast thread hands over a message.
+            processIncomingUploadMessage(incomingUploadMessages.take());
 
         } while (true);
 
@@ -59,85 +57,84 @@ public class UploadReceiver implements Runnable {
 
 
     /**
-     * Process incoming upload messages.
+     * Process an incoming upload message.
+     *
+     * @param message Message handed over by the multicast thread.
      */
-    public synchronized void processIncomingUploadMessages() {
-
-        LinkedList<String> messagesToRemove = new LinkedList<>();
-
-        // Loop over incoming messages and process them.
-        Iterator<Map.Entry<String, Message>> messageIterator = incomingUploadMessages.entrySet().iterator();
-        while (messageIterator.hasNext()) {
+    public void processIncomingUploadMessage(Message message) {
 
-            // Get current message to process.
-            Map.Entry<String, Message> entry = messageIterator.next();
-            String messageIdentifier = entry.getKey();
-            Message message = entry.getValue();
+        // If upload request, then process the upload request.
+        if (message.getPayloadType().equalsIgnoreCase("upload-request")) {
 
-            // If upload request, then process the upload request.
-            if (message.getPayloadType().equalsIgnoreCase("upload-request")) {
+            // Check the request is for us by verifying that the identifier is for this machine.
+            if (message.getTargetPeerIdentifier().equals(Message.localIdentifier())) {
 
-                try {
-
-                    // Check the request is for us by verifying that the identifier is for this machine.
-                    String ourIdentifier = System.getProperty("user.name") + "@" + InetAddress.getLocalHost().getCanonicalHostName();
-                    if (message.getTargetPeerIdentifier().equals(ourIdentifier)) {
-
-                        String addedSeparator = "";
-                        if (message.getTargetFilePath().charAt(0) != '/') {
-                            addedSeparator = "/";
+                String addedSeparator = "";
+                if (message.getTargetFilePath().charAt(0) != '/') {
+                    addedSeparator = "/";
+                }
+                String uploadFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
+
+                // Check file path given is acceptable.
+                boolean validFileLocation = checkFile(uploadFileRootPath, message.getTargetFilePath());
+
+                if (validFileLocation) {
+
+                    // Start from the offset asked for, or the end of what we already have if it is shorter: uploads are
+                    // received into a part file, left behind if one is cut short.
+                    File fileToUploadTo = FileTransfer.partPath(configuration, Paths.get(uploadFileRootPath), FileTransfer.UPLOADS).toFile();
+                    long fileSize = fileToUploadTo.length(); // 0 if it does not exist.
+                    long start = Math.min(message.getTransferOffset(), fileSize);
+
+                    // When resuming, send the checksum of the bytes we keep so the requester can check they match.
+                    String prefixChecksum = "";
+                    if (message.getTransferOffset() > 0) {
+                        try {
+                            prefixChecksum = FileTransfer.prefixChecksum(fileToUploadTo.toPath(), start);
+                        } catch (IOException e) {
+                            multicastHandler.txMessage(Message.uploadErrorMessage(message.getIdentifier(), message.getSerialNumber()));
+                            return;
                         }
-                        String uploadFileRootPath = configuration.rootDir_ + addedSeparator + message.getTargetFilePath();
-
-                        // Check file path given is acceptable.
-                        boolean validFileLocation = checkFile(uploadFileRootPath, message.getTargetFilePath());
+                    }
 
-                        if (validFileLocation) {
+                    // Check the transfer by CRC-32C if the requester does too.
+                    boolean checked = configuration.transferCheck_ && requesterChecks(message);
 
-                            // Set up a TCP Server (give port 0 so ephemeral port assigned).
-                            TCPFileServer tcpServer = new TCPFileServer(configuration, uploadFileRootPath, false);
-                            int uploadPort = tcpServer.serverSocket.getLocalPort();
-                            // Send a upload-result message with the TCP server ephemeral port.
-                            Message uploadResult = Message.uploadResultMessage(message.getIdentifier(), message.getSerialNumber(), uploadPort);
-                            multicastHandler.txMessage(uploadResult);
+                    // Set up a TCP Server (give port 0 so ephemeral port assigned).
+                    TCPFileServer tcpServer = new TCPFileServer(configuration, uploadFileRootPath, false, multicastHandler.fileIndex,
+                            start, message.getTransferLength(), checked, message.getTransferFileSize());
+                    int uploadPort = tcpServer.serverSocket.getLocalPort();
+                    // Send a upload-result message with the TCP server ephemeral port.
+                    Message uploadResult = Message.uploadResultMessage(message.getIdentifier(), message.getSerialNumber(), uploadPort,
+                            fileSize, prefixChecksum);
+                    if (checked) {
+                        uploadResult.setTransferCheck(FileTransfer.CHECK_CRC32C);
+                    }
+                    multicastHandler.txMessage(uploadResult);
 
-                        } else {
+                } else {
 
-                            // Send a upload-error message to the peer that made the request.
-                            Message uploadError = Message.uploadErrorMessage(message.getIdentifier(), message.getSerialNumber());
-                            multicastHandler.txMessage(uploadError);
+                    // Send a upload-error message to the peer that made the request.
+                    Message uploadError = Message.uploadErrorMessage(message.getIdentifier(), message.getSerialNumber());
+                    multicastHandler.txMessage(uploadError);
 
-                        } // If (valid upload location given).
+                } // If (valid upload location given).
 
-                    } // If upload request not for this machine, then ignore this message.
+            } // If upload request not for this machine, then ignore this message.
 
+        } else { // Otherwise, a upload-result or upload-error.
 
-                } catch (UnknownHostException e) {
-                    System.err.println("UploadReceiver.processIncomingUploadMessages() Error - Could not get hostname: " + e.getMessage());
-                }
-
-            } else { // Otherwise, a upload-result or upload-error.
-
-                String incomingMessageIdentifier = message.getResponseIDSerialNum();
-
-                // Check response-id and serial number matches a message in the outgoing structure.
-                if (outgoingUploadRequests.containsKey(incomingMessageIdentifier)) { // Match for one of our requests.
+            // Check response-id and serial number match one of our outstanding requests; only the first response counts.
+            Message initialRequest = multicastHandler.requestTable.complete(message, this);
+            if (initialRequest != null) { // Match for one of our requests.
 
-                    Message initialRequest = outgoingUploadRequests.get(incomingMessageIdentifier);
-                    showUploadResponse(initialRequest, message);
+                showUploadResponse(initialRequest, message);
 
-                } // If not a result for one of our requests, then ignore.
+            } // If not a result for one of our outstanding requests, then ignore.
 
-            } // Anything else does not conform to the protocol so ignore.
+        } // Anything else does not conform to the protocol so ignore.
 
-            messagesToRemove.add(messageIdentifier);
-
-        } // for (all incoming messages).
-
-        // Remove incoming messages once processed.
-        removeProcessedMessages(incomingUploadMessages, messagesToRemove);
-
-    } // processIncomingUploadMessages().
+    } // processIncomingUploadMessage().
 
 
     /**
@@ -199,9 +196,7 @@ public class UploadReceiver implements Runnable {
      * @param outgoing Whether to add the message to the outgoing or incoming messages structure.
      * @param message Message to add to the message structures.
      */
-    public synchronized void addMessage(boolean outgoing, Message message) {
-
-        // Synchronised to prevent simultaneous adding and removing issues due to threading.
+    public void addMessage(boolean outgoing, Message message) {
 
         // Create key for message structures.
         String messageIdentifier = message.getIdentifier() + ":" + message.getSerialNumber();
@@ -209,21 +204,15 @@ public class UploadReceiver implements Runnable {
         // Determine which structure to add message to.
         if (!outgoing) {
 
-            // Incoming download messages are messages from other peers to respond to.
-            if (incomingUploadMessages.get(messageIdentifier) == null) { // Add if new.
-                incomingUploadMessages.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                incomingUploadMessages.replace(messageIdentifier, message);
+            // Incoming upload messages are messages from other peers to respond to, handed to this receiver's thread.
+            if (!incomingUploadMessages.offer(message)) {
+                configuration.log_.writeLog("UploadReceiver Queue Full - Dropped: " + message.getPayloadType() + " From " + messageIdentifier); // Create log.
             }
 
         } else {
 
-            // Outgoing download messages are messages that have been sent out and are awaiting answers.
-            if (outgoingUploadRequests.get(messageIdentifier) == null) { // Add if new.
-                outgoingUploadRequests.put(messageIdentifier, message);
-            } else { // Updates the message if it exists already.
-                outgoingUploadRequests.replace(messageIdentifier, message);
-            }
+            // Outgoing upload messages are messages that have been sent out and are awaiting answers, until they time out.
+            multicastHandler.requestTable.register(message, configuration.requestTimeout_, this);
 
         } // if (outgoing or not).
 
@@ -231,16 +220,27 @@ public class UploadReceiver implements Runnable {
 
 
     /**
-     * Remove processed messages from list of messages to process.
+     * Called by the request table when one of our upload requests completes, i.e. is answered or times out.
      *
-     * @param incomingMessages Structure of incoming messages to be processed.
-     * @param messagesToRemove List of messages that have been processed and should be removed from incomingMessages.
+     * @param request The upload request that has completed.
+     * @param responseCount Number of responses received for the request.
      */
-    public synchronized void removeProcessedMessages(HashMap<String, Message> incomingMessages, LinkedList<String> messagesToRemove) {
+    @Override
+    public void requestCompleted(Message request, int responseCount) {
+
+        if (responseCount == 0) { // Nobody answered before the request timed out, so let the user know.
+
+            resumes.remove(request.getSerialNumber()); // Resume given up on.
 
-        incomingMessages.entrySet().removeIf(entry -> messagesToRemove.contains(entry.getKey()));
+            System.out.println("----------------------------------------------");
+            System.out.println("Upload Request: Upload To: " + request.getTargetPeerIdentifier()
+                + ", Location To Upload: " + request.getTargetFilePath());
+            System.out.println("Upload Result: No response from " + request.getTargetPeerIdentifier() + ".");
+            System.out.println("----------------------------------------------");
 
-    } // removeProcessedMessages().
+        }
+
+    } // requestCompleted().
 
 
     /**
@@ -256,24 +256,66 @@ public class UploadReceiver implements Runnable {
         System.out.println("Upload Request: Upload To: " + initialRequest.getTargetPeerIdentifier()
                 + ", Location To Upload: " + initialRequest.getTargetFilePath());
 
-        if (uploadResponse.getPayloadType().equalsIgnoreCase("upload-result")) {
+        // Local file being uploaded, given when the request was sent.
+        FileTransfer.Resume resume = resumes.remove(initialRequest.getSerialNumber());
+
+        if (uploadResponse.getPayloadType().equalsIgnoreCase("upload-result") && resume != null) {
+
+            String fileToUploadPath = resume.localPath;
+            int attempts = resume.attempts;
+            Path localFile = Paths.get(fileToUploadPath);
+            long localSize = localFile.toFile().length();
+
+            // Size of what the peer already has, and where the transfer starts (the request asks to start from the end
+            // of the file, so the peer starts from the end of what it has); a peer without resumption starts at 0.
+            long fileSize = uploadResponse.getTransferFileSize();
+            long start = fileSize < 0 ? 0 : Math.min(initialRequest.getTransferOffset(), fileSize);
+
+            if (start > 0 && !FileTransfer.prefixMatches(localFile, start, uploadResponse.getTransferPrefixChecksum())) {
+
+                // The peer's copy differs from ours, so what it has is of no use: start over. We do not connect, so
+                // its server gives up waiting and its copy is left as it was.
+                System.out.println("Upload Result: Copy at " + initialRequest.getTargetPeerIdentifier()
+                        + " differs, restarting the upload.");
+                resume(initialRequest, fileToUploadPath, 0, attempts);
+
+            } else {
+
+                if (start > 0) {
+                    System.out.println("Upload Result: Resuming from byte " + start + " of " + localSize + ".");
+                }
+
+                // Create TCP Client and upload the file (connect to identifier and uploadPort).
+                TCPClient tcpClient = new TCPClient(configuration, uploadResponse.getHostname(), uploadResponse.getFileTransferPort());
+                boolean checked = FileTransfer.CHECK_CRC32C.equalsIgnoreCase(uploadResponse.getTransferCheck());
+                boolean completed = tcpClient.processFile(fileToUploadPath, false, start, -1, checked) >= 0;
 
-            // Get file path of file to upload.
-            String fileToUploadPath = FileTreeBrowser.getFile(System.in,false);
+                if (!completed && attempts < configuration.transferRetries_) {
 
-            // Create TCP Client and upload the file (connect to identifier and uploadPort).
-            TCPClient tcpClient = new TCPClient(configuration, uploadResponse.getHostname(), uploadResponse.getFileTransferPort());
-            tcpClient.processFile(fileToUploadPath, false);
+                    // Connection dropped part way, or the peer found the bytes did not match their checksum; it keeps
+                    // what it received intact, so ask to send the rest.
+                    System.out.println("Upload Result: Interrupted, resuming.");
+                    resume(initialRequest, fileToUploadPath, localSize, attempts + 1);
 
-            // Output results to the user.
-            System.out.println("Upload Result: Successfully Uploaded To " + initialRequest.getTargetFilePath()
-                    + " At " + initialRequest.getTargetPeerIdentifier());
+                } else if (!completed) {
 
-            String rootDirName = FileTreeBrowser.getRootDirName();
-            String fileUploadedRootPath = fileToUploadPath.split(rootDirName)[1];
-            System.out.println("File Uploaded: " + fileUploadedRootPath + ".");
+                    System.out.println("Upload Result: Could not upload the file.");
 
-        } else { // Upload-error.
+                } else {
+
+                    // Output results to the user.
+                    System.out.println("Upload Result: Successfully Uploaded To " + initialRequest.getTargetFilePath()
+                            + " At " + initialRequest.getTargetPeerIdentifier());
+
+                    String rootDirName = FileTreeBrowser.getRootDirName();
+                    String fileUploadedRootPath = fileToUploadPath.split(rootDirName)[1];
+                    System.out.println("File Uploaded: " + fileUploadedRootPath + ".");
+
+                }
+
+            } // if (peer copy differs), else.
+
+        } else { // Upload-error, or a result for an upload we no longer have the file of.
 
             System.out.println("Upload Result: Could not upload the file.");
 
@@ -284,4 +326,61 @@ public class UploadReceiver implements Runnable {
     } // showUploadResponse().
 
 
+    /**
+     * Check whether the peer that sent an upload request has advertised that it checks transfers by CRC-32C.
+     *
+     * @param uploadRequest The upload request.
+     *
+     * @return True if the transfer may be followed by its CRC-32C.
+     */
+    private boolean requesterChecks(Message uploadRequest) {
+
+        Message requesterBeacon = multicastHandler.beaconReceiver.getBeaconFrom(uploadRequest.getIdentifier());
+        return requesterBeacon != null && requesterBeacon.isTransferCheckAvailable();
+
+    } // requesterChecks().
+
+
+    /**
+     * Send an upload request for a local file, handling the response to it. The request asks to start from the end of
+     * the file, so a peer holding part of it from an earlier upload starts from the end of what it has.
+     *
+     * @param peerIdentifier Identifier of the peer to upload to.
+     * @param targetFilePath Path at the peer to upload to.
+     * @param fileToUploadPath Local file to upload.
+     */
+    public void sendUploadRequest(String peerIdentifier, String targetFilePath, String fileToUploadPath) {
+
+        long localSize = new File(fileToUploadPath).length();
+
+        Message uploadRequest = Message.uploadRequestMessage(peerIdentifier, targetFilePath, localSize, -1, localSize);
+        resumes.put(uploadRequest.getSerialNumber(), new FileTransfer.Resume(fileToUploadPath, 0));
+
+        multicastHandler.txMessage(uploadRequest);
+        addMessage(true, uploadRequest);
+
+    } // sendUploadRequest().
+
+
+    /**
+     * Ask the peer again to take a file we are uploading, from an offset, to carry on from what it already has. The peer
+     * starts from the offset or the end of its copy, whichever is first.
+     *
+     * @param initialRequest The upload request being resumed.
+     * @param fileToUploadPath Local file being uploaded.
+     * @param offset Byte of the file to resume from.
+     * @param attempts Times the upload has been resumed after failing.
+     */
+    private void resume(Message initialRequest, String fileToUploadPath, long offset, int attempts) {
+
+        Message resumeRequest = Message.uploadRequestMessage(initialRequest.getTargetPeerIdentifier(),
+                initialRequest.getTargetFilePath(), offset, -1, new File(fileToUploadPath).length());
+        resumes.put(resumeRequest.getSerialNumber(), new FileTransfer.Resume(fileToUploadPath, attempts));
+
+        multicastHandler.txMessage(resumeRequest);
+        addMessage(true, resumeRequest);
+
+    } // resume().
+
+
 } // UploadReceiver{}.